@@ -2,13 +2,12 @@ package edu.berkeley.nlp.morph;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import edu.berkeley.nlp.morph.MarkovEditDistanceComputer.EditDistanceParams;
 import edu.berkeley.nlp.morph.fig.LogInfo;
+import edu.berkeley.nlp.morph.util.Metrics;
 
 /**
  * Wrapper around a ParadigmInstance; when analyze() is called, stores edit
@@ -27,27 +26,65 @@ public class AnalyzedParadigmInstance {
   
   public final double SWITCH_COST = 0.00001;
   
+  private static final Metrics.Histogram ALIGNMENT_ROUNDS = Metrics.histogram("alignment_rounds_per_table",
+      "Rounds of re-alignment before a table's CONSISTENT alignments stop changing");
+  
   public final ParadigmInstance inst;
-  private final SortedMap<Attributes,List<Operation>> formAlignments;
+  // Alignment for each slot of inst's schema; all null until analyzed
+  private final List<Operation>[] formAlignments;
   private final List<AnchoredMorphChange> extractedChanges;
   
   public AnalyzedParadigmInstance(ParadigmInstance inst) {
     this.inst = inst;
-    this.formAlignments = new TreeMap<Attributes,List<Operation>>();
+    this.formAlignments = newAlignmentArray(inst.getSchema().size());
     this.extractedChanges = new ArrayList<AnchoredMorphChange>();
   }
 
+  @SuppressWarnings("unchecked")
+  private static List<Operation>[] newAlignmentArray(int size) {
+    return (List<Operation>[])new List<?>[size];
+  }
+  
+  private boolean isAnalyzed() {
+    return formAlignments.length == 0 || formAlignments[0] != null;
+  }
+
   public List<AnchoredMorphChange> getCachedChanges() {
     return extractedChanges;
   }
   
+  /**
+   * @return The alignment of each inflected form to the base form, by slot of
+   * inst's schema; only populated after analyze() or restoreAnalysis().
+   */
+  public List<List<Operation>> getFormAlignments() {
+    return Collections.unmodifiableList(Arrays.asList(formAlignments));
+  }
+  
+  /**
+   * Restores the state that analyze() and extractAndCacheChanges() would otherwise
+   * compute, e.g. when reading back an ExtractedModelSnapshot.
+   * @param alignments Op sequence for each attributes in inst.getAttrSetSorted(), in order
+   * @param changedSpans The spans of the base form over which changes were extracted
+   */
+  public void restoreAnalysis(List<List<Operation>> alignments, List<AnchoredSpan> changedSpans) {
+    assert alignments.size() == formAlignments.length;
+    for (int slot = 0; slot < formAlignments.length; slot++) {
+      formAlignments[slot] = alignments.get(slot);
+    }
+    this.extractedChanges.clear();
+    for (AnchoredSpan changedSpan : changedSpans) {
+      this.extractedChanges.add(extractChangeOverSpan(changedSpan));
+    }
+  }
+  
   /**
    * Aligns each inflected form to the base form using the specified alignment
    * algorithm
    * @param alignmentType
    */
   public void analyze(AlignmentType alignmentType) {
-    this.formAlignments.clear();
+    Arrays.fill(this.formAlignments, null);
     // For BASIC and MAX_ALIGN, we don't need to do anything fancy, just run edit distance
     // for each pair with the right parameters
     if (alignmentType == AlignmentType.BASIC || alignmentType == AlignmentType.MAX_ALIGN) {
@@ -58,9 +95,8 @@ public class AnalyzedParadigmInstance {
   }
   
   public void analyzeSimple(AlignmentType alignmentType) {
-    for (Entry<Attributes,Form> attrsFormPair : inst.getAttrsFormMap().entrySet()) {
-      Attributes attrs = attrsFormPair.getKey();
-      Form inflForm = attrsFormPair.getValue();
+    for (int slot = 0; slot < formAlignments.length; slot++) {
+      Form inflForm = inst.getInflForm(slot);
       EditDistanceParams params;
       if (alignmentType == AlignmentType.BASIC) {
         params = EditDistanceParams.getStandardParams(inst.baseForm(), inflForm, SWITCH_COST);
@@ -68,7 +104,7 @@ public class AnalyzedParadigmInstance {
         params = EditDistanceParams.getMaxAlignmentParams(inst.baseForm(), inflForm, SWITCH_COST);
       }
       MarkovEditDistanceComputer computer = new MarkovEditDistanceComputer(params);
-      formAlignments.put(attrs, computer.runEditDistance().ops);
+      formAlignments[slot] = computer.runEditDistance().ops;
     }
   }
   
@@ -85,23 +121,23 @@ public class AnalyzedParadigmInstance {
         LogInfo.logss("Aborting after 10 iterations");
       }
       someChange = false;
-      for (Entry<Attributes,Form> attrsFormPair : inst.getAttrsFormMap().entrySet()) {
-        Attributes attrs = attrsFormPair.getKey();
-        Form inflForm = attrsFormPair.getValue();
+      for (int slot = 0; slot < formAlignments.length; slot++) {
+        Form inflForm = inst.getInflForm(slot);
         EditDistanceParams params = EditDistanceParams.getWeightedMaxAlignmentParams(baseForm, inflForm, oldCosts, SWITCH_COST);
         MarkovEditDistanceComputer computer = new MarkovEditDistanceComputer(params);
         AlignedFormPair alignedPair = computer.runEditDistance();
-        if (!formAlignments.containsKey(attrs) || !alignedPair.ops.equals(formAlignments.get(attrs))) {
+        if (formAlignments[slot] == null || !alignedPair.ops.equals(formAlignments[slot])) {
           someChange = true;
         }
         updateAlignmentCosts(newCosts, alignedPair.ops);
-        formAlignments.put(attrs, alignedPair.ops);
+        formAlignments[slot] = alignedPair.ops;
       }
       oldCosts = newCosts;
       newCosts = new double[baseForm.length()];
       Arrays.fill(newCosts, 0);
       numItrs++;
     }
+    ALIGNMENT_ROUNDS.record(numItrs);
   }
   
   /**
@@ -130,7 +166,7 @@ public class AnalyzedParadigmInstance {
    * @return
    */
   public List<AnchoredMorphChange> extractAndCacheChanges(boolean collapseAdjacentSpans) {
-    assert !formAlignments.isEmpty() : "Must call analyze() before extractAndCacheChanges()";
+    assert isAnalyzed() : "Must call analyze() before extractAndCacheChanges()";
     List<AnchoredSpan> changedSpans = getOverallChangedSpans(collapseAdjacentSpans);
     this.extractedChanges.clear();
     for (AnchoredSpan changedSpan : changedSpans) {
@@ -139,10 +175,21 @@ public class AnalyzedParadigmInstance {
     return this.extractedChanges;
   }
   
+  /**
+   * Replaces each cached change by one over the interned MorphChange; only for instances
+   * whose changes live as long as the model, since interned changes are never released.
+   */
+  public void internCachedChanges() {
+    for (int i = 0; i < extractedChanges.size(); i++) {
+      AnchoredMorphChange change = extractedChanges.get(i);
+      extractedChanges.set(i, new AnchoredMorphChange(change.change.intern(), change.spanAppliedTo, this));
+    }
+  }
+  
   private List<AnchoredSpan> getOverallChangedSpans(boolean collapseAdjacentSpans) {
     // Find the spans 
     List<AnchoredSpan> spans = new ArrayList<AnchoredSpan>();
-    for (List<Operation> opSequence : this.formAlignments.values()) {
+    for (List<Operation> opSequence : this.formAlignments) {
       spans.addAll(AnchoredSpan.getChangedSpans(this.inst.baseForm(), opSequence));
       spans = AnchoredSpan.collapseAll(spans, collapseAdjacentSpans);
     }
@@ -150,13 +197,11 @@ public class AnalyzedParadigmInstance {
   }
   
   private AnchoredMorphChange extractChangeOverSpan(AnchoredSpan span) {
-    SortedMap<Attributes,Form> changeMap = new TreeMap<Attributes,Form>();
-    for (Attributes attrs : this.formAlignments.keySet()) {
-      Form inflForm = this.inst.getInflForm(attrs);
-      List<Operation> ops = this.formAlignments.get(attrs);
-      changeMap.put(attrs, extractSpanTargetSide(inflForm, ops, span));
+    Form[] rewrite = new Form[formAlignments.length];
+    for (int slot = 0; slot < formAlignments.length; slot++) {
+      rewrite[slot] = extractSpanTargetSide(this.inst.getInflForm(slot), this.formAlignments[slot], span);
     }
-    MorphChange change = new MorphChange(inst.baseForm().substring(span.start, span.end), changeMap);
+    MorphChange change = new MorphChange(inst.baseForm().substring(span.start, span.end), inst.getSchema(), rewrite);
     return new AnchoredMorphChange(change, span, this);
   }
   
@@ -16,11 +16,16 @@ public class AnchoredSpan implements Comparable<AnchoredSpan> {
   public final int end;
   // A hack that should only be used for rendering / error analysis
   public boolean scoredAtLeaf;
+  private final int hashCode;
   
   public AnchoredSpan(Form form, int start, int end) {
     this.form = form;
     this.start = start;
     this.end = end;
+    int hc = form.hashCode() * 91229;
+    hc = (hc + start) * 91229;
+    hc = (hc + end) * 91229;
+    this.hashCode = hc;
   }
   
   public int length() {
@@ -41,19 +46,19 @@ public class AnchoredSpan implements Comparable<AnchoredSpan> {
   
   @Override
   public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
     if (other == null || !(other instanceof AnchoredSpan)) {
       return false;
     }
     AnchoredSpan rhs = (AnchoredSpan)other;
-    return this.form.equals(rhs.form) && this.start == rhs.start && this.end == rhs.end;
+    return this.hashCode == rhs.hashCode && this.start == rhs.start && this.end == rhs.end && this.form.equals(rhs.form);
   }
   
   @Override
   public int hashCode() {
-    int hc = this.form.hashCode() * 91229;
-    hc = (hc + this.start) * 91229;
-    hc = (hc + this.end) * 91229;
-    return hc;
+    return hashCode;
   }
 
   @Override
@@ -20,6 +20,23 @@ public class AnchoredSpanFeaturizer {
     this.maxDistance = maxDistance;
   }
 
+  /**
+   * @return A key that is the same for two spans whenever getFeatures() gives them the same
+   * features: the glyphs (or boundaries) it reads before and after the span. Spans of
+   * different forms can share a key, e.g. suffixes of words with the same ending.
+   */
+  public String getWindowKey(AnchoredSpan anchoredSpan) {
+    StringBuilder key = new StringBuilder();
+    for (int i = anchoredSpan.start - maxDistance; i < anchoredSpan.start + ngramOrder - 1 && maxDistance > 0; i++) {
+      key.append(anchoredSpan.form.charAtOrBoundary(i).glyph);
+    }
+    key.append('|');
+    for (int i = anchoredSpan.end - ngramOrder + 1; i < anchoredSpan.end + maxDistance && maxDistance > 0; i++) {
+      key.append(anchoredSpan.form.charAtOrBoundary(i).glyph);
+    }
+    return key.toString();
+  }
+
   public List<String> getFeatures(AnchoredSpan anchoredSpan) {
     List<String> features = new ArrayList<String>();
     for (int i = anchoredSpan.start - maxDistance; i < anchoredSpan.start; i++) {
@@ -1,7 +1,6 @@
 package edu.berkeley.nlp.morph;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -73,13 +72,12 @@ public class AttributeFrequencyEstimator {
     final double eps = 0.01;
     final int numItrs = 30;
     List<FormExample> formExamples = new ArrayList<FormExample>();
-    Collection<Form> allLmStrings = lm.getAllForms();
-    LogInfo.logss("Creating training examples from an LM with " + allLmStrings.size() + " entries");
-    for (Form lmForm : allLmStrings) {
-      if (inflectedFormsToInstances.containsKey(lmForm)) {
-        formExamples.add(new FormExample(lmForm, (int)lm.getCount(lmForm)));
+    // Only inflected forms are used, so look those up rather than scanning the whole LM
+    LogInfo.logss("Creating training examples from " + inflectedFormsToInstances.size() + " inflected forms");
+    for (Form inflForm : inflectedFormsToInstances.keySet()) {
+      if (lm.containsForm(inflForm)) {
+        formExamples.add(new FormExample(inflForm, (int)lm.getCount(inflForm)));
       }
-      
     }
     LogInfo.logss("Created " + formExamples.size() + " examples");
     new GeneralLogisticRegression().trainWeightsLbfgsL2R(formExamples, reg, eps, numItrs, weights);
@@ -0,0 +1,86 @@
+package edu.berkeley.nlp.morph;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Assigns dense slot IDs to a set of Attributes (the cells of a paradigm), in sorted
+ * order, so that paradigms and morph changes can store their forms in arrays indexed by
+ * slot rather than in maps keyed by Attributes. Iterating over slots 0..size()-1 visits
+ * the attributes in the same order as iterating over the sorted set.
+ *
+ * Schemas are interned: there is one per distinct set of attributes (normally one per
+ * corpus), so two paradigms over the same attributes can be compared slot-by-slot after
+ * checking that their schemas are the same object.
+ *
+ * @author gdurrett
+ *
+ */
+public class AttributeSchema {
+
+  private static final Map<Set<Attributes>,AttributeSchema> internedSchemas = new HashMap<Set<Attributes>,AttributeSchema>();
+  // Most paradigms are built over the attribute set of the last schema handed out
+  private static volatile AttributeSchema lastSchema = null;
+
+  private final SortedSet<Attributes> attrSetSorted;
+  private final Attributes[] slotAttrs;
+  private final Map<Attributes,Integer> slots;
+
+  private AttributeSchema(Set<Attributes> attrs) {
+    this.attrSetSorted = Collections.unmodifiableSortedSet(new TreeSet<Attributes>(attrs));
+    this.slotAttrs = attrSetSorted.toArray(new Attributes[attrSetSorted.size()]);
+    this.slots = new HashMap<Attributes,Integer>();
+    for (int i = 0; i < slotAttrs.length; i++) {
+      slots.put(slotAttrs[i], i);
+    }
+  }
+
+  /**
+   * @return The schema for the given set of attributes; passing the set returned by
+   * getAttrSetSorted() (or ParadigmInstance.getAttrSetSorted()) is cheapest
+   */
+  public static AttributeSchema forAttrs(Set<Attributes> attrs) {
+    AttributeSchema schema = lastSchema;
+    if (schema != null && schema.attrSetSorted == attrs) {
+      return schema;
+    }
+    synchronized (internedSchemas) {
+      schema = internedSchemas.get(attrs);
+      if (schema == null) {
+        schema = new AttributeSchema(attrs);
+        internedSchemas.put(schema.attrSetSorted, schema);
+      }
+    }
+    lastSchema = schema;
+    return schema;
+  }
+
+  public int size() {
+    return slotAttrs.length;
+  }
+
+  public Attributes getAttrs(int slot) {
+    return slotAttrs[slot];
+  }
+
+  /**
+   * @return The slot of the given attributes, or -1 if they aren't part of this schema
+   */
+  public int slotOf(Attributes attrs) {
+    Integer slot = slots.get(attrs);
+    return (slot == null ? -1 : slot.intValue());
+  }
+
+  public SortedSet<Attributes> getAttrSetSorted() {
+    return attrSetSorted;
+  }
+
+  @Override
+  public String toString() {
+    return attrSetSorted.toString();
+  }
+}
@@ -5,9 +5,11 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 
 import edu.berkeley.nlp.morph.util.GUtil;
+import edu.berkeley.nlp.morph.util.Interner;
 
 /**
  * Vector of morphological properties and their bound values, e.g. "Person=1st,Tense=Past"
+ * The hash code is cached, so attrs should only be modified through setValue().
  * 
  * @author gdurrett
  *
@@ -52,6 +54,10 @@ public class Attributes implements Comparable<Attributes> {
   // SortedMap because it's really handy to have these guys sorted for printing
   // all sorts of things
   public final SortedMap<String,Attribute> attrs;
+  // Zero until computed
+  private int hashCode;
+  
+  private static final Interner<Attributes> internedAttributes = new Interner<Attributes>();
   
   public Attributes(SortedSet<Attribute> attrs) {
     this.attrs = new TreeMap<String,Attribute>();
@@ -73,6 +79,14 @@ public class Attributes implements Comparable<Attributes> {
   
   public void setValue(String attr, String value) {
     this.attrs.put(attr, new Attribute(attr, value));
+    this.hashCode = 0;
+  }
+  
+  /**
+   * @return The canonical Attributes equal to these; don't call setValue() on the result
+   */
+  public Attributes intern() {
+    return internedAttributes.intern(this);
   }
   
   public String toShortString() {
@@ -85,15 +99,24 @@ public class Attributes implements Comparable<Attributes> {
   
   @Override
   public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
     if (other == null || !(other instanceof Attributes)) {
       return false;
     }
-    return this.attrs.equals(((Attributes)other).attrs);
+    Attributes rhs = (Attributes)other;
+    return this.hashCode() == rhs.hashCode() && this.attrs.equals(rhs.attrs);
   }
   
   @Override
   public int hashCode() {
-    return this.attrs.hashCode();
+    int hc = hashCode;
+    if (hc == 0) {
+      hc = this.attrs.hashCode();
+      hashCode = hc;
+    }
+    return hc;
   }
   
   @Override
@@ -3,7 +3,9 @@ package edu.berkeley.nlp.morph;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 
 import edu.berkeley.nlp.morph.fig.LogInfo;
@@ -22,6 +24,9 @@ public class BaselinePredictor implements Predictor {
   public final ChangeFilterer changeFilterer;
   public final List<Pair<Pattern,MorphChange>> prefixPatternsToConsider;
   public final List<Pair<Pattern,MorphChange>> suffixPatternsToConsider;
+  // Training applications of each pattern's changes, all together and of the one we apply
+  private final Map<Pattern,Double> patternCounts;
+  private final Map<Pattern,Double> appliedChangeCounts;
   
   public BaselinePredictor(ExtractedModel extractedModel) {
     this.extractedModel = extractedModel;
@@ -29,6 +34,8 @@ public class BaselinePredictor implements Predictor {
     this.changeFilterer = new ChangeFilterer(extractedModel, true);
     this.prefixPatternsToConsider = new ArrayList<Pair<Pattern,MorphChange>>();
     this.suffixPatternsToConsider = new ArrayList<Pair<Pattern,MorphChange>>();
+    this.patternCounts = new HashMap<Pattern,Double>();
+    this.appliedChangeCounts = new HashMap<Pattern,Double>();
     int numWithPrefixChange = 0;
     int numWithSuffixChange = 0;
     int totalCount = extractedModel.analyzedInstances.size();
@@ -46,10 +53,14 @@ public class BaselinePredictor implements Predictor {
       }
     }
     for (Pattern pattern : morphChangeCounts.keySet()) {
+      Counter<MorphChange> changeCounts = morphChangeCounts.getCounter(pattern);
+      MorphChange bestChange = changeCounts.argMax();
+      patternCounts.put(pattern, changeCounts.totalCount());
+      appliedChangeCounts.put(pattern, changeCounts.getCount(bestChange));
       if (pattern.isStartPattern()) {
-        prefixPatternsToConsider.add(Pair.makePair(pattern, morphChangeCounts.getCounter(pattern).argMax()));
+        prefixPatternsToConsider.add(Pair.makePair(pattern, bestChange));
       } else {
-        suffixPatternsToConsider.add(Pair.makePair(pattern, morphChangeCounts.getCounter(pattern).argMax()));
+        suffixPatternsToConsider.add(Pair.makePair(pattern, bestChange));
       }
     }
     // Only use prefix and suffix changes if something should be changed most of the time
@@ -82,6 +93,17 @@ public class BaselinePredictor implements Predictor {
     return predict(baseForm, attrs);
   }
 
+  @Override
+  public List<ParadigmHypothesis> predictBatch(List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances) {
+    // Gold instances aren't used, so repeated base forms can share a prediction
+    int[] firstOccurrences = PredictionUtils.firstOccurrences(baseForms, null);
+    List<ParadigmHypothesis> hypotheses = new ArrayList<ParadigmHypothesis>(baseForms.size());
+    for (int i = 0; i < baseForms.size(); i++) {
+      hypotheses.add(firstOccurrences[i] == i ? predict(baseForms.get(i), attrs) : hypotheses.get(firstOccurrences[i]));
+    }
+    return hypotheses;
+  }
+
   public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs) {
     // Apply the most frequent prefix and suffix changes that apply
     List<AnchoredMorphChange> appliedChanges = new ArrayList<AnchoredMorphChange>();
@@ -104,5 +126,37 @@ public class BaselinePredictor implements Predictor {
     ParadigmInstance predictedInstance = new ParadigmInstance(baseForm, attrs, appliedChanges);
     return new ParadigmHypothesis(predictedInstance, appliedChanges, new Counter<AnchoredMorphChange>(), 0.0);
   }
+  
+  /**
+   * Confidence in a prediction of this predictor, from the same training counts that it was
+   * made from. On each of the prefix and suffix sides, every pattern that matches the base
+   * form is evidence for some change; the confidence for that side is the fraction of that
+   * evidence which is for the change we applied (0 if nothing matched), and the overall
+   * confidence is the smaller of the two.
+   */
+  public double computeConfidence(ParadigmHypothesis hypothesis) {
+    Form baseForm = hypothesis.predictedInstance.baseForm();
+    return Math.min(computeConfidence(baseForm, prefixPatternsToConsider), computeConfidence(baseForm, suffixPatternsToConsider));
+  }
+  
+  private double computeConfidence(Form baseForm, List<Pair<Pattern,MorphChange>> patternsToConsider) {
+    if (patternsToConsider.isEmpty()) {
+      // This side is never changed, so there's nothing to be unsure about
+      return 1;
+    }
+    double appliedCount = 0;
+    double totalCount = 0;
+    for (Pair<Pattern,MorphChange> patternAndChange : patternsToConsider) {
+      Pattern pattern = patternAndChange.getFirst();
+      if (!pattern.findMatchingSpans(baseForm).isEmpty()) {
+        // The first match, being the most frequent, is the one predict() applied
+        if (totalCount == 0) {
+          appliedCount = appliedChangeCounts.get(pattern);
+        }
+        totalCount += patternCounts.get(pattern);
+      }
+    }
+    return (totalCount == 0 ? 0 : appliedCount / totalCount);
+  }
 
 }
@@ -0,0 +1,107 @@
+package edu.berkeley.nlp.morph;
+
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.berkeley.nlp.morph.util.Metrics;
+
+/**
+ * Wraps a trained JOINT predictor so that no single lemma can take unboundedly long to
+ * decode. The lattice for each lemma is capped at maxCandidates anchored changes (keeping
+ * those whose changes were extracted most often in training), which bounds the cost of
+ * featurization and decoding. Matching changes against the base form, featurizing the
+ * lattice, and the Viterbi pass over it all check a wall-clock deadline, and if that
+ * passes we return the BaselinePredictor's answer instead.
+ *
+ * @author gdurrett
+ *
+ */
+public class BudgetedPredictor implements Predictor {
+
+  private static final Metrics.EventCounter PREDICTIONS = Metrics.counter("budget_predictions",
+      "Lemmas predicted under a decoding budget");
+  private static final Metrics.EventCounter CANDIDATES_CAPPED = Metrics.counter("budget_candidates_capped",
+      "Lemmas whose lattices were cut down to the most frequent candidate changes");
+  private static final Metrics.EventCounter DEADLINE_FALLBACKS = Metrics.counter("budget_deadline_fallbacks",
+      "Lemmas that ran past the decoding deadline and got the baseline's prediction");
+
+  private final BaselinePredictor baselinePredictor;
+  private final JointSpanMatchingPredictor jointPredictor;
+  private final int maxCandidates;
+  private final long budgetNanos;
+
+  // Updated from every thread that predicts with this
+  private final AtomicInteger numPredictions;
+  private final AtomicInteger numCapped;
+  private final AtomicInteger numDeadlineExceeded;
+  private final AtomicLong maxNanos;
+
+  /**
+   * @param jointPredictor Must already be trained
+   * @param maxCandidates Maximum number of anchored changes in each lattice (0 for no cap)
+   * @param budgetMillis Time allowed for each lemma before falling back to the baseline (0 for no limit)
+   */
+  public BudgetedPredictor(BaselinePredictor baselinePredictor, JointSpanMatchingPredictor jointPredictor, int maxCandidates, long budgetMillis) {
+    this.baselinePredictor = baselinePredictor;
+    this.jointPredictor = jointPredictor;
+    this.maxCandidates = maxCandidates;
+    this.budgetNanos = budgetMillis * 1000000L;
+    this.numPredictions = new AtomicInteger(0);
+    this.numCapped = new AtomicInteger(0);
+    this.numDeadlineExceeded = new AtomicInteger(0);
+    this.maxNanos = new AtomicLong(0);
+  }
+
+  @Override
+  public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs, ParadigmInstance goldInstance) {
+    // Don't use oracle info
+    return predict(baseForm, attrs);
+  }
+
+  @Override
+  public List<ParadigmHypothesis> predictBatch(List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances) {
+    return PredictionUtils.predictEach(this, baseForms, attrs, goldInstances);
+  }
+
+  public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs) {
+    long startTime = System.nanoTime();
+    long deadlineNanos = (budgetNanos > 0 ? startTime + budgetNanos : Long.MAX_VALUE);
+    numPredictions.incrementAndGet();
+    PREDICTIONS.increment();
+    ParadigmHypothesis hypothesis = null;
+    List<AnchoredMorphChange> possibleChanges = jointPredictor.findPossibleChanges(baseForm, null, deadlineNanos);
+    if (possibleChanges != null) {
+      if (maxCandidates > 0 && possibleChanges.size() > maxCandidates) {
+        numCapped.incrementAndGet();
+        CANDIDATES_CAPPED.increment();
+        possibleChanges = jointPredictor.keepMostFrequentChanges(possibleChanges, maxCandidates);
+      }
+      hypothesis = jointPredictor.predictFromCandidates(baseForm, attrs, possibleChanges, deadlineNanos);
+    }
+    if (hypothesis == null) {
+      numDeadlineExceeded.incrementAndGet();
+      DEADLINE_FALLBACKS.increment();
+      hypothesis = baselinePredictor.predict(baseForm, attrs);
+    }
+    long elapsedNanos = System.nanoTime() - startTime;
+    long currMax;
+    while (elapsedNanos > (currMax = maxNanos.get()) && !maxNanos.compareAndSet(currMax, elapsedNanos));
+    return hypothesis;
+  }
+
+  public int getNumCapped() {
+    return numCapped.get();
+  }
+
+  public int getNumDeadlineExceeded() {
+    return numDeadlineExceeded.get();
+  }
+
+  public String renderStats() {
+    return "Decoding budget: " + numCapped.get() + "/" + numPredictions.get() + " lemmas had their lattices capped at " + maxCandidates +
+        " candidates, " + numDeadlineExceeded.get() + " exceeded the deadline and fell back to the baseline; slowest lemma took " +
+        (maxNanos.get() / 1000000) + " millis";
+  }
+}
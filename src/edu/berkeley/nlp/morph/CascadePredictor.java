@@ -0,0 +1,163 @@
+package edu.berkeley.nlp.morph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.nlp.morph.util.Metrics;
+
+import edu.berkeley.nlp.morph.fig.LogInfo;
+
+/**
+ * Two-stage predictor for bulk inflection of mostly regular lemmas. The BaselinePredictor
+ * makes a first guess and scores its own confidence from the training counts behind the
+ * changes it applied (see BaselinePredictor.computeConfidence()), which costs nothing beyond
+ * the guess itself. If that reaches the confidence threshold, the baseline's answer is
+ * returned; otherwise we fall back to full JOINT decoding.
+ *
+ * @author gdurrett
+ *
+ */
+public class CascadePredictor implements Predictor {
+
+  private static final Metrics.EventCounter FAST_PATH = Metrics.counter("cascade_fast_path",
+      "Lemmas for which the cascade accepted the baseline's prediction");
+  private static final Metrics.EventCounter JOINT_FALLBACKS = Metrics.counter("cascade_joint_fallbacks",
+      "Lemmas for which the cascade fell back to JOINT decoding");
+
+  private final BaselinePredictor baselinePredictor;
+  private final JointSpanMatchingPredictor jointPredictor;
+  // Only changed by tuneThreshold(), before any predictions are made
+  private double confidenceThreshold;
+
+  // Updated from every thread that predicts with this
+  private final AtomicInteger numFastPath;
+  private final AtomicInteger numFallback;
+
+  /**
+   * @param jointPredictor Must already be trained
+   * @param confidenceThreshold Minimum baseline confidence, in [0, 1], for the baseline's
+   * answer to be accepted
+   */
+  public CascadePredictor(BaselinePredictor baselinePredictor, JointSpanMatchingPredictor jointPredictor, double confidenceThreshold) {
+    this.baselinePredictor = baselinePredictor;
+    this.jointPredictor = jointPredictor;
+    this.confidenceThreshold = confidenceThreshold;
+    this.numFastPath = new AtomicInteger(0);
+    this.numFallback = new AtomicInteger(0);
+  }
+
+  @Override
+  public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs, ParadigmInstance goldInstance) {
+    // Don't use oracle info
+    return predict(baseForm, attrs);
+  }
+
+  @Override
+  public List<ParadigmHypothesis> predictBatch(List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances) {
+    return PredictionUtils.predictEach(this, baseForms, attrs, goldInstances);
+  }
+
+  public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs) {
+    ParadigmHypothesis baselineHypothesis = baselinePredictor.predict(baseForm, attrs);
+    if (baselinePredictor.computeConfidence(baselineHypothesis) >= confidenceThreshold) {
+      numFastPath.incrementAndGet();
+      FAST_PATH.increment();
+      return baselineHypothesis;
+    }
+    numFallback.incrementAndGet();
+    JOINT_FALLBACKS.increment();
+    return jointPredictor.predict(baseForm, attrs);
+  }
+
+  public double getConfidenceThreshold() {
+    return confidenceThreshold;
+  }
+
+  public String renderStats() {
+    int total = numFastPath.get() + numFallback.get();
+    return "Cascade: " + numFastPath.get() + "/" + total + " lemmas took the fast path (threshold " + confidenceThreshold + "), " +
+        numFallback.get() + " fell back to JOINT decoding";
+  }
+
+  /**
+   * Measures both stages once on each of the given held-out gold instances, reports the
+   * template accuracy and throughput the cascade would have with each threshold, and
+   * switches to the fastest threshold whose accuracy is within maxAccuracyLoss of JOINT
+   * decoding alone. Timings are per-lemma wall-clock times, so the throughput for a
+   * threshold is the number of lemmas over the first stage time for all of them plus the
+   * JOINT time for those that fall back.
+   * 
+   * @param goldInstances Must not overlap the data either stage was trained on, or the
+   * accuracies (and so the chosen threshold) will be optimistic
+   */
+  public void tuneThreshold(List<ParadigmInstance> goldInstances, double[] thresholds, double maxAccuracyLoss) {
+    int n = goldInstances.size();
+    double[] confidences = new double[n];
+    boolean[] fastCorrect = new boolean[n];
+    boolean[] jointCorrect = new boolean[n];
+    long[] fastNanos = new long[n];
+    long[] jointNanos = new long[n];
+    for (int i = 0; i < n; i++) {
+      ParadigmInstance goldInstance = goldInstances.get(i);
+      Form baseForm = goldInstance.baseForm();
+      SortedSet<Attributes> attrs = goldInstance.getAttrSetSorted();
+      long nanoTime = System.nanoTime();
+      ParadigmHypothesis baselineHypothesis = baselinePredictor.predict(baseForm, attrs);
+      confidences[i] = baselinePredictor.computeConfidence(baselineHypothesis);
+      fastNanos[i] = System.nanoTime() - nanoTime;
+      nanoTime = System.nanoTime();
+      ParadigmHypothesis jointHypothesis = jointPredictor.predict(baseForm, attrs);
+      jointNanos[i] = System.nanoTime() - nanoTime;
+      fastCorrect[i] = baselineHypothesis.predictedInstance.doesExactlyMatchGold(goldInstance);
+      jointCorrect[i] = jointHypothesis.predictedInstance.doesExactlyMatchGold(goldInstance);
+    }
+    String table = "Cascade threshold sweep over " + n + " held-out lemmas:\n";
+    table += "threshold\tfast path\taccuracy\tlemmas/sec\n";
+    List<Double> allThresholds = new ArrayList<Double>();
+    for (double threshold : thresholds) {
+      allThresholds.add(threshold);
+    }
+    // Always report the two extremes: always taking the fast path, and JOINT only
+    allThresholds.add(0, Double.NEGATIVE_INFINITY);
+    allThresholds.add(Double.POSITIVE_INFINITY);
+    double[] accuracies = new double[allThresholds.size()];
+    long[] totalNanosByThreshold = new long[allThresholds.size()];
+    for (int t = 0; t < allThresholds.size(); t++) {
+      double threshold = allThresholds.get(t);
+      int numFast = 0;
+      int numCorrect = 0;
+      long totalNanos = 0;
+      for (int i = 0; i < n; i++) {
+        // The JOINT-only extreme skips the first stage entirely
+        if (threshold != Double.POSITIVE_INFINITY) {
+          totalNanos += fastNanos[i];
+        }
+        if (threshold != Double.POSITIVE_INFINITY && confidences[i] >= threshold) {
+          numFast++;
+          numCorrect += (fastCorrect[i] ? 1 : 0);
+        } else {
+          totalNanos += jointNanos[i];
+          numCorrect += (jointCorrect[i] ? 1 : 0);
+        }
+      }
+      accuracies[t] = ((double)numCorrect)/n;
+      totalNanosByThreshold[t] = Math.max(1, totalNanos);
+      table += threshold + "\t" + numFast + "/" + n + "\t" + accuracies[t] + "\t" + (n * 1000000000L)/totalNanosByThreshold[t] + "\n";
+    }
+    LogInfo.logss(table);
+    // The last entry is JOINT only, so there is always an acceptable threshold
+    int jointOnly = allThresholds.size() - 1;
+    int best = jointOnly;
+    for (int t = 0; t < jointOnly; t++) {
+      if (accuracies[t] >= accuracies[jointOnly] - maxAccuracyLoss && totalNanosByThreshold[t] < totalNanosByThreshold[best]) {
+        best = t;
+      }
+    }
+    confidenceThreshold = allThresholds.get(best);
+    LogInfo.logss("Cascade threshold set to " + confidenceThreshold + ": held-out accuracy " + accuracies[best] + " vs. " +
+                  accuracies[jointOnly] + " for JOINT alone, measured speedup " +
+                  String.format("%.2f", ((double)totalNanosByThreshold[jointOnly]) / totalNanosByThreshold[best]) + "x");
+  }
+}
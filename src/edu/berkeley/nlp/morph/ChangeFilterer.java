@@ -9,6 +9,7 @@ import java.util.Set;
 
 import edu.berkeley.nlp.morph.Pattern.PatternElement;
 import edu.berkeley.nlp.morph.fig.LogInfo;
+import edu.berkeley.nlp.morph.fig.LogInfo.Level;
 
 /**
  * Stores patterns for filtering potential matches of MorphChanges. When useMatchFiltering
@@ -26,6 +27,16 @@ public class ChangeFilterer {
   private final Map<MorphChange,Pattern> morphChangeFilterPatterns;
   
   public ChangeFilterer(ExtractedModel extractedModel, boolean useMatchFiltering) {
+    this(extractedModel, useMatchFiltering, new HashMap<MorphChange,Pattern>(), null);
+  }
+  
+  /**
+   * Reuses priorPatterns (e.g. from a previously trained model) for every change except
+   * those in changesToRecompute, whose occurrences have changed since the prior
+   * patterns were built. If changesToRecompute is null, every pattern is recomputed.
+   */
+  public ChangeFilterer(ExtractedModel extractedModel, boolean useMatchFiltering,
+                        Map<MorphChange,Pattern> priorPatterns, Set<MorphChange> changesToRecompute) {
     Set<MorphChange> morphChanges = new HashSet<MorphChange>();
     for (AnalyzedParadigmInstance analyzedInstance: extractedModel.analyzedInstances) {
       for (AnchoredMorphChange change : analyzedInstance.getCachedChanges()) {
@@ -34,39 +45,11 @@ public class ChangeFilterer {
     }
     this.morphChangeFilterPatterns = new HashMap<MorphChange,Pattern>();
     for (MorphChange morphChange : morphChanges) {
-      if (useMatchFiltering) {
-        Glyph charBefore = null;
-        boolean badBefore = false;
-        Glyph charAfter = null;
-        boolean badAfter = false;
-        for (AnchoredMorphChange change : extractedModel.extractedMorphChanges.get(morphChange)) {
-          Form form = change.spanAppliedTo.form;
-          Glyph before = form.charAtOrBoundary(change.spanAppliedTo.start - 1);
-          Glyph after = form.charAtOrBoundary(change.spanAppliedTo.end);
-          if (!badBefore) {
-            if (charBefore == null) {
-              charBefore = before;
-            } else if (!charBefore.equals(before)) {
-              badBefore = true;
-            }
-          }
-          if (!badAfter) {
-            if (charAfter == null) {
-              charAfter = after;
-            } else if (!charAfter.equals(after)) {
-              badAfter = true;
-            }
-          }
-        }
-        List<PatternElement> elts = new ArrayList<PatternElement>();
-        if (!badBefore) {
-          elts.add(new PatternElement(PatternType.BEFORE, charBefore));
-        }
-        if (!badAfter) {
-          elts.add(new PatternElement(PatternType.AFTER, charAfter));
-        }
-        Pattern matchPattern = new Pattern(morphChange.base, elts);
-        LogInfo.logss("Pattern for " + morphChange.toString() + ": " + matchPattern);
+      if (changesToRecompute != null && !changesToRecompute.contains(morphChange) && priorPatterns.containsKey(morphChange)) {
+        morphChangeFilterPatterns.put(morphChange, priorPatterns.get(morphChange));
+      } else if (useMatchFiltering) {
+        Pattern matchPattern = computeMatchPattern(morphChange, extractedModel.extractedMorphChanges.get(morphChange));
+        LogInfo.logss(Level.DEBUG, "Pattern for %s: %s", morphChange, matchPattern);
         morphChangeFilterPatterns.put(morphChange, matchPattern);
       }
       else {
@@ -75,6 +58,44 @@ public class ChangeFilterer {
     }
   }
   
+  private static Pattern computeMatchPattern(MorphChange morphChange, Set<AnchoredMorphChange> occurrences) {
+    Glyph charBefore = null;
+    boolean badBefore = false;
+    Glyph charAfter = null;
+    boolean badAfter = false;
+    for (AnchoredMorphChange change : occurrences) {
+      Form form = change.spanAppliedTo.form;
+      Glyph before = form.charAtOrBoundary(change.spanAppliedTo.start - 1);
+      Glyph after = form.charAtOrBoundary(change.spanAppliedTo.end);
+      if (!badBefore) {
+        if (charBefore == null) {
+          charBefore = before;
+        } else if (!charBefore.equals(before)) {
+          badBefore = true;
+        }
+      }
+      if (!badAfter) {
+        if (charAfter == null) {
+          charAfter = after;
+        } else if (!charAfter.equals(after)) {
+          badAfter = true;
+        }
+      }
+    }
+    List<PatternElement> elts = new ArrayList<PatternElement>();
+    if (!badBefore) {
+      elts.add(new PatternElement(PatternType.BEFORE, charBefore));
+    }
+    if (!badAfter) {
+      elts.add(new PatternElement(PatternType.AFTER, charAfter));
+    }
+    return new Pattern(morphChange.base, elts);
+  }
+  
+  public boolean hasFilterPattern(MorphChange morphChange) {
+    return morphChangeFilterPatterns.containsKey(morphChange);
+  }
+  
   public Pattern getFilterPattern(MorphChange morphChange) {
     return morphChangeFilterPatterns.get(morphChange);
   }
@@ -1,20 +1,32 @@
 package edu.berkeley.nlp.morph;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
+import edu.berkeley.nlp.morph.fig.CharEncUtils;
 import edu.berkeley.nlp.morph.fig.Execution;
 import edu.berkeley.nlp.morph.fig.IOUtils;
 import edu.berkeley.nlp.morph.fig.LogInfo;
 import edu.berkeley.nlp.morph.fig.Option;
-import edu.berkeley.nlp.morph.util.GUtil;
+import edu.berkeley.nlp.morph.fig.StopWatch;
+import edu.berkeley.nlp.morph.util.Metrics;
 
 /**
  * Main class for the morphological prediction system described in
@@ -34,7 +46,8 @@ import edu.berkeley.nlp.morph.util.GUtil;
  * dataset accompanying the paper.
  * --Train forms to use (predictTrainFormsPath). One form per line as in the train/dev/test splits
  * of the wiktionary-morphology dataset.
- * --Forms to predict on (predictTestFormsPath). One form per line.
+ * --Forms to predict on (predictTestFormsPath). One form per line; "-" reads them from stdin.
+ * They're streamed through the predictor, so there can be any number of them.
  * --Where to write the predictions to (predictOutputPath)
  * 
  * Additionally, you can evaluate against gold-standard data if the test forms are also
@@ -71,7 +84,7 @@ public class Driver implements Runnable {
   @Option(gloss = "Path to file containing base forms to train on. Each form must be present in the inflexicon.")
   public static String predictTrainFormsPath = "";
 
-  @Option(gloss = "Path to file containing base forms to test on")
+  @Option(gloss = "Path to file containing base forms to test on (- to read them from stdin)")
   public static String predictTestFormsPath = "";
 
   @Option(gloss = "Path to file where we will write predictions")
@@ -80,8 +93,24 @@ public class Driver implements Runnable {
   @Option(gloss = "Should we evaluate our predictions? If so, the inflexicon must contain each form in the test set.")
   public static boolean predictEvaluate = false;
   
+  @Option(gloss = "Number of test forms handed to the predictor at once; up to twice numThreads batches " +
+          "are held in memory while being decoded and written")
+  public static int predictBatchSize = 500;
+  
   @Option(gloss = "Should we print the extracted changes?")
   public static boolean printExtractedChanges = false;
+
+  @Option(gloss = "Directory for binary snapshots of the analyzed training data, reused across runs " +
+          "on the same data and alignment settings (empty to always recompute)")
+  public static String extractedModelCacheDir = "";
+
+  @Option(gloss = "Path to save the trained JOINT model to, along with the cached analyses and features " +
+          "needed to warm-start retraining from it (empty to not save)")
+  public static String saveModelPath = "";
+
+  @Option(gloss = "Path to a JOINT model saved with saveModelPath; training tables it has already seen are not " +
+          "re-analyzed or re-featurized, and training starts from its weights")
+  public static String warmStartModelPath = "";
   
   // WIKTIONARY PARAMS
   
@@ -97,7 +126,7 @@ public class Driver implements Runnable {
   @Option(gloss = "Run final test on Wiktionary data")
   public static boolean wiktionaryTest = false;
 
-  @Option(gloss = "Number of Wiktionary training examples to use (-1 for all)")
+  @Option(gloss = "Number of Wiktionary training examples to use (-1 for all); the first ones listed in the base_forms_*_train.txt file are used")
   public static int wiktionaryTrainSize = -1;
   
   // DREYER EISNER PARAMS
@@ -111,7 +140,7 @@ public class Driver implements Runnable {
   @Option(gloss = "Number of training instances to use for Dreyer and Eisner, comma-separated, no spaces")
   public static String dreyerEisnerSampleIndices = "0";
 
-  @Option(gloss = "Run a short Dreyer-Eisner experiment (only 500 test examples)")
+  @Option(gloss = "Run a short Dreyer-Eisner experiment (only the first 500 test examples in the test file)")
   public static boolean dreyerEisnerShortExper = false;
   
   // GENERAL MODEL PARAMETERS
@@ -145,18 +174,85 @@ public class Driver implements Runnable {
   		" generally a good idea, speeds things up dramatically and even improves accuracy)")
   public static boolean useMatchFiltering = true;
   
+  @Option(gloss = "Number of threads to use for featurizing JOINT training sequences")
+  public static int numThreads = 1;
+  
+  @Option(gloss = "Number of featurized context windows the JOINT model caches, for rule and for null span " +
+          "features each (0 to not cache)")
+  public static int featureCacheSize = 10000;
+  
+  @Option(gloss = "Number of predictions the JOINT model caches, by lemma and attribute set, for workloads " +
+          "that keep asking for the same lemmas (0 to not cache)")
+  public static int decodeCacheSize = 0;
+
+  @Option(gloss = "During JOINT training, drop non-gold changes from the lattice once their expected count " +
+          "has been below this for trainPrunePatience LBFGS iterations (0 to never prune)")
+  public static double trainPruneThreshold = 0;
+
+  @Option(gloss = "Number of LBFGS iterations before lattice pruning starts")
+  public static int trainPruneWarmup = 5;
+
+  @Option(gloss = "Number of consecutive LBFGS iterations a change's expected count must be below " +
+          "trainPruneThreshold before it's pruned")
+  public static int trainPrunePatience = 3;
+
+  @Option(gloss = "How often (in LBFGS iterations) pruned changes are rescored and put back into " +
+          "the lattice if their expected count has risen above trainPruneThreshold")
+  public static int trainPruneRecheckInterval = 5;
+
+  @Option(gloss = "JOINT model: maximum number of anchored changes in the lattice for a single lemma, keeping " +
+          "the changes extracted most often in training (0 for no cap)")
+  public static int decodeMaxCandidates = 0;
+
+  @Option(gloss = "JOINT model: time allowed for decoding a single lemma before falling back to the baseline's " +
+          "prediction (0 for no limit)")
+  public static long decodeBudgetMillis = 0;
+
+  @Option(gloss = "ORACLE model: maximum number of search states to expand for a single lemma")
+  public static int oracleMaxSearchStates = 1000000;
+
   @Option(gloss = "Perform a token-based evaluation similar to that of Dreyer and Eisner 2011, Appendix G")
   public static boolean evaluateWithLm = false;
 
   @Option(gloss = "Path to LM directory; only used for token-level evaluation (not discussed in the paper)")
   public static String lmDirectoryPath = "./data/lm/";
-  
+
+  @Option(gloss = "Read the LM from <lang>.lm.bin, written from the text LM by MappedLm, which is memory-mapped " +
+          "rather than loaded")
+  public static boolean useBinaryLm = false;
+
+  @Option(gloss = "When reading a text LM for Wiktionary data, only keep counts for words that appear in the " +
+          "data (the only ones token-level evaluation uses)")
+  public static boolean lmStreamingJoin = false;
+  
+  @Option(gloss = "CASCADE model: minimum baseline confidence (the smallest share of its pattern's training " +
+          "applications that each applied change accounts for) for the baseline's prediction to be accepted " +
+          "without full JOINT decoding")
+  public static double cascadeThreshold = 1.0;
+
+  @Option(gloss = "CASCADE model: comma-separated thresholds to sweep on a dev split held out of the training " +
+          "set; the fastest one within cascadeMaxAccuracyLoss of JOINT alone replaces cascadeThreshold (empty to " +
+          "train on everything and use cascadeThreshold as is)")
+  public static String cascadeSweepThresholds = "";
+
+  @Option(gloss = "CASCADE model: fraction of the training set held out as the dev split when sweeping thresholds")
+  public static double cascadeDevFraction = 0.1;
+
+  @Option(gloss = "CASCADE model: largest drop in dev accuracy relative to JOINT alone allowed when sweeping thresholds")
+  public static double cascadeMaxAccuracyLoss = 0.0;
+
+  @Option(gloss = "Write counters, gauges, and histograms collected during the run to this file as JSON (empty for none)")
+  public static String metricsOutputPath = "";
+
+  @Option(gloss = "Serve the metrics in Prometheus text format at http://localhost:<port>/metrics while running (0 for no server)")
+  public static int metricsPort = 0;
+
   public static enum Mode {
     WIKTIONARY, DREYER_EISNER, PREDICT;
   }
 
   public static enum ModelType {
-    BASELINE, ORACLE, FACTORED, JOINT;
+    BASELINE, ORACLE, FACTORED, JOINT, CASCADE;
   }
   
   public static void main(String[] args) {
@@ -165,6 +261,9 @@ public class Driver implements Runnable {
   }
   
   public void run() {
+    if (metricsPort > 0) {
+      Metrics.startServer(metricsPort);
+    }
     if (exper == Mode.WIKTIONARY) {
       runWiktionary();
     } else if (exper == Mode.DREYER_EISNER) {
@@ -175,29 +274,43 @@ public class Driver implements Runnable {
       throw new RuntimeException(exper + " is not a valid experiment name; " +
       		"must be WIKTIONARY or DREYER_EISNER");
     }
+    if (!metricsOutputPath.isEmpty()) {
+      Metrics.writeJson(metricsOutputPath);
+    }
   }
   
   
   public void runPredict() {
-    // Read in the inflection data and the forms to use
-    List<ParadigmInstance> instances = ParadigmInstanceReader.readParadigmInstancesWiktionary(predictInflectedDataPath);
+    // Read in the forms to use and then only the inflection tables for those forms. Test
+    // forms are streamed through the predictor later; their tables are only needed for
+    // evaluation (or by the oracle).
+    boolean needTestTables = predictEvaluate || modelType == ModelType.ORACLE;
+    if (needTestTables && predictTestFormsPath.equals("-")) {
+      throw new RuntimeException("Test forms must be read from a file to evaluate or run the oracle, not from stdin");
+    }
     List<String> trainForms = IOUtils.readLinesHard(predictTrainFormsPath);
-    List<String> testForms = IOUtils.readLinesHard(predictTestFormsPath);
+    List<String> testForms = (needTestTables ? IOUtils.readLinesHard(predictTestFormsPath) : new ArrayList<String>());
+    Set<String> trainFormsSet = new HashSet<String>(trainForms);
+    Set<String> testFormsSet = new HashSet<String>(testForms);
+    Set<String> formsToRead = new HashSet<String>(trainFormsSet);
+    formsToRead.addAll(testFormsSet);
+    List<ParadigmInstance> instances = ParadigmInstanceReader.readParadigmInstancesWiktionary(predictInflectedDataPath, formsToRead);
     List<ParadigmInstance> trainInstances = new ArrayList<ParadigmInstance>();
     Map<Form,ParadigmInstance> testInstances = new HashMap<Form,ParadigmInstance>();
     for (ParadigmInstance instance : instances) {
       String formString = instance.baseForm().toString();
-      if (trainForms.contains(formString)) {
+      if (trainFormsSet.contains(formString)) {
         trainInstances.add(instance);
-      } else if (testForms.contains(formString)) {
+      } else if (testFormsSet.contains(formString)) {
         Form testForm = new Form(formString);
         testInstances.put(testForm, instance);
       }
     }
-    LogInfo.logss(trainForms.size() + " train forms loaded, " + testForms.size() + " test forms loaded");
+    LogInfo.logss(trainForms.size() + " train forms loaded, " + testForms.size() + " test forms loaded for evaluation");
     LogInfo.logss(trainInstances.size() + " tables allocated to training set, " + testInstances.size() + " tables allocated to test set");
     // Analyze the training examples to extract morphological change rules
-    ExtractedModel model = ExtractedModel.extractChanges(trainInstances, alignmentType);
+    JointModelState priorState = readPriorModelState();
+    ExtractedModel model = extractTrainingChanges(trainInstances, priorState);
     if (printExtractedChanges) {
       model.printModel();
     }
@@ -206,39 +319,70 @@ public class Driver implements Runnable {
     if (modelType == ModelType.BASELINE) {
       finalPredictor = new BaselinePredictor(model);
     } else if (modelType == ModelType.ORACLE) {
-      finalPredictor = new OraclePredictor(model);
+      finalPredictor = new OraclePredictor(model, oracleMaxSearchStates);
     } else if (modelType == ModelType.JOINT) {
-      JointSpanMatchingPredictor jointPredictor = new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist), new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist));
+      JointSpanMatchingPredictor jointPredictor = new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist), new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist), priorState);
       jointPredictor.train();
-      finalPredictor = jointPredictor;
+      if (!saveModelPath.isEmpty()) {
+        jointPredictor.save(saveModelPath);
+      }
+      // The training lattices aren't needed for streaming decoding
+      jointPredictor.discardTrainSequences();
+      finalPredictor = applyDecodingBudget(model, jointPredictor);
+    } else if (modelType == ModelType.CASCADE) {
+      finalPredictor = trainCascadePredictor(model, trainInstances);
     } else {
       throw new RuntimeException("Unrecognized model type: " + modelType);
     }
-    // Make predictions on the test paradigms and write output
+    // Stream the test forms through the predictor, writing and evaluating predictions as they come out
     PrintWriter output = IOUtils.openOutHard(predictOutputPath);
-    List<ParadigmHypothesis> predictedTestInstances = new ArrayList<ParadigmHypothesis>();
-    List<ParadigmInstance> orderedTestInstances = new ArrayList<ParadigmInstance>();
-    for (int i = 0; i < testForms.size(); i++) {
-      GUtil.logsEveryN("Decoding", 500);
-      Form testForm = new Form(testForms.get(i));
-      ParadigmHypothesis prediction = finalPredictor.predict(testForm, trainInstances.get(0).getAttrSetSorted(), testInstances.get(testForm));
-      if (predictEvaluate) {
-        assert testInstances.get(testForm) != null;
-        orderedTestInstances.add(testInstances.get(testForm));
-      }
-      predictedTestInstances.add(prediction);
-      ParadigmInstanceWriter.writeParadigmInstance(prediction.predictedInstance, output);
+    final Map<Form,ParadigmInstance> testInstancesFinal = testInstances;
+    final EvaluationResults results = (predictEvaluate ? new EvaluationResults(model) : null);
+    PredictionPipeline.Listener<AnalyzedParadigmInstance> evaluator = null;
+    if (predictEvaluate) {
+      evaluator = new PredictionPipeline.Listener<AnalyzedParadigmInstance>() {
+        @Override
+        public AnalyzedParadigmInstance prepare(Form baseForm, ParadigmHypothesis hypothesis) {
+          // Analyzing the gold table is most of the cost of evaluation, so it happens on the decoding threads
+          ParadigmInstance goldInstance = testInstancesFinal.get(baseForm);
+          assert goldInstance != null : "No gold table for " + baseForm;
+          AnalyzedParadigmInstance goldInstanceAnalyzed = new AnalyzedParadigmInstance(goldInstance);
+          goldInstanceAnalyzed.analyze(alignmentType);
+          goldInstanceAnalyzed.extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS);
+          return goldInstanceAnalyzed;
+        }
+        
+        @Override
+        public void hypothesisWritten(Form baseForm, ParadigmHypothesis hypothesis, AnalyzedParadigmInstance goldInstanceAnalyzed) {
+          results.addInstance(hypothesis, goldInstanceAnalyzed);
+        }
+      };
     }
+    StopWatch decodeWatch = new StopWatch("decode").start();
+    PredictionPipeline pipeline = new PredictionPipeline(finalPredictor, trainInstances.get(0).getAttrSetSorted(), (needTestTables ? testInstances : null),
+                                                         predictBatchSize, numThreads, 2 * Math.max(1, numThreads));
+    int numPredicted = pipeline.run(openTestForms(), output, evaluator);
     output.close();
-    LogInfo.logss("Output written to " + predictOutputPath);
+    decodeWatch.stop();
+    LogInfo.logss(numPredicted + " predictions written to " + predictOutputPath);
+    logPredictorStats(finalPredictor);
     // Print evaluation results
     if (predictEvaluate) {
-      ExtractedModel extractedGoldModel = ExtractedModel.extractChanges(orderedTestInstances, alignmentType);
-      EvaluationResults results = new EvaluationResults(model, predictedTestInstances, extractedGoldModel.analyzedInstances);
       LogInfo.logss("RESULTS:\n" + results.renderLong());
     }
   }
   
+  private static BufferedReader openTestForms() {
+    if (!predictTestFormsPath.equals("-")) {
+      return IOUtils.openInHard(predictTestFormsPath);
+    }
+    try {
+      return CharEncUtils.getReader(System.in);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
   /////////////////////////////////////////////////////////////////////////////////////
   // The following modes/methods are useful for reproducing results in the paper
   // and feature additional options/printing/etc., but rely on some hard-coded
@@ -261,9 +405,12 @@ public class Driver implements Runnable {
   
   public EvaluationResults runWiktionary(String wiktionaryLang, String wiktionaryPos) {
     String inflexPath = wiktionaryPath + "/inflections_" + wiktionaryLang + "_" + wiktionaryPos + ".csv";
-    List<ParadigmInstance> instances = ParadigmInstanceReader.readParadigmInstancesWiktionary(inflexPath);
-    List<String> trainForms = IOUtils.readLinesHard(wiktionaryPath + "/base_forms_" + wiktionaryLang + "_" + wiktionaryPos + "_train.txt");
-    List<String> testForms = IOUtils.readLinesHard(wiktionaryPath + "/base_forms_" + wiktionaryLang + "_" + wiktionaryPos + (wiktionaryTest ? "_test.txt" : "_dev.txt"));
+    List<String> trainFormsList = IOUtils.readLinesHard(wiktionaryPath + "/base_forms_" + wiktionaryLang + "_" + wiktionaryPos + "_train.txt");
+    Set<String> trainForms = new HashSet<String>(trainFormsList);
+    Set<String> testForms = new HashSet<String>(IOUtils.readLinesHard(wiktionaryPath + "/base_forms_" + wiktionaryLang + "_" + wiktionaryPos + (wiktionaryTest ? "_test.txt" : "_dev.txt")));
+    Set<String> formsToRead = new HashSet<String>(trainForms);
+    formsToRead.addAll(testForms);
+    List<ParadigmInstance> instances = ParadigmInstanceReader.readParadigmInstancesWiktionary(inflexPath, formsToRead);
     List<ParadigmInstance> trainInstances = new ArrayList<ParadigmInstance>();
     List<ParadigmInstance> testInstances = new ArrayList<ParadigmInstance>();
     for (ParadigmInstance instance : instances) {
@@ -275,11 +422,11 @@ public class Driver implements Runnable {
     }
     LmHandler lm = null;
     if (evaluateWithLm) {
-      lm = new LmHandler(lmDirectoryPath + "/" + wiktionaryLang + ".lm");
+      lm = loadLm(lmDirectoryPath + "/" + wiktionaryLang + ".lm", instances);
     }
     LogInfo.logss(trainInstances.size() + " train instances read in, " + testInstances.size() + " test instances read in");
     if (wiktionaryTrainSize != -1) {
-      trainInstances = trainInstances.subList(0, Math.min(wiktionaryTrainSize, trainInstances.size()));
+      trainInstances = takeFirstInOrder(trainFormsList, trainInstances, wiktionaryTrainSize);
     }
     LogInfo.logss(trainInstances.size() + " train instances being used");
     if (modelType == ModelType.FACTORED) {
@@ -289,6 +436,29 @@ public class Driver implements Runnable {
     }
   }
   
+  /**
+   * @return Up to n of the instances, taken in the order their base forms are listed in forms,
+   * so that a training subset doesn't depend on the order the tables were read in
+   */
+  private static List<ParadigmInstance> takeFirstInOrder(List<String> forms, List<ParadigmInstance> instances, int n) {
+    Map<String,ParadigmInstance> instancesByForm = new HashMap<String,ParadigmInstance>();
+    for (ParadigmInstance instance : instances) {
+      instancesByForm.put(instance.baseForm().toString(), instance);
+    }
+    List<ParadigmInstance> firstInstances = new ArrayList<ParadigmInstance>();
+    for (String form : forms) {
+      if (firstInstances.size() >= n) {
+        break;
+      }
+      // remove() so that a form listed twice is only taken once
+      ParadigmInstance instance = instancesByForm.remove(form);
+      if (instance != null) {
+        firstInstances.add(instance);
+      }
+    }
+    return firstInstances;
+  }
+  
   public void runDreyerEisner() {
     List<String> trainSizesToRun = Arrays.asList(dreyerEisnerTrainSizes.split(","));
     List<String> sampleIndicesToRun = Arrays.asList(dreyerEisnerSampleIndices.split(","));
@@ -296,7 +466,8 @@ public class Driver implements Runnable {
     LogInfo.logss("Running on indices: " + sampleIndicesToRun.toString());
     LmHandler lm = null;
     if (evaluateWithLm) {
-      lm = new LmHandler(lmDirectoryPath + "/de.lm");
+      // The data isn't read until each experiment runs, so there's nothing to join against
+      lm = loadLm(lmDirectoryPath + "/de.lm", null);
     }
     for (String trainSizeStr : trainSizesToRun) {
       EvaluationResults overallResults = new EvaluationResults();
@@ -331,68 +502,93 @@ public class Driver implements Runnable {
   }
   
   public EvaluationResults learnAndEvaluateModel(List<ParadigmInstance> trainInstances, List<ParadigmInstance> testInstances, LmHandler lm) {
-    ExtractedModel model = ExtractedModel.extractChanges(trainInstances, alignmentType);
+    JointModelState priorState = readPriorModelState();
+    ExtractedModel model = extractTrainingChanges(trainInstances, priorState);
     model.printModel();
     Predictor finalPredictor;
+    List<ParadigmHypothesis> trainHypotheses = null;
     if (modelType == ModelType.BASELINE) {
       finalPredictor = new BaselinePredictor(model);
     } else if (modelType == ModelType.ORACLE) {
-      finalPredictor = new OraclePredictor(model);
+      finalPredictor = new OraclePredictor(model, oracleMaxSearchStates);
     } else if (modelType == ModelType.JOINT) {
-      JointSpanMatchingPredictor jointPredictor = new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist), new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist));
+      JointSpanMatchingPredictor jointPredictor = new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist), new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist), priorState);
       jointPredictor.train();
-      finalPredictor = jointPredictor;
+      if (!saveModelPath.isEmpty()) {
+        jointPredictor.save(saveModelPath);
+      }
+      finalPredictor = applyDecodingBudget(model, jointPredictor);
+      if (finalPredictor == jointPredictor) {
+        // Decode the lattices already featurized for training instead of building them again
+        trainHypotheses = jointPredictor.predictTrainInstances();
+        assert trainHypotheses.size() == trainInstances.size();
+      }
+      jointPredictor.discardTrainSequences();
+    } else if (modelType == ModelType.CASCADE) {
+      finalPredictor = trainCascadePredictor(model, trainInstances);
     } else {
       throw new RuntimeException("Unrecognized model type: " + modelType);
     }
     // Compute and print train accuracy
+    if (trainHypotheses == null) {
+      trainHypotheses = predictBatch(finalPredictor, trainInstances);
+    }
     List<ParadigmInstance> trainPredictions = new ArrayList<ParadigmInstance>();
-    GUtil.logsEveryNReset();
-    for (int i = 0; i < trainInstances.size(); i++) {
-      GUtil.logsEveryN("Decoding", 500);
-      ParadigmInstance trainInst = trainInstances.get(i);
-      Form trainForm = trainInst.baseForm();
-      trainPredictions.add(finalPredictor.predict(trainForm, trainInst.getAttrSetSorted(), trainInst).predictedInstance);
+    for (ParadigmHypothesis hypothesis : trainHypotheses) {
+      trainPredictions.add(hypothesis.predictedInstance);
     }
     LogInfo.logss("RESULTS (TRAIN): " + new EvaluationResults(trainPredictions, trainInstances).renderShort());
 //    System.exit(0);
-    List<ParadigmHypothesis> pred = new ArrayList<ParadigmHypothesis>();
-    GUtil.logsEveryNReset();
-    for (int i = 0; i < testInstances.size(); i++) {
-      GUtil.logsEveryN("Decoding", 500);
-      ParadigmInstance testInst = testInstances.get(i);
-      Form testForm = testInst.baseForm();
-      pred.add(finalPredictor.predict(testForm, testInst.getAttrSetSorted(), testInst));
-    }
+    List<ParadigmHypothesis> pred = predictBatch(finalPredictor, testInstances);
 //    LogInfo.logss(finalPredictor.renderPruningStats());
+    logPredictorStats(finalPredictor);
     // Learn what gold changes fired on the test examples
-    ExtractedModel extractedGoldModel = ExtractedModel.extractChanges(testInstances, alignmentType);
+    List<AnalyzedParadigmInstance> goldAnalyzedInstances = ExtractedModel.analyzeInstances(testInstances, alignmentType);
     if (evaluateWithLm) {
       lmEvaluateHyps(lm, pred, testInstances, trainInstances);
     }
-    return new EvaluationResults(model, pred, extractedGoldModel.analyzedInstances);
+    return new EvaluationResults(model, pred, goldAnalyzedInstances);
   }
   
   public EvaluationResults learnAndEvaluateModelFactored(List<ParadigmInstance> trainInstances, List<ParadigmInstance> testInstances, LmHandler lm) {
     SortedMap<Attributes,List<ParadigmInstance>> trainInstancesSplit = splitParadigmInstances(trainInstances);
     SortedMap<Attributes,List<ParadigmInstance>> testInstancesSplit = splitParadigmInstances(testInstances);
+    // All the matchers share featurizers, so each test lemma's context is only computed once
+    AnchoredSpanFeaturizer ruleFeaturizer = new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist);
+    AnchoredSpanFeaturizer nullFeaturizer = new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist);
+    List<LemmaContext> testContexts = new ArrayList<LemmaContext>();
+    for (ParadigmInstance testInstance : testInstances) {
+      testContexts.add(new LemmaContext(testInstance.baseForm(), ruleFeaturizer, nullFeaturizer));
+    }
+    // Each matcher decodes the test set in the background while the next one trains. At
+    // most numThreads matchers are decoding or waiting to, so only that many trained
+    // matchers (plus the one training) are live at once.
+    ExecutorService decodeExecutor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    Semaphore decodePermits = new Semaphore(Math.max(1, numThreads));
+    List<Future<List<ParadigmInstance>>> predictionFutures = new ArrayList<Future<List<ParadigmInstance>>>();
     List<List<ParadigmInstance>> predictionsSplitUp = new ArrayList<List<ParadigmInstance>>();
     LogInfo.logss("Learning factored matchers for " + trainInstancesSplit.keySet().size() + " attributes");
-    for (Attributes attrs : trainInstancesSplit.keySet()) {
-      List<ParadigmInstance> trainInstancesTheseAttrs = trainInstancesSplit.get(attrs);
-      List<ParadigmInstance> testInstancesTheseAttrs = testInstancesSplit.get(attrs);
-      ExtractedModel model = ExtractedModel.extractChanges(trainInstancesTheseAttrs, alignmentType);
-      JointSpanMatchingPredictor predictor = new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist), new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist));
-      predictor.train();
-      LogInfo.logss("Learned factored matcher for attributes: " + attrs);
-      List<ParadigmInstance> predictedInstances = new ArrayList<ParadigmInstance>();
-      GUtil.logsEveryNReset();
-      for (int i = 0; i < testInstancesTheseAttrs.size(); i++) {
-        ParadigmInstance testInstanceTheseAttrs = testInstancesTheseAttrs.get(i);
-        Form testForm = testInstanceTheseAttrs.baseForm();
-        predictedInstances.add(predictor.predict(testForm, testInstanceTheseAttrs.getAttrSetSorted(), null).predictedInstance);
+    try {
+      for (Attributes attrs : trainInstancesSplit.keySet()) {
+        List<ParadigmInstance> trainInstancesTheseAttrs = trainInstancesSplit.get(attrs);
+        List<ParadigmInstance> testInstancesTheseAttrs = testInstancesSplit.get(attrs);
+        ExtractedModel model = ExtractedModel.extractChanges(trainInstancesTheseAttrs, alignmentType);
+        JointSpanMatchingPredictor predictor = new JointSpanMatchingPredictor(model, ruleFeaturizer, nullFeaturizer);
+        predictor.train();
+        predictor.discardTrainSequences();
+        LogInfo.logss("Learned factored matcher for attributes: " + attrs);
+        decodePermits.acquire();
+        predictionFutures.add(decodeExecutor.submit(new FactoredDecodeTask(predictor, testInstancesTheseAttrs, testContexts, decodePermits)));
+      }
+      for (Future<List<ParadigmInstance>> predictionFuture : predictionFutures) {
+        predictionsSplitUp.add(predictionFuture.get());
       }
-      predictionsSplitUp.add(predictedInstances);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      decodeExecutor.shutdown();
     }
     List<ParadigmInstance> predictedInstances = mergeAllParadigmInstances(predictionsSplitUp);
     assert predictedInstances.size() == testInstances.size();
@@ -402,6 +598,169 @@ public class Driver implements Runnable {
     return new EvaluationResults(predictedInstances, testInstances);
   }
   
+  /**
+   * Decodes the test set with one slot's trained matcher, then drops the matcher and
+   * releases its permit so that another can be submitted.
+   */
+  private static class FactoredDecodeTask implements Callable<List<ParadigmInstance>> {
+    private JointSpanMatchingPredictor predictor;
+    private final List<ParadigmInstance> testInstances;
+    private final List<LemmaContext> testContexts;
+    private final Semaphore decodePermits;
+    
+    /**
+     * @param testInstances The single-slot test instances for the predictor's slot, in the
+     * same order as testContexts, whose lemma contexts are shared by all the slots' predictors
+     * @param decodePermits Released once the decode is done; the caller must have acquired it
+     */
+    public FactoredDecodeTask(JointSpanMatchingPredictor predictor, List<ParadigmInstance> testInstances,
+                              List<LemmaContext> testContexts, Semaphore decodePermits) {
+      this.predictor = predictor;
+      this.testInstances = testInstances;
+      this.testContexts = testContexts;
+      this.decodePermits = decodePermits;
+    }
+    
+    @Override
+    public List<ParadigmInstance> call() {
+      try {
+        List<ParadigmInstance> predictedInstances = new ArrayList<ParadigmInstance>();
+        if (testContexts.isEmpty()) {
+          return predictedInstances;
+        }
+        assert testInstances.size() == testContexts.size();
+        for (ParadigmHypothesis hypothesis : predictor.predictBatch(testContexts, testInstances.get(0).getAttrSetSorted())) {
+          predictedInstances.add(hypothesis.predictedInstance);
+        }
+        return predictedInstances;
+      } finally {
+        predictor = null;
+        decodePermits.release();
+      }
+    }
+  }
+  
+  /**
+   * Predicts the paradigms of all the given instances' base forms in one batch; the
+   * instances serve as gold (for the oracle) and must all have the same attributes.
+   */
+  private static List<ParadigmHypothesis> predictBatch(Predictor predictor, List<ParadigmInstance> instances) {
+    if (instances.isEmpty()) {
+      return new ArrayList<ParadigmHypothesis>();
+    }
+    List<Form> baseForms = new ArrayList<Form>();
+    for (ParadigmInstance instance : instances) {
+      assert instance.getAttrSetSorted().equals(instances.get(0).getAttrSetSorted());
+      baseForms.add(instance.baseForm());
+    }
+    return predictor.predictBatch(baseForms, instances.get(0).getAttrSetSorted(), instances);
+  }
+  
+  /**
+   * @return The JOINT predictor, wrapped so as to enforce decodeMaxCandidates and
+   * decodeBudgetMillis if either is set
+   */
+  private static Predictor applyDecodingBudget(ExtractedModel model, JointSpanMatchingPredictor jointPredictor) {
+    if (decodeMaxCandidates <= 0 && decodeBudgetMillis <= 0) {
+      return jointPredictor;
+    }
+    return new BudgetedPredictor(new BaselinePredictor(model), jointPredictor, decodeMaxCandidates, decodeBudgetMillis);
+  }
+  
+  private static void logPredictorStats(Predictor predictor) {
+    if (predictor instanceof CascadePredictor) {
+      LogInfo.logss(((CascadePredictor)predictor).renderStats());
+    } else if (predictor instanceof BudgetedPredictor) {
+      LogInfo.logss(((BudgetedPredictor)predictor).renderStats());
+    } else if (predictor instanceof OraclePredictor) {
+      LogInfo.logss(((OraclePredictor)predictor).renderStats());
+    }
+  }
+  
+  /**
+   * If there are thresholds to sweep, both stages are first trained on all but a dev split
+   * of trainInstances, the threshold is tuned on that split, and both are then retrained
+   * on all of trainInstances.
+   * 
+   * @param model Extracted from all of trainInstances
+   */
+  private static CascadePredictor trainCascadePredictor(ExtractedModel model, List<ParadigmInstance> trainInstances) {
+    if (cascadeSweepThresholds.isEmpty()) {
+      return newCascadePredictor(model, cascadeThreshold);
+    }
+    // Spread the dev split evenly over the training set, which is often sorted
+    List<ParadigmInstance> fitInstances = new ArrayList<ParadigmInstance>();
+    List<ParadigmInstance> devInstances = new ArrayList<ParadigmInstance>();
+    for (int i = 0; i < trainInstances.size(); i++) {
+      if ((int)((i + 1) * cascadeDevFraction) > (int)(i * cascadeDevFraction)) {
+        devInstances.add(trainInstances.get(i));
+      } else {
+        fitInstances.add(trainInstances.get(i));
+      }
+    }
+    if (devInstances.isEmpty() || fitInstances.isEmpty()) {
+      throw new RuntimeException("cascadeDevFraction " + cascadeDevFraction + " leaves no " + (devInstances.isEmpty() ? "dev" : "training") +
+                                 " instances out of " + trainInstances.size());
+    }
+    LogInfo.logss("Holding out " + devInstances.size() + "/" + trainInstances.size() + " training instances to tune the cascade threshold");
+    CascadePredictor devPredictor = newCascadePredictor(extractTrainingChanges(fitInstances, null), cascadeThreshold);
+    String[] thresholdStrs = cascadeSweepThresholds.split(",");
+    double[] thresholds = new double[thresholdStrs.length];
+    for (int i = 0; i < thresholdStrs.length; i++) {
+      thresholds[i] = Double.parseDouble(thresholdStrs[i]);
+    }
+    devPredictor.tuneThreshold(devInstances, thresholds, cascadeMaxAccuracyLoss);
+    return newCascadePredictor(model, devPredictor.getConfidenceThreshold());
+  }
+  
+  private static CascadePredictor newCascadePredictor(ExtractedModel model, double confidenceThreshold) {
+    JointSpanMatchingPredictor jointPredictor = new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(ruleFeaturesNgramOrder, ruleFeaturesMaxDist), new AnchoredSpanFeaturizer(nullFeaturesNgramOrder, nullFeaturesMaxDist));
+    jointPredictor.train();
+    jointPredictor.discardTrainSequences();
+    return new CascadePredictor(new BaselinePredictor(model), jointPredictor, confidenceThreshold);
+  }
+  
+  /**
+   * @return The saved model to warm-start the JOINT model from, or null to train from scratch
+   */
+  private static JointModelState readPriorModelState() {
+    if (modelType != ModelType.JOINT || warmStartModelPath.isEmpty()) {
+      return null;
+    }
+    return JointModelState.read(warmStartModelPath);
+  }
+  
+  private static ExtractedModel extractTrainingChanges(List<ParadigmInstance> trainInstances, JointModelState priorState) {
+    if (priorState != null) {
+      return priorState.extractChanges(trainInstances, alignmentType);
+    } else {
+      return ExtractedModel.extractChanges(trainInstances, alignmentType);
+    }
+  }
+  
+  /**
+   * @param instances If non-null and lmStreamingJoin is set, only counts for the base and
+   * inflected forms of these instances are kept
+   */
+  private static LmHandler loadLm(String lmPath, List<ParadigmInstance> instances) {
+    if (useBinaryLm) {
+      return LmHandler.readBinary(lmPath + ".bin");
+    }
+    if (!lmStreamingJoin || instances == null) {
+      return new LmHandler(lmPath);
+    }
+    Set<String> wordsToKeep = new HashSet<String>();
+    for (ParadigmInstance instance : instances) {
+      wordsToKeep.add(instance.baseForm().toString());
+      for (Attributes attrs : instance.getAttrSetSorted()) {
+        for (Form inflForm : instance.getAllInflForms(attrs)) {
+          wordsToKeep.add(inflForm.toString());
+        }
+      }
+    }
+    return new LmHandler(lmPath, 0, wordsToKeep);
+  }
+  
   public static void lmEvaluateHyps(LmHandler lm, List<ParadigmHypothesis> predHypotheses, List<ParadigmInstance> goldInstances, List<ParadigmInstance> freqEstimationInstances) {
     List<ParadigmInstance> predInstances = new ArrayList<ParadigmInstance>();
     for (ParadigmHypothesis predHyp : predHypotheses) {
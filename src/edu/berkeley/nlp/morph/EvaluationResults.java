@@ -2,13 +2,14 @@ package edu.berkeley.nlp.morph;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import edu.berkeley.nlp.morph.util.Counter;
-import edu.berkeley.nlp.morph.util.CounterMap;
 import edu.berkeley.nlp.morph.util.GUtil;
-import edu.berkeley.nlp.morph.util.Iterators;
+import edu.berkeley.nlp.morph.util.OpenAddressCounter;
+import edu.berkeley.nlp.morph.util.OpenAddressCounterMap;
 
 /**
  * Sufficient statistics for all accuracy output and error analysis. Can be aggregated across
@@ -20,6 +21,9 @@ import edu.berkeley.nlp.morph.util.Iterators;
  */
 public class EvaluationResults {
 
+  // Number of error examples kept per change; renderLong() shows this many
+  public static final int MAX_ERROR_EXAMPLES = 10;
+  
   public double numTemplatesCorrect = 0;
   public double numTemplates = 0;
   public double numTemplatesAchievable = 0;
@@ -31,32 +35,50 @@ public class EvaluationResults {
   public double numFormsCorrectAllowStars = 0;
   public double numFormsAllowStars = 0;
   
-  public Counter<MorphChange> correctChangesCounts = new Counter<MorphChange>();
-  public Counter<MorphChange> predChangesCounts = new Counter<MorphChange>();
-  public Counter<MorphChange> goldChangesCounts = new Counter<MorphChange>();
+  public OpenAddressCounter<MorphChange> correctChangesCounts = new OpenAddressCounter<MorphChange>();
+  public OpenAddressCounter<MorphChange> predChangesCounts = new OpenAddressCounter<MorphChange>();
+  public OpenAddressCounter<MorphChange> goldChangesCounts = new OpenAddressCounter<MorphChange>();
+  // Number of errors on each change, and the base forms of the first MAX_ERROR_EXAMPLES of them
+  public OpenAddressCounter<MorphChange> precErrorCounts = new OpenAddressCounter<MorphChange>();
+  public OpenAddressCounter<MorphChange> recErrorCounts = new OpenAddressCounter<MorphChange>();
   public Map<MorphChange,List<Form>> precErrors = new HashMap<MorphChange,List<Form>>();
   public Map<MorphChange,List<Form>> recErrors = new HashMap<MorphChange,List<Form>>();
   
-  public CounterMap<MorphChange,MorphChange> precChangeConfusions = new CounterMap<MorphChange,MorphChange>();
-  public CounterMap<MorphChange,MorphChange> recChangeConfusions = new CounterMap<MorphChange,MorphChange>();
-  public CounterMap<MorphChange,String> precErrorEvents = new CounterMap<MorphChange,String>();
-  public CounterMap<MorphChange,String> recErrorEvents = new CounterMap<MorphChange,String>();
+  public OpenAddressCounterMap<MorphChange,MorphChange> precChangeConfusions = new OpenAddressCounterMap<MorphChange,MorphChange>();
+  public OpenAddressCounterMap<MorphChange,MorphChange> recChangeConfusions = new OpenAddressCounterMap<MorphChange,MorphChange>();
+  public OpenAddressCounterMap<MorphChange,String> precErrorEvents = new OpenAddressCounterMap<MorphChange,String>();
+  public OpenAddressCounterMap<MorphChange,String> recErrorEvents = new OpenAddressCounterMap<MorphChange,String>();
+  
+  // Changes the model used for prediction can apply; only set for evaluating hypotheses
+  // against analyzed instances
+  private final Set<MorphChange> changesInModelCapacity;
   
   public EvaluationResults() {
+    this.changesInModelCapacity = null;
+  }
+  
+  /**
+   * Starts empty; add each prediction with addInstance(), e.g. as they stream out of the
+   * decoder, so that neither predictions nor gold instances have to be kept around.
+   */
+  public EvaluationResults(ExtractedModel modelUsedForPrediction) {
+    this.changesInModelCapacity = new HashSet<MorphChange>(modelUsedForPrediction.getChangesInModelCapacity());
   }
   
   public EvaluationResults(List<ParadigmInstance> predictions, List<ParadigmInstance> gold) {
+    this.changesInModelCapacity = null;
     for (int i = 0; i < predictions.size(); i++) {
       ParadigmInstance predInstance = predictions.get(i);
       ParadigmInstance goldInstance = gold.get(i);
       boolean allCorrect = true;
       boolean hasStars = false;
-      for (Attributes attrs : predInstance.getAttrSetSorted()) {
-        Form predForm = predInstance.getInflForm(attrs);
-//        Form goldForm = goldInstance.getInflForm(attrs);
-        List<Form> goldForms = goldInstance.getAllInflForms(attrs);
+      assert predInstance.getSchema() == goldInstance.getSchema();
+      for (int slot = 0; slot < predInstance.getSchema().size(); slot++) {
+        Form predForm = predInstance.getInflForm(slot);
+//        Form goldForm = goldInstance.getInflForm(slot);
+        List<Form> goldForms = goldInstance.getAllInflForms(slot);
         boolean correct = false;
-        if (!goldInstance.isStar(attrs)) {
+        if (!goldInstance.isStar(slot)) {
 //          correct = predForm.equals(goldForm);
           correct = goldForms.contains(predForm);
           if (correct) {
@@ -95,98 +117,109 @@ public class EvaluationResults {
   public EvaluationResults(ExtractedModel modelUsedForPrediction,
                            List<ParadigmHypothesis> pred,
                            List<AnalyzedParadigmInstance> goldAnalyzed) {
-    List<MorphChange> changesInModelCapacity = modelUsedForPrediction.getChangesInModelCapacity();
+    this(modelUsedForPrediction);
     assert pred.size() == goldAnalyzed.size();
     GUtil.logsEveryNReset();
     for (int i = 0; i < pred.size(); i++) {
       GUtil.logsEveryN("Evaluating", 500);
-      ParadigmHypothesis predResult = pred.get(i);
-      ParadigmInstance predInstance = predResult.predictedInstance;
-      List<AnchoredMorphChange> predChanges = predResult.appliedChanges;
-      AnalyzedParadigmInstance goldInstanceAnalyzed = goldAnalyzed.get(i);
-      ParadigmInstance goldInstance = goldInstanceAnalyzed.inst;
-      List<AnchoredMorphChange> goldChanges = goldAnalyzed.get(i).extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS);
-      boolean allCorrect = true;
-      boolean hasStars = false;
-      for (Attributes attrs : predInstance.getAttrSetSorted()) {
-        Form predForm = predInstance.getInflForm(attrs);
-//        Form goldForm = goldInstance.getInflForm(attrs);
-        List<Form> goldForms = goldInstance.getAllInflForms(attrs);
-        boolean correct = false;
-        if (!goldInstance.isStar(attrs)) {
+      goldAnalyzed.get(i).extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS);
+      addInstance(pred.get(i), goldAnalyzed.get(i));
+    }
+  }
+  
+  /**
+   * Adds one prediction, made by the model this was constructed with, to the results.
+   * Changes must already have been extracted from the gold instance (with
+   * extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS)), which lets callers do
+   * that expensive part on other threads.
+   */
+  public void addInstance(ParadigmHypothesis predResult, AnalyzedParadigmInstance goldInstanceAnalyzed) {
+    assert changesInModelCapacity != null : "Construct with the model used for prediction to add analyzed instances";
+    ParadigmInstance predInstance = predResult.predictedInstance;
+    List<AnchoredMorphChange> predChanges = predResult.appliedChanges;
+    ParadigmInstance goldInstance = goldInstanceAnalyzed.inst;
+    List<AnchoredMorphChange> goldChanges = goldInstanceAnalyzed.getCachedChanges();
+    boolean allCorrect = true;
+    boolean hasStars = false;
+    assert predInstance.getSchema() == goldInstance.getSchema();
+    for (int slot = 0; slot < predInstance.getSchema().size(); slot++) {
+      Form predForm = predInstance.getInflForm(slot);
+//        Form goldForm = goldInstance.getInflForm(slot);
+      List<Form> goldForms = goldInstance.getAllInflForms(slot);
+      boolean correct = false;
+      if (!goldInstance.isStar(slot)) {
 //          correct = predForm.equals(goldForm);
-          correct = goldForms.contains(predForm);
-          if (correct) {
-            numFormsCorrect++;
-          }
-          numForms++;
-        } else {
-          hasStars = true;
-          correct = true;
-        }
-        allCorrect = allCorrect && correct;
+        correct = goldForms.contains(predForm);
         if (correct) {
-          numFormsCorrectAllowStars++;
+          numFormsCorrect++;
         }
-        numFormsAllowStars++;
+        numForms++;
+      } else {
+        hasStars = true;
+        correct = true;
       }
-      if (!hasStars) {
-        if (allCorrect) {
-          numTemplatesCorrect++;
-        }
-        numTemplates++;
+      allCorrect = allCorrect && correct;
+      if (correct) {
+        numFormsCorrectAllowStars++;
       }
+      numFormsAllowStars++;
+    }
+    if (!hasStars) {
       if (allCorrect) {
-        numTemplatesCorrectAllowStars++;
+        numTemplatesCorrect++;
       }
-      numTemplatesAllowStars++;
-      // Precision / recall / F1 over individual changes
-      // Only track changes on non-starred onces, since otherwise they're meaningless
-      if (!hasStars) {
-        boolean achievable = true;
-        for (AnchoredMorphChange change : predChanges) {
-          predChangesCounts.incrementCount(change.change, 1.0);
-          if (goldChanges.contains(change)) {
-            correctChangesCounts.incrementCount(change.change, 1.0);
-          } else {
-            addError(precErrors, change.change, goldInstance.baseForm());
-            // Analyze the precision error
-            // Why did we predict this? Was it because we predicted at a non-leaf?
-            // Was it because the score was too low?
-            boolean scoredAtLeaf = change.spanAppliedTo.scoredAtLeaf;
-            precErrorEvents.incrementCount(change.change, "scoredAtLeaf? " + scoredAtLeaf, 1.0);
-            // Who did we confuse this with?
-            List<AnchoredMorphChange> confusions = change.getConflictingChanges(goldInstanceAnalyzed.extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS));
-            precErrorEvents.incrementCount(change.change, "numConfusions = " + confusions.size(), 1.0);
-            if (confusions.size() == 1) {
-              precChangeConfusions.incrementCount(change.change, confusions.get(0).change, 1.0);
-            }
+      numTemplates++;
+    }
+    if (allCorrect) {
+      numTemplatesCorrectAllowStars++;
+    }
+    numTemplatesAllowStars++;
+    // Precision / recall / F1 over individual changes
+    // Only track changes on non-starred onces, since otherwise they're meaningless
+    if (!hasStars) {
+      boolean achievable = true;
+      for (AnchoredMorphChange change : predChanges) {
+        predChangesCounts.incrementCount(change.change, 1.0);
+        if (goldChanges.contains(change)) {
+          correctChangesCounts.incrementCount(change.change, 1.0);
+        } else {
+          addError(precErrorCounts, precErrors, change.change, goldInstance.baseForm());
+          // Analyze the precision error
+          // Why did we predict this? Was it because we predicted at a non-leaf?
+          // Was it because the score was too low?
+          boolean scoredAtLeaf = change.spanAppliedTo.scoredAtLeaf;
+          precErrorEvents.incrementCount(change.change, "scoredAtLeaf? " + scoredAtLeaf, 1.0);
+          // Who did we confuse this with?
+          List<AnchoredMorphChange> confusions = change.getConflictingChanges(goldInstanceAnalyzed.extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS));
+          precErrorEvents.incrementCount(change.change, "numConfusions = " + confusions.size(), 1.0);
+          if (confusions.size() == 1) {
+            precChangeConfusions.incrementCount(change.change, confusions.get(0).change, 1.0);
           }
         }
-        for (AnchoredMorphChange change : goldChanges) {
-          goldChangesCounts.incrementCount(change.change, 1.0);
-          if (!predChanges.contains(change)) {
-            addError(recErrors, change.change, goldInstance.baseForm());
-            // Analyze the recall error
-            // Why did we miss this? Was it predicted at a non-leaf?
-            // Did it have a high enough score to pass the threshold?
-            boolean scoreTooLow = predResult.scoredProposedChanges.getCount(change) < 1.0;
-            recErrorEvents.incrementCount(change.change, "scoreTooLow? " + scoreTooLow, 1.0);
-            // Who did we confuse this with?
-            List<AnchoredMorphChange> confusions = change.getConflictingChanges(predResult.appliedChanges);
-            recErrorEvents.incrementCount(change.change, "numConfusions = " + confusions.size(), 1.0);
-            if (confusions.size() == 1) {
-              recChangeConfusions.incrementCount(change.change, confusions.get(0).change, 1.0);
-            }
-          }
-          if (!changesInModelCapacity.contains(change.change)) {
-            achievable = false;
+      }
+      for (AnchoredMorphChange change : goldChanges) {
+        goldChangesCounts.incrementCount(change.change, 1.0);
+        if (!predChanges.contains(change)) {
+          addError(recErrorCounts, recErrors, change.change, goldInstance.baseForm());
+          // Analyze the recall error
+          // Why did we miss this? Was it predicted at a non-leaf?
+          // Did it have a high enough score to pass the threshold?
+          boolean scoreTooLow = predResult.scoredProposedChanges.getCount(change) < 1.0;
+          recErrorEvents.incrementCount(change.change, "scoreTooLow? " + scoreTooLow, 1.0);
+          // Who did we confuse this with?
+          List<AnchoredMorphChange> confusions = change.getConflictingChanges(predResult.appliedChanges);
+          recErrorEvents.incrementCount(change.change, "numConfusions = " + confusions.size(), 1.0);
+          if (confusions.size() == 1) {
+            recChangeConfusions.incrementCount(change.change, confusions.get(0).change, 1.0);
           }
         }
-        if (achievable) {
-          numTemplatesAchievable++;
+        if (!changesInModelCapacity.contains(change.change)) {
+          achievable = false;
         }
       }
+      if (achievable) {
+        numTemplatesAchievable++;
+      }
     }
   }
   
@@ -222,28 +255,28 @@ public class EvaluationResults {
     if (isLong) {
       result += "Change P/R/F1:\n";
       int numOneOffErrors = 0;
-      for (MorphChange change : Iterators.able(goldChangesCounts.asPriorityQueue())) {
+      for (MorphChange change : goldChangesCounts.getSortedKeys()) {
         double correctThisChange = this.correctChangesCounts.getCount(change);
         double predictedThisChange = this.predChangesCounts.getCount(change);
         double goldThisChange = this.goldChangesCounts.getCount(change);
         double prec = (predictedThisChange > 0 ? correctThisChange/predictedThisChange : 0);
         double rec = correctThisChange/goldThisChange;
         double f1 = (prec + rec == 0 ? 0 : 2 * prec * rec/(prec + rec));
+        int numPrecErrorsThisChange = (int)precErrorCounts.getCount(change);
+        int numRecErrorsThisChange = (int)recErrorCounts.getCount(change);
         List<Form> precErrorsThisChange = (precErrors.get(change) == null ? new ArrayList<Form>() : precErrors.get(change));
         List<Form> recErrorsThisChange = (recErrors.get(change) == null ? new ArrayList<Form>() : recErrors.get(change));
-        if (precErrorsThisChange.size() == 0 && recErrorsThisChange.size() <= 5) {
+        if (numPrecErrorsThisChange == 0 && numRecErrorsThisChange <= 5) {
           numOneOffErrors++;
         }
         else {
           result += "  " + change.toString() + ":\n";
           result += "  " + renderRatio(correctThisChange, predictedThisChange) + ", " +
               renderRatio(correctThisChange, goldThisChange) + ", " + f1 + "\n";
-          result += "    Precision errors = " + precErrorsThisChange.size() + ": " +
-              precErrorsThisChange.subList(0, Math.min(10, precErrorsThisChange.size())) + "\n";
+          result += "    Precision errors = " + numPrecErrorsThisChange + ": " + precErrorsThisChange + "\n";
           result += "    Precision error events: " + precErrorEvents.getCounter(change).toString() + "\n";
           result += "    Precision confusions (should have picked X instead): " + precChangeConfusions.getCounter(change).toString() + "\n";
-          result += "    Recall errors = " + recErrorsThisChange.size() + ": " +
-              recErrorsThisChange.subList(0, Math.min(10, recErrorsThisChange.size())) + "\n";
+          result += "    Recall errors = " + numRecErrorsThisChange + ": " + recErrorsThisChange + "\n";
           result += "    Recall error events: " + recErrorEvents.getCounter(change).toString() + "\n";
           result += "    Recall confusions (should have picked me instead): " + recChangeConfusions.getCounter(change).toString() + "\n";
         }
@@ -253,11 +286,14 @@ public class EvaluationResults {
     return result;
   }
   
-  public void addError(Map<MorphChange,List<Form>> errors, MorphChange change, Form error) {
+  public void addError(OpenAddressCounter<MorphChange> errorCounts, Map<MorphChange,List<Form>> errors, MorphChange change, Form error) {
+    errorCounts.incrementCount(change, 1.0);
     if (!errors.containsKey(change)) {
       errors.put(change, new ArrayList<Form>());
     }
-    errors.get(change).add(error);
+    if (errors.get(change).size() < MAX_ERROR_EXAMPLES) {
+      errors.get(change).add(error);
+    }
   }
   
   public String renderRatio(double numer, double denom) {
@@ -10,6 +10,8 @@ import java.util.Set;
 
 import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
 import edu.berkeley.nlp.morph.fig.LogInfo;
+import edu.berkeley.nlp.morph.fig.LogInfo.Level;
+import edu.berkeley.nlp.morph.fig.StopWatch;
 import edu.berkeley.nlp.morph.fig.StrUtils;
 import edu.berkeley.nlp.morph.util.Counter;
 import edu.berkeley.nlp.morph.util.GUtil;
@@ -47,9 +49,30 @@ public class ExtractedModel {
    * @return
    */
   public static ExtractedModel extractChanges(List<ParadigmInstance> paradigmInstances, AlignmentType alignmentType) {
+    return fromAnalyzedInstances(analyzeInstances(paradigmInstances, alignmentType));
+  }
+  
+  /**
+   * Aligns the instances and extracts their changes without building a model from them;
+   * the changes aren't interned, so this is what to use for gold tables that are only
+   * analyzed for evaluation.
+   */
+  public static List<AnalyzedParadigmInstance> analyzeInstances(List<ParadigmInstance> paradigmInstances, AlignmentType alignmentType) {
+    // Reuse the analysis from an earlier run on the same data if we have it
+    ExtractedModelSnapshot snapshot = null;
+    if (!Driver.extractedModelCacheDir.isEmpty()) {
+      snapshot = new ExtractedModelSnapshot(Driver.extractedModelCacheDir, paradigmInstances, alignmentType);
+      long nanoTime = System.nanoTime();
+      List<AnalyzedParadigmInstance> analyzedInstances = snapshot.read(paradigmInstances);
+      if (analyzedInstances != null) {
+        LogInfo.logss("Analysis and extraction restored from " + snapshot.getFile() + " in " +
+                      (System.nanoTime() - nanoTime)/1000000 + " millis");
+        return analyzedInstances;
+      }
+    }
     // First, analyze the instances
     List<AnalyzedParadigmInstance> analyzedInstances = new ArrayList<AnalyzedParadigmInstance>();
-    long nanoTime = System.nanoTime();
+    StopWatch watch = new StopWatch("extractChanges").start();
     GUtil.logsEveryNReset();
     for (ParadigmInstance instance : paradigmInstances) {
       GUtil.logsEveryN("Analyzing", 500);
@@ -57,14 +80,40 @@ public class ExtractedModel {
       analyzedInstance.analyze(alignmentType);
       analyzedInstances.add(analyzedInstance);
     }
-    LogInfo.logss("Analysis in " + (System.nanoTime() - nanoTime)/1000000 + " millis");
+    LogInfo.logss("Analysis in " + watch.getCurrTimeLong() + " millis");
     // Now extract the changes.
-    Map<MorphChange,Set<AnchoredMorphChange>> morphChanges = new HashMap<MorphChange,Set<AnchoredMorphChange>>();
     GUtil.logsEveryNReset();
     for (AnalyzedParadigmInstance instance : analyzedInstances) {
       GUtil.logsEveryN("Extracting", 500);
-      List<AnchoredMorphChange> extractedChanges = instance.extractAndCacheChanges(COLLAPSE_ADJACENT_SPANS);
-      for (AnchoredMorphChange extractedChange : extractedChanges) {
+      instance.extractAndCacheChanges(COLLAPSE_ADJACENT_SPANS);
+    }
+    LogInfo.logss("Extraction in " + watch.stop().ms + " millis");
+    if (snapshot != null) {
+      snapshot.write(analyzedInstances);
+      LogInfo.logss("Analysis and extraction written to " + snapshot.getFile());
+    }
+    return analyzedInstances;
+  }
+  
+  /**
+   * Builds a model from instances that have already been analyzed and had their
+   * changes extracted (or restored). The instances' changes are interned, since they
+   * live as long as the model.
+   */
+  public static ExtractedModel fromAnalyzedInstances(List<AnalyzedParadigmInstance> analyzedInstances) {
+    for (AnalyzedParadigmInstance instance : analyzedInstances) {
+      instance.internCachedChanges();
+    }
+    return new ExtractedModel(analyzedInstances, collectChanges(analyzedInstances));
+  }
+  
+  /**
+   * Groups the changes cached on each instance by the MorphChange they represent.
+   */
+  private static Map<MorphChange,Set<AnchoredMorphChange>> collectChanges(List<AnalyzedParadigmInstance> analyzedInstances) {
+    Map<MorphChange,Set<AnchoredMorphChange>> morphChanges = new HashMap<MorphChange,Set<AnchoredMorphChange>>();
+    for (AnalyzedParadigmInstance instance : analyzedInstances) {
+      for (AnchoredMorphChange extractedChange : instance.getCachedChanges()) {
         MorphChange change = extractedChange.change;
         if (!morphChanges.containsKey(change)) {
           morphChanges.put(change, new HashSet<AnchoredMorphChange>());
@@ -72,8 +121,7 @@ public class ExtractedModel {
         morphChanges.get(change).add(extractedChange);
       }
     }
-    LogInfo.logss("Extraction in " + (System.nanoTime() - nanoTime)/1000000 + " millis");
-    return new ExtractedModel(analyzedInstances, morphChanges);
+    return morphChanges;
   }
   
   public List<MorphChange> getChangesInModelCapacity() {
@@ -81,6 +129,9 @@ public class ExtractedModel {
   }
   
   public void printModel() {
+    if (!LogInfo.isEnabled(Level.INFO)) {
+      return;
+    }
     Counter<MorphChange> occurrenceCounts = new Counter<MorphChange>();
     int numAboveTwo = 0;
     int numAboveThree = 0;
@@ -94,31 +145,31 @@ public class ExtractedModel {
         numAboveThree++;
       }
     }
-    String ret = "==============\n";
-    ret += "Found " + extractedMorphChanges.size() + " changes, " + numAboveTwo
-        + " occurred in >=2 forms, " + numAboveThree + " in >=3\n";
+    StringBuilder ret = new StringBuilder("==============\n");
+    ret.append("Found " + extractedMorphChanges.size() + " changes, " + numAboveTwo
+        + " occurred in >=2 forms, " + numAboveThree + " in >=3\n");
     for (MorphChange key : Iterators.able(occurrenceCounts.asPriorityQueue())) {
-      ret += key.toString() + "\n";
-      String formsList = "";
+      ret.append(key.toString() + "\n");
+      StringBuilder formsList = new StringBuilder();
       int counter = 0;
       AnalyzedParadigmInstance firstInst = null;
       for (AnchoredMorphChange change : extractedMorphChanges.get(key)) {
         if (counter >= 100) {
           break;
         }
-        formsList += change.spanAppliedTo.form.toString() + ", ";
+        if (counter > 0) {
+          formsList.append(", ");
+        }
+        formsList.append(change.spanAppliedTo.form.toString());
         firstInst = change.instanceAppliedTo;
         counter++;
       }
-      if (firstInst != null) {
-        formsList = formsList.substring(0, formsList.length() - 2);
-      }
-      ret += "   found in " + extractedMorphChanges.get(key).size() + " forms, such as: " + formsList + "\n";
-      ret += firstInst.inst.toString();
-      ret += "--------------\n";
-      // Log everything up until here and clear the string or this will get really slow
+      ret.append("   found in " + extractedMorphChanges.get(key).size() + " forms, such as: " + formsList + "\n");
+      ret.append(firstInst.inst.toString());
+      ret.append("--------------\n");
+      // Log everything up until here and clear the buffer or this will get really slow
       LogInfo.logss(ret);
-      ret = "";
+      ret.setLength(0);
     }
     LogInfo.logss("==============");
   }
@@ -151,9 +202,11 @@ public class ExtractedModel {
     for (MorphChange morphChange : morphChangesToPrint) {
       table[0][col] = " (" + extractedMorphChanges.get(morphChange).size() + ")";
       row = 1;
-      for (Attributes attrs : morphChange.rewrite.keySet()) {
-        table[row][col] = morphChange.rewrite.get(attrs).toString();
-        row++;
+      for (int slot = 0; slot < morphChange.schema.size(); slot++) {
+        if (morphChange.getRewrite(slot) != null) {
+          table[row][col] = morphChange.getRewrite(slot).toString();
+          row++;
+        }
       }
       col++;
     }
@@ -0,0 +1,258 @@
+package edu.berkeley.nlp.morph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
+import edu.berkeley.nlp.morph.fig.LogInfo;
+
+/**
+ * Binary on-disk snapshot of the alignments and extracted spans for a list of
+ * AnalyzedParadigmInstances, so that repeated runs over the same training data
+ * (e.g. hyperparameter sweeps) only pay for alignment once. Snapshots are keyed by
+ * a hash of the training tables together with the alignment settings, so any change
+ * to either simply results in a new snapshot file.
+ *
+ * Layout (big-endian): magic, version, 20-byte key, number of instances, and then
+ * for each instance the number of forms, each form's ops as one byte per op, the
+ * number of changed spans, and each span's start and end.
+ *
+ * @author gdurrett
+ *
+ */
+public class ExtractedModelSnapshot {
+
+  public static final int MAGIC = 0x4d525048;
+  // Bump this whenever the layout or the alignment/extraction code changes
+  public static final int VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Operation[] OPS = Operation.values();
+
+  private final File file;
+  private final byte[] key;
+
+  public ExtractedModelSnapshot(String cacheDir, List<ParadigmInstance> paradigmInstances, AlignmentType alignmentType) {
+    this.key = computeKey(paradigmInstances, alignmentType);
+    this.file = new File(cacheDir, "extracted-" + toHex(key) + ".bin");
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Hashes the content of every table (base form, attributes, and all inflected forms)
+   * along with everything else that determines the alignments.
+   */
+  private static byte[] computeKey(List<ParadigmInstance> paradigmInstances, AlignmentType alignmentType) {
+    MessageDigest digest = newDigest();
+    updateDigest(digest, "v" + VERSION + "|" + alignmentType + "|" + ExtractedModel.COLLAPSE_ADJACENT_SPANS);
+    for (ParadigmInstance instance : paradigmInstances) {
+      updateDigest(digest, instance);
+    }
+    return digest.digest();
+  }
+  
+  /**
+   * @return A hash of the content of a single table
+   */
+  public static byte[] hashInstance(ParadigmInstance instance) {
+    MessageDigest digest = newDigest();
+    updateDigest(digest, instance);
+    return digest.digest();
+  }
+  
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  private static void updateDigest(MessageDigest digest, ParadigmInstance instance) {
+    updateDigest(digest, "\n" + instance.baseForm().toString());
+    for (Attributes attrs : instance.getAttrSetSorted()) {
+      updateDigest(digest, "\t" + attrs.toString());
+      for (Form inflForm : instance.getAllInflForms(attrs)) {
+        updateDigest(digest, "|" + inflForm.toString());
+      }
+    }
+  }
+
+  private static void updateDigest(MessageDigest digest, String str) {
+    digest.update(str.getBytes(UTF8));
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(Integer.toHexString((b >> 4) & 0xf)).append(Integer.toHexString(b & 0xf));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reads the snapshot back and restores its analyses onto fresh AnalyzedParadigmInstances
+   * for the given tables (which must be the ones the key was computed from).
+   * @return The analyzed instances, or null if there is no usable snapshot
+   */
+  public List<AnalyzedParadigmInstance> read(List<ParadigmInstance> paradigmInstances) {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.remaining() < 8 + key.length + 4 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+          LogInfo.logss("Ignoring snapshot with bad header: " + file);
+          return null;
+        }
+        byte[] fileKey = new byte[key.length];
+        buffer.get(fileKey);
+        int numInstances = buffer.getInt();
+        if (!Arrays.equals(fileKey, key) || numInstances != paradigmInstances.size()) {
+          LogInfo.logss("Ignoring snapshot that does not match the training data: " + file);
+          return null;
+        }
+        List<AnalyzedParadigmInstance> analyzedInstances = new ArrayList<AnalyzedParadigmInstance>();
+        for (ParadigmInstance instance : paradigmInstances) {
+          AnalyzedParadigmInstance analyzedInstance = readAnalysis(buffer, instance);
+          if (analyzedInstance == null) {
+            LogInfo.logss("Ignoring corrupt snapshot: " + file);
+            return null;
+          }
+          analyzedInstances.add(analyzedInstance);
+        }
+        return analyzedInstances;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Writes the snapshot to a temporary file and moves it into place, so concurrent
+   * runs never observe a partially-written snapshot.
+   * @param analyzedInstances Instances that have been analyzed and had their changes extracted
+   */
+  public void write(List<AnalyzedParadigmInstance> analyzedInstances) {
+    try {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (!dir.exists() && !dir.mkdirs()) {
+        throw new RuntimeException("Could not create snapshot directory " + dir);
+      }
+      File tmpFile = File.createTempFile("extracted-", ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(key);
+        out.writeInt(analyzedInstances.size());
+        for (AnalyzedParadigmInstance analyzedInstance : analyzedInstances) {
+          writeAnalysis(out, analyzedInstance);
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        tmpFile.delete();
+        throw new RuntimeException("Could not move snapshot into place at " + file);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the alignments and changed spans for one instance, as written by writeAnalysis().
+   * @return The restored instance, or null if the data is truncated, corrupt, or doesn't
+   * fit the instance
+   */
+  public static AnalyzedParadigmInstance readAnalysis(ByteBuffer buffer, ParadigmInstance instance) {
+    try {
+      Form baseForm = instance.baseForm();
+      int numForms = buffer.getInt();
+      if (numForms != instance.getAttrSetSorted().size()) {
+        return null;
+      }
+      List<List<Operation>> alignments = new ArrayList<List<Operation>>();
+      for (int i = 0; i < numForms; i++) {
+        int numOps = buffer.getInt();
+        if (numOps < 0 || numOps > buffer.remaining()) {
+          return null;
+        }
+        List<Operation> ops = new ArrayList<Operation>(numOps);
+        int srcLength = 0;
+        int trgLength = 0;
+        for (int j = 0; j < numOps; j++) {
+          int opIndex = buffer.get();
+          if (opIndex < 0 || opIndex >= OPS.length) {
+            return null;
+          }
+          Operation op = OPS[opIndex];
+          srcLength += (op != Operation.INSERT ? 1 : 0);
+          trgLength += (op != Operation.DELETE ? 1 : 0);
+          ops.add(op);
+        }
+        // The alignment has to cover exactly the base form and the inflected form
+        if (srcLength != baseForm.length() || trgLength != instance.getInflForm(i).length()) {
+          return null;
+        }
+        alignments.add(ops);
+      }
+      int numSpans = buffer.getInt();
+      if (numSpans < 0 || numSpans > buffer.remaining() / 8) {
+        return null;
+      }
+      List<AnchoredSpan> changedSpans = new ArrayList<AnchoredSpan>(numSpans);
+      for (int i = 0; i < numSpans; i++) {
+        int start = buffer.getInt();
+        int end = buffer.getInt();
+        if (start < 0 || start > end || end > baseForm.length()) {
+          return null;
+        }
+        changedSpans.add(new AnchoredSpan(baseForm, start, end));
+      }
+      AnalyzedParadigmInstance analyzedInstance = new AnalyzedParadigmInstance(instance);
+      analyzedInstance.restoreAnalysis(alignments, changedSpans);
+      return analyzedInstance;
+    } catch (BufferUnderflowException e) {
+      return null;
+    }
+  }
+
+  public static void writeAnalysis(DataOutputStream out, AnalyzedParadigmInstance analyzedInstance) throws IOException {
+    out.writeInt(analyzedInstance.getFormAlignments().size());
+    for (List<Operation> ops : analyzedInstance.getFormAlignments()) {
+      out.writeInt(ops.size());
+      for (Operation op : ops) {
+        out.writeByte(op.ordinal());
+      }
+    }
+    List<AnchoredMorphChange> changes = analyzedInstance.getCachedChanges();
+    out.writeInt(changes.size());
+    for (AnchoredMorphChange change : changes) {
+      out.writeInt(change.spanAppliedTo.start);
+      out.writeInt(change.spanAppliedTo.end);
+    }
+  }
+}
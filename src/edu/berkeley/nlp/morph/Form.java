@@ -5,17 +5,23 @@ import java.util.List;
 
 import edu.berkeley.nlp.morph.fig.ListUtils;
 import edu.berkeley.nlp.morph.util.GUtil;
+import edu.berkeley.nlp.morph.util.Interner;
 
 /**
  * Abstraction for a word form; we use this rather than Strings in case complex
  * character encoding nonsense has to be done with individual characters.
+ * Forms are immutable; the hash code is computed on first use and cached.
  * 
  * @author gdurrett
  *
  */
 public class Form implements Comparable<Form> {
 
+  private static final Interner<Form> internedForms = new Interner<Form>();
+  
   private final List<Glyph> glyphs;
+  // Zero until computed
+  private int hashCode;
   
   public Form(String str) {
     this.glyphs = new ArrayList<Glyph>();
@@ -24,6 +30,13 @@ public class Form implements Comparable<Form> {
     }
   }
   
+  public Form(char[] chars, int start, int end) {
+    this.glyphs = new ArrayList<Glyph>(end - start);
+    for (int i = start; i < end; i++) {
+      this.glyphs.add(new Glyph(chars[i]));
+    }
+  }
+  
   public Form(List<Glyph> glyphs) {
     this.glyphs = glyphs;
   }
@@ -67,17 +80,38 @@ public class Form implements Comparable<Form> {
     return new Form(newGlyphs);
   }
   
+  /**
+   * @return The canonical Form equal to this one, which doesn't share storage with the
+   * form it may have been taken as a substring of
+   */
+  public Form intern() {
+    Form canonical = internedForms.get(this);
+    if (canonical != null) {
+      return canonical;
+    }
+    return internedForms.intern(new Form(new ArrayList<Glyph>(glyphs)));
+  }
+  
   @Override
   public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
     if (other == null || !(other instanceof Form)) {
       return false;
     }
-    return this.glyphs.equals(((Form)other).glyphs);
+    Form rhs = (Form)other;
+    return this.hashCode() == rhs.hashCode() && this.glyphs.equals(rhs.glyphs);
   }
   
   @Override
   public int hashCode() {
-    return this.glyphs.hashCode();
+    int hc = hashCode;
+    if (hc == 0) {
+      hc = this.glyphs.hashCode();
+      hashCode = hc;
+    }
+    return hc;
   }
 
   @Override
@@ -5,7 +5,9 @@ import java.util.List;
 
 import edu.berkeley.nlp.morph.fig.LogInfo;
 import edu.berkeley.nlp.morph.fig.Pair;
+import edu.berkeley.nlp.morph.fig.StopWatch;
 import edu.berkeley.nlp.morph.util.CachingDifferentiableFunction;
+import edu.berkeley.nlp.morph.util.CallbackFunction;
 import edu.berkeley.nlp.morph.util.LBFGSMinimizer;
 
 /**
@@ -26,6 +28,20 @@ public class GeneralLogisticRegression {
     public boolean predictsCorrectly(double[] weights);
   }
   
+  /**
+   * Lets the examples change between LBFGS iterations, e.g. to prune their lattices.
+   */
+  public static interface IterationHook {
+    
+    /**
+     * @param numItrsDone Number of LBFGS iterations finished so far
+     * @param weights Weights at the end of the last iteration; must not be modified
+     * @return True if the objective changed, in which case it is recomputed at weights
+     * before the next iteration (LBFGS keeps its curvature estimates, so changes should be small)
+     */
+    public boolean afterIteration(int numItrsDone, double[] weights);
+  }
+  
   public void trainWeightsAdagradL1R(List<? extends Example> exs,
                                      double reg,
                                      double eta,
@@ -110,7 +126,20 @@ public class GeneralLogisticRegression {
                                    final double epsilon,
                                    final int numItrs,
                                    final double[] weights) {
-    CachingDifferentiableFunction diffFunc = new CachingDifferentiableFunction() {
+    trainWeightsLbfgsL2R(exs, reg, epsilon, numItrs, weights, null);
+  }
+  
+  /**
+   * @param hook If non-null, called at the end of every LBFGS iteration but the last (and
+   * never during line searches, so the objective doesn't change within one)
+   */
+  public void trainWeightsLbfgsL2R(final List<? extends Example> exs,
+                                   final double reg,
+                                   final double epsilon,
+                                   final int numItrs,
+                                   final double[] weights,
+                                   final IterationHook hook) {
+    final CachingDifferentiableFunction diffFunc = new CachingDifferentiableFunction() {
       
       private final double[] reusableGradientArr = new double[weights.length];
       
@@ -119,7 +148,7 @@ public class GeneralLogisticRegression {
       }
       
       public Pair<Double, double[]> calculate(double[] currWeights) {
-        long nanoTime = System.nanoTime();
+        StopWatch watch = new StopWatch("calculate").start();
         double objective = 0.0;
 //        double[] gradient = new double[currWeights.length];
         double[] gradient = reusableGradientArr;
@@ -151,11 +180,24 @@ public class GeneralLogisticRegression {
         LogInfo.logss("NORM OF WEIGHTS: " + norm);
         LogInfo.logss("TRAIN OBJECTIVE: " + objective);
         LogInfo.logss("TRAIN ACCURACY: " + computeAccuracy(exs, currWeights));
-        LogInfo.logss("TRAIN MILLIS: "+  (System.nanoTime() - nanoTime)/1000000);
+        LogInfo.logss("TRAIN MILLIS: "+  watch.stop().ms);
         return new Pair<Double, double[]>(negObjective, negGradient);
       }
     };
-    double[] finalWeights = new LBFGSMinimizer(numItrs).minimize(diffFunc, weights, epsilon, true);
+    final LBFGSMinimizer minimizer = new LBFGSMinimizer(numItrs);
+    if (hook != null) {
+      minimizer.setIterationCallbackFunction(new CallbackFunction() {
+        public void callback(Object... args) {
+          int numItrsDone = ((Integer)args[1]).intValue() + 1;
+          // Nothing would use the re-evaluated objective after the last iteration
+          if (numItrsDone < numItrs && hook.afterIteration(numItrsDone, (double[])args[0])) {
+            diffFunc.clearCache();
+            minimizer.setFunctionChanged();
+          }
+        }
+      });
+    }
+    double[] finalWeights = minimizer.minimize(diffFunc, weights, epsilon, true);
     for (int i = 0; i < finalWeights.length; i++) {
       weights[i] = finalWeights[i];
     }
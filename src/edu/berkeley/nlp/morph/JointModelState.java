@@ -0,0 +1,400 @@
+package edu.berkeley.nlp.morph;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
+import edu.berkeley.nlp.morph.JointSpanMatchingPredictor.Sequence;
+import edu.berkeley.nlp.morph.Pattern.PatternElement;
+import edu.berkeley.nlp.morph.fig.Indexer;
+import edu.berkeley.nlp.morph.fig.LogInfo;
+
+/**
+ * A trained JointSpanMatchingPredictor saved along with everything needed to retrain
+ * it incrementally when new tables arrive: the change and feature indices, the weights,
+ * the match filter patterns, and for each training table its content hash, its analysis
+ * (see ExtractedModelSnapshot), and its featurized Sequence. Tables that are unchanged in
+ * a later training set are restored from here instead of being re-aligned and
+ * re-featurized, and training starts from the saved weights.
+ *
+ * @author gdurrett
+ *
+ */
+public class JointModelState {
+
+  public static final int MAGIC = 0x4d4a4d53;
+  public static final int VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final PatternType[] PATTERN_TYPES = PatternType.values();
+
+  /**
+   * Features and match sites of one training table, as computed when the model was saved.
+   */
+  public static class CachedSequence {
+    public final int[] changeIndices;
+    public final int[] starts;
+    public final int[] ends;
+    public final List<int[]> featuresEachMorphChange;
+    public final List<int[]> featuresEachPreservation;
+
+    public CachedSequence(int[] changeIndices, int[] starts, int[] ends, List<int[]> featuresEachMorphChange, List<int[]> featuresEachPreservation) {
+      this.changeIndices = changeIndices;
+      this.starts = starts;
+      this.ends = ends;
+      this.featuresEachMorphChange = featuresEachMorphChange;
+      this.featuresEachPreservation = featuresEachPreservation;
+    }
+  }
+
+  private static class TableEntry {
+    public final byte[] hash;
+    public final int analysisOffset;
+    public final int sequenceOffset;
+
+    public TableEntry(byte[] hash, int analysisOffset, int sequenceOffset) {
+      this.hash = hash;
+      this.analysisOffset = analysisOffset;
+      this.sequenceOffset = sequenceOffset;
+    }
+  }
+
+  public final List<MorphChange> morphChanges;
+  public final List<String> features;
+  public final double[] weights;
+  private final Map<MorphChange,Pattern> patterns;
+  private final Map<MorphChange,Integer> occurrenceCounts;
+  private final Map<Form,TableEntry> tables;
+  private final ByteBuffer buffer;
+  // Tables from the current training set that matched a saved table
+  private final Set<Form> restoredTables;
+
+  private JointModelState(List<MorphChange> morphChanges, Map<MorphChange,Pattern> patterns, Map<MorphChange,Integer> occurrenceCounts,
+                          List<String> features, double[] weights, Map<Form,TableEntry> tables, ByteBuffer buffer) {
+    this.morphChanges = morphChanges;
+    this.patterns = patterns;
+    this.occurrenceCounts = occurrenceCounts;
+    this.features = features;
+    this.weights = weights;
+    this.tables = tables;
+    this.buffer = buffer;
+    this.restoredTables = new HashSet<Form>();
+  }
+
+  /**
+   * @return Everything that the saved features and analyses depend on; a saved state can
+   * only be used to warm-start training under the same settings.
+   */
+  public static String describeConfig() {
+    return "rankingFeats=" + Driver.rankingFeats + "|nullFeats=" + Driver.nullFeats +
+        "|rule=" + Driver.ruleFeaturesNgramOrder + "," + Driver.ruleFeaturesMaxDist +
+        "|null=" + Driver.nullFeaturesNgramOrder + "," + Driver.nullFeaturesMaxDist +
+        "|useMatchFiltering=" + Driver.useMatchFiltering + "|alignmentType=" + Driver.alignmentType +
+        "|collapse=" + ExtractedModel.COLLAPSE_ADJACENT_SPANS;
+  }
+
+  public Map<MorphChange,Pattern> getPatterns() {
+    return patterns;
+  }
+
+  /**
+   * Analyzes the given training tables, restoring the analysis of any table that is
+   * identical to one the saved model was trained on.
+   */
+  public ExtractedModel extractChanges(List<ParadigmInstance> paradigmInstances, AlignmentType alignmentType) {
+    List<AnalyzedParadigmInstance> analyzedInstances = new ArrayList<AnalyzedParadigmInstance>();
+    restoredTables.clear();
+    long nanoTime = System.nanoTime();
+    for (ParadigmInstance instance : paradigmInstances) {
+      AnalyzedParadigmInstance analyzedInstance = null;
+      TableEntry entry = tables.get(instance.baseForm());
+      if (entry != null && Arrays.equals(entry.hash, ExtractedModelSnapshot.hashInstance(instance))) {
+        analyzedInstance = ExtractedModelSnapshot.readAnalysis(bufferAt(entry.analysisOffset), instance);
+      }
+      if (analyzedInstance != null) {
+        restoredTables.add(instance.baseForm());
+      } else {
+        analyzedInstance = new AnalyzedParadigmInstance(instance);
+        analyzedInstance.analyze(alignmentType);
+        analyzedInstance.extractAndCacheChanges(ExtractedModel.COLLAPSE_ADJACENT_SPANS);
+      }
+      analyzedInstances.add(analyzedInstance);
+    }
+    LogInfo.logss(restoredTables.size() + " tables restored from saved model, " + (paradigmInstances.size() - restoredTables.size()) +
+                  " analyzed in " + (System.nanoTime() - nanoTime)/1000000 + " millis");
+    return ExtractedModel.fromAnalyzedInstances(analyzedInstances);
+  }
+
+  /**
+   * @return The changes whose filter patterns may differ from the saved ones: those extracted
+   * from tables that weren't restored, and those whose number of occurrences has changed.
+   */
+  public Set<MorphChange> getChangesToRecompute(ExtractedModel extractedModel) {
+    Set<MorphChange> changesToRecompute = new HashSet<MorphChange>();
+    for (AnalyzedParadigmInstance analyzedInstance : extractedModel.analyzedInstances) {
+      if (!restoredTables.contains(analyzedInstance.inst.baseForm())) {
+        for (AnchoredMorphChange change : analyzedInstance.getCachedChanges()) {
+          changesToRecompute.add(change.change);
+        }
+      }
+    }
+    for (MorphChange morphChange : extractedModel.extractedMorphChanges.keySet()) {
+      Integer priorCount = occurrenceCounts.get(morphChange);
+      if (priorCount == null || priorCount.intValue() != extractedModel.extractedMorphChanges.get(morphChange).size()) {
+        changesToRecompute.add(morphChange);
+      }
+    }
+    return changesToRecompute;
+  }
+
+  /**
+   * @return The saved features for this table, or null if it was not restored by extractChanges()
+   */
+  public CachedSequence getCachedSequence(ParadigmInstance instance) {
+    if (!restoredTables.contains(instance.baseForm())) {
+      return null;
+    }
+    ByteBuffer buffer = bufferAt(tables.get(instance.baseForm()).sequenceOffset);
+    int numChanges = buffer.getInt();
+    int[] changeIndices = new int[numChanges];
+    int[] starts = new int[numChanges];
+    int[] ends = new int[numChanges];
+    List<int[]> featuresEachMorphChange = new ArrayList<int[]>(numChanges);
+    for (int i = 0; i < numChanges; i++) {
+      changeIndices[i] = buffer.getInt();
+      starts[i] = buffer.getInt();
+      ends[i] = buffer.getInt();
+      featuresEachMorphChange.add(readInts(buffer));
+    }
+    int numPreservations = buffer.getInt();
+    List<int[]> featuresEachPreservation = new ArrayList<int[]>(numPreservations);
+    for (int i = 0; i < numPreservations; i++) {
+      featuresEachPreservation.add(readInts(buffer));
+    }
+    return new CachedSequence(changeIndices, starts, ends, featuresEachMorphChange, featuresEachPreservation);
+  }
+
+  private ByteBuffer bufferAt(int offset) {
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    return view;
+  }
+
+  /**
+   * @return The saved state, or null if it was saved under settings other than the
+   * current ones
+   */
+  public static JointModelState read(String path) {
+    long nanoTime = System.nanoTime();
+    try {
+      RandomAccessFile raf = new RandomAccessFile(path, "r");
+      ByteBuffer buffer;
+      try {
+        FileChannel channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        raf.close();
+      }
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new RuntimeException("Not a saved model: " + path);
+      }
+      String config = readString(buffer);
+      if (!config.equals(describeConfig())) {
+        LogInfo.logss("Not warm-starting from " + path + ", it was trained with " + config + " rather than " + describeConfig());
+        return null;
+      }
+      int numChanges = buffer.getInt();
+      List<MorphChange> morphChanges = new ArrayList<MorphChange>(numChanges);
+      Map<MorphChange,Pattern> patterns = new HashMap<MorphChange,Pattern>();
+      Map<MorphChange,Integer> occurrenceCounts = new HashMap<MorphChange,Integer>();
+      for (int i = 0; i < numChanges; i++) {
+        Form base = new Form(readString(buffer));
+        int numRewrites = buffer.getInt();
+        SortedMap<Attributes,Form> rewrite = new TreeMap<Attributes,Form>();
+        for (int j = 0; j < numRewrites; j++) {
+          Attributes attrs = ParadigmInstanceReader.parseAttrs(readString(buffer));
+          rewrite.put(attrs, new Form(readString(buffer)));
+        }
+        MorphChange morphChange = new MorphChange(base, rewrite).intern();
+        morphChanges.add(morphChange);
+        occurrenceCounts.put(morphChange, buffer.getInt());
+        int numPatternElts = buffer.getInt();
+        if (numPatternElts >= 0) {
+          List<PatternElement> elts = new ArrayList<PatternElement>(numPatternElts);
+          for (int j = 0; j < numPatternElts; j++) {
+            PatternType type = PATTERN_TYPES[buffer.get()];
+            elts.add(new PatternElement(type, new Glyph(buffer.getChar())));
+          }
+          patterns.put(morphChange, new Pattern(base, elts));
+        }
+      }
+      int numFeatures = buffer.getInt();
+      List<String> features = new ArrayList<String>(numFeatures);
+      for (int i = 0; i < numFeatures; i++) {
+        features.add(readString(buffer));
+      }
+      double[] weights = new double[buffer.getInt()];
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = buffer.getDouble();
+      }
+      int numTables = buffer.getInt();
+      Map<Form,TableEntry> tables = new HashMap<Form,TableEntry>();
+      for (int i = 0; i < numTables; i++) {
+        Form baseForm = new Form(readString(buffer));
+        byte[] hash = new byte[buffer.getInt()];
+        buffer.get(hash);
+        int analysisLength = buffer.getInt();
+        int analysisOffset = buffer.position();
+        buffer.position(analysisOffset + analysisLength);
+        int sequenceLength = buffer.getInt();
+        int sequenceOffset = buffer.position();
+        buffer.position(sequenceOffset + sequenceLength);
+        tables.put(baseForm, new TableEntry(hash, analysisOffset, sequenceOffset));
+      }
+      LogInfo.logss("Read saved model from " + path + " (" + numChanges + " changes, " + numFeatures + " features, " +
+                    numTables + " tables) in " + (System.nanoTime() - nanoTime)/1000000 + " millis");
+      return new JointModelState(morphChanges, patterns, occurrenceCounts, features, weights, tables, buffer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Saves a trained model. sequences must be the training sequences, in the same order
+   * as extractedModel.analyzedInstances.
+   */
+  public static void write(String path, Indexer<MorphChange> morphChangeIndexer, ChangeFilterer changeFilterer,
+                           ExtractedModel extractedModel, Indexer<String> featureIndexer, double[] weights, List<Sequence> sequences) {
+    assert sequences.size() == extractedModel.analyzedInstances.size();
+    try {
+      File file = new File(path).getAbsoluteFile();
+      File tmpFile = File.createTempFile("model-", ".tmp", file.getParentFile());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, describeConfig());
+        out.writeInt(morphChangeIndexer.size());
+        for (MorphChange morphChange : morphChangeIndexer) {
+          writeString(out, morphChange.base.toString());
+          out.writeInt(morphChange.numRewrites());
+          for (int slot = 0; slot < morphChange.schema.size(); slot++) {
+            if (morphChange.getRewrite(slot) != null) {
+              writeString(out, morphChange.schema.getAttrs(slot).toString());
+              writeString(out, morphChange.getRewrite(slot).toString());
+            }
+          }
+          Set<AnchoredMorphChange> occurrences = extractedModel.extractedMorphChanges.get(morphChange);
+          out.writeInt(occurrences == null ? 0 : occurrences.size());
+          // Changes carried over from an older model may no longer have a pattern
+          Pattern pattern = changeFilterer.getFilterPattern(morphChange);
+          if (pattern == null) {
+            out.writeInt(-1);
+          } else {
+            out.writeInt(pattern.patternElts.size());
+            for (PatternElement elt : pattern.patternElts) {
+              out.writeByte(elt.type.ordinal());
+              out.writeChar(elt.glyph.glyph);
+            }
+          }
+        }
+        out.writeInt(featureIndexer.size());
+        for (String feature : featureIndexer) {
+          writeString(out, feature);
+        }
+        out.writeInt(weights.length);
+        for (int i = 0; i < weights.length; i++) {
+          out.writeDouble(weights[i]);
+        }
+        out.writeInt(sequences.size());
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entryBytes);
+        for (int i = 0; i < sequences.size(); i++) {
+          AnalyzedParadigmInstance analyzedInstance = extractedModel.analyzedInstances.get(i);
+          Sequence sequence = sequences.get(i);
+          writeString(out, analyzedInstance.inst.baseForm().toString());
+          byte[] hash = ExtractedModelSnapshot.hashInstance(analyzedInstance.inst);
+          out.writeInt(hash.length);
+          out.write(hash);
+          entryBytes.reset();
+          ExtractedModelSnapshot.writeAnalysis(entryOut, analyzedInstance);
+          entryOut.flush();
+          out.writeInt(entryBytes.size());
+          entryBytes.writeTo(out);
+          entryBytes.reset();
+          entryOut.writeInt(sequence.possibleMorphChanges.size());
+          for (int j = 0; j < sequence.possibleMorphChanges.size(); j++) {
+            AnchoredMorphChange change = sequence.possibleMorphChanges.get(j);
+            entryOut.writeInt(morphChangeIndexer.indexOf(change.change));
+            entryOut.writeInt(change.spanAppliedTo.start);
+            entryOut.writeInt(change.spanAppliedTo.end);
+            writeInts(entryOut, sequence.featuresEachMorphChange.get(j));
+          }
+          entryOut.writeInt(sequence.featuresEachPreservation.size());
+          for (int[] feats : sequence.featuresEachPreservation) {
+            writeInts(entryOut, feats);
+          }
+          entryOut.flush();
+          out.writeInt(entryBytes.size());
+          entryBytes.writeTo(out);
+        }
+      } finally {
+        out.close();
+      }
+      if (file.exists() && !file.delete()) {
+        throw new RuntimeException("Could not replace " + file);
+      }
+      if (!tmpFile.renameTo(file)) {
+        tmpFile.delete();
+        throw new RuntimeException("Could not move saved model into place at " + file);
+      }
+      LogInfo.logss("Model saved to " + path);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    byte[] bytes = str.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+    out.writeInt(ints.length);
+    for (int i = 0; i < ints.length; i++) {
+      out.writeInt(ints[i]);
+    }
+  }
+
+  private static int[] readInts(ByteBuffer buffer) {
+    int[] ints = new int[buffer.getInt()];
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = buffer.getInt();
+    }
+    return ints;
+  }
+}
@@ -2,14 +2,42 @@ package edu.berkeley.nlp.morph;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+import edu.berkeley.nlp.morph.JointModelState.CachedSequence;
+import edu.berkeley.nlp.morph.fig.ConcurrentIndexer;
 import edu.berkeley.nlp.morph.fig.Indexer;
 import edu.berkeley.nlp.morph.fig.LogInfo;
+import edu.berkeley.nlp.morph.fig.Pair;
+import edu.berkeley.nlp.morph.fig.StopWatch;
 import edu.berkeley.nlp.morph.fig.SysInfoUtils;
+import edu.berkeley.nlp.morph.util.ClockCache;
 import edu.berkeley.nlp.morph.util.Counter;
+import edu.berkeley.nlp.morph.util.Metrics;
 import edu.berkeley.nlp.morph.util.SloppyMath;
+import edu.berkeley.nlp.morph.util.TinyLfuCache;
 
 /**
  * Full, JOINT predictor as described in Durrett and DeNero (2013). Feature set and
@@ -42,6 +70,8 @@ public class JointSpanMatchingPredictor implements Predictor {
     // Stores allowed changes over each span so that the dynamic program
     // can quickly check these.
     public final List<AnchoredMorphChange>[][] possibleChangesBySpan;
+    // Index into possibleMorphChanges of each entry of possibleChangesBySpan
+    private final List<Integer>[][] changeIndicesBySpan;
 
     // Gold preservations, *excluding glyphs that immediately follow morphological
     // changes* (these are always preserved and are handled differently)
@@ -49,6 +79,12 @@ public class JointSpanMatchingPredictor implements Predictor {
     // Cached features over preserved spans
     public final List<int[]> featuresEachPreservation;
     
+    // Coarse-to-fine pruning state during training (see Driver.trainPruneThreshold):
+    // which possible changes are currently dropped from the lattice, and for how many
+    // consecutive LBFGS iterations each has ended with an expected count below the threshold
+    private final boolean[] prunedChanges;
+    private final int[] lowPosteriorStreaks;
+    
     public Sequence(Form baseForm,
                     List<AnchoredMorphChange> possibleMorphChanges,
                     List<AnchoredMorphChange> goldMorphChanges,
@@ -57,86 +93,65 @@ public class JointSpanMatchingPredictor implements Predictor {
                     Indexer<MorphChange> changeIndexer,
                     Indexer<String> featureIndexer,
                     boolean addToIndexer) {
+      this(baseForm,
+           possibleMorphChanges,
+           featurizeChanges(possibleMorphChanges, ruleFeaturizer, changeIndexer, featureIndexer, addToIndexer),
+           goldMorphChanges,
+           featurizePreservations(new LemmaContext(baseForm, ruleFeaturizer, nullFeaturizer), featureIndexer, addToIndexer, null));
+    }
+    
+    /**
+     * Builds a sequence whose changes and preservations have already been featurized
+     * (e.g. restored from a JointModelState).
+     */
+    public Sequence(Form baseForm,
+                    List<AnchoredMorphChange> possibleMorphChanges,
+                    List<int[]> featuresEachMorphChange,
+                    List<AnchoredMorphChange> goldMorphChanges,
+                    List<int[]> featuresEachPreservation) {
+      assert featuresEachMorphChange.size() == possibleMorphChanges.size();
+      assert featuresEachPreservation.size() == baseForm.length() + 1;
+      CANDIDATE_EDGES.record(possibleMorphChanges.size());
+      int numChangeFeatures = 0;
+      for (int[] features : featuresEachMorphChange) {
+        numChangeFeatures += features.length;
+      }
+      LATTICE_CHANGE_FEATURES.record(numChangeFeatures);
       this.baseForm = baseForm;
       this.possibleMorphChanges = possibleMorphChanges;
-      this.featuresEachMorphChange = new ArrayList<int[]>();
+      this.featuresEachMorphChange = featuresEachMorphChange;
       this.goldMorphChanges = goldMorphChanges;
       this.goldChangesOn = new ArrayList<Boolean>();
+      this.prunedChanges = new boolean[possibleMorphChanges.size()];
+      this.lowPosteriorStreaks = new int[possibleMorphChanges.size()];
       this.possibleChangesBySpan = new List[baseForm.length() + 1][baseForm.length() + 1];
+      this.changeIndicesBySpan = newChangeIndexGrid(baseForm.length() + 1);
+      // Most spans have no changes, so they share an empty list until one is added
+      List<AnchoredMorphChange> noChanges = Collections.emptyList();
+      List<Integer> noIndices = Collections.emptyList();
       for (int i = 0; i < possibleChangesBySpan.length; i++) {
-        for (int j = 0; j < possibleChangesBySpan[i].length; j++) {
-          possibleChangesBySpan[i][j] = new ArrayList<AnchoredMorphChange>();
-        }
+        Arrays.fill(possibleChangesBySpan[i], noChanges);
+        Arrays.fill(changeIndicesBySpan[i], noIndices);
       }
-      for (AnchoredMorphChange change : possibleMorphChanges) {
-        List<String> featurePrefixes = new ArrayList<String>();
-        if (Driver.rankingFeats.contains("FEAT:CHANGE")) {
-          featurePrefixes.add("CHANGE-" + changeIndexer.indexOf(change.change) + ":");
-        }
-        if (Driver.rankingFeats.contains("FEAT:FACTORED")) {
-          for (Attributes attrs : change.change.rewrite.keySet()) {
-            featurePrefixes.add(attrs.toString() + ":" + change.change.base.toString() + "=>" + change.change.rewrite.get(attrs));
-          }
-        }
-        List<String> spanFeatures = ruleFeaturizer.getFeatures(change.spanAppliedTo);
-        int[] features = new int[featurePrefixes.size() * spanFeatures.size()];
-        int idx = 0;
-        for (String featurePrefix : featurePrefixes) {
-          for (String spanFeature : spanFeatures) {
-            String completeFeature = featurePrefix + spanFeature;
-            if (!addToIndexer && !featureIndexer.contains(completeFeature)) {
-              features[idx] = featureIndexer.getIndex("UNK_FEAT");
-            } else {
-              features[idx] = featureIndexer.getIndex(completeFeature);
-            }
-            idx++;
-          }
-        }
-        this.featuresEachMorphChange.add(features);
+      for (int i = 0; i < possibleMorphChanges.size(); i++) {
+        AnchoredMorphChange change = possibleMorphChanges.get(i);
         if (goldMorphChanges != null && goldMorphChanges.contains(change)) {
           this.goldChangesOn.add(true);
         } else {
           this.goldChangesOn.add(false);
         }
-        this.possibleChangesBySpan[change.spanAppliedTo.start][change.spanAppliedTo.end].add(change);
+        int start = change.spanAppliedTo.start;
+        int end = change.spanAppliedTo.end;
+        if (possibleChangesBySpan[start][end].isEmpty()) {
+          possibleChangesBySpan[start][end] = new ArrayList<AnchoredMorphChange>();
+          changeIndicesBySpan[start][end] = new ArrayList<Integer>();
+        }
+        this.possibleChangesBySpan[start][end].add(change);
+        this.changeIndicesBySpan[start][end].add(i);
       }
       this.goldNonAdjacentPreservationsOn = new ArrayList<Boolean>();
-      this.featuresEachPreservation = new ArrayList<int[]>();
+      this.featuresEachPreservation = featuresEachPreservation;
       for (int i = 0; i < baseForm.length(); i++) {
-        // N.B. These two assume that you don't have unseen 
-        if (Driver.nullFeats.contains("FEAT:INDICATOR")) {
-          String feature = "PRESERVE";
-          if (!addToIndexer && !featureIndexer.contains(feature)) { 
-            this.featuresEachPreservation.add(new int[] { featureIndexer.getIndex("UNK_FEAT") });
-          } else {
-            this.featuresEachPreservation.add(new int[] { featureIndexer.getIndex(feature) });
-          }
-        } else if (Driver.nullFeats.contains("FEAT:SIMPLE")) {
-          String feature = "PRESERVE:" + baseForm.charAt(i).toString();
-          if (!addToIndexer && !featureIndexer.contains(feature)) { 
-            this.featuresEachPreservation.add(new int[] { featureIndexer.getIndex("UNK_FEAT") });
-          } else {
-            this.featuresEachPreservation.add(new int[] { featureIndexer.getIndex(feature) });
-          }
-        } else if (Driver.nullFeats.contains("FEAT:ALL")) {
-//          String featurePrefix = "PRESERVE:";
-          String featurePrefix = "PRESERVE:" + baseForm.charAt(i).toString();
-          List<String> spanFeatures = nullFeaturizer.getFeatures(new AnchoredSpan(baseForm, i, i+1));
-          int[] features = new int[spanFeatures.size()];
-          int idx = 0;
-          for (String spanFeature : spanFeatures) {
-            String completeFeature = featurePrefix + spanFeature;
-            if (!addToIndexer && !featureIndexer.contains(completeFeature)) {
-              features[idx] = featureIndexer.getIndex("UNK_FEAT");
-            } else {
-              features[idx] = featureIndexer.getIndex(completeFeature);
-            }
-            idx++;
-          }
-          this.featuresEachPreservation.add(features);
-        } else {
-          this.featuresEachPreservation.add(new int[0]);
-        }
         boolean preservedInGold = true;
         if (goldMorphChanges != null) {
           for (AnchoredMorphChange goldMorphChange : goldMorphChanges) {
@@ -150,24 +165,150 @@ public class JointSpanMatchingPredictor implements Predictor {
         this.goldNonAdjacentPreservationsOn.add(preservedInGold);
       }
       // Last index has no features
-      this.featuresEachPreservation.add(new int[0]);
       this.goldNonAdjacentPreservationsOn.add(true);
     }
     
-    private double[] computeChangeScores(double[] weights) {
+    private static List<int[]> featurizeChanges(List<AnchoredMorphChange> possibleMorphChanges,
+                                                AnchoredSpanFeaturizer ruleFeaturizer,
+                                                Indexer<MorphChange> changeIndexer,
+                                                Indexer<String> featureIndexer,
+                                                boolean addToIndexer) {
+      List<int[]> featuresEachMorphChange = new ArrayList<int[]>();
+      for (AnchoredMorphChange change : possibleMorphChanges) {
+        featuresEachMorphChange.add(featurizeChange(change, ruleFeaturizer, changeIndexer, featureIndexer, addToIndexer));
+      }
+      return featuresEachMorphChange;
+    }
+    
+    public static int[] featurizeChange(AnchoredMorphChange change,
+                                        AnchoredSpanFeaturizer ruleFeaturizer,
+                                        Indexer<MorphChange> changeIndexer,
+                                        Indexer<String> featureIndexer,
+                                        boolean addToIndexer) {
+      return featurizeChange(getFeaturePrefixes(change.change, changeIndexer), change.spanAppliedTo, ruleFeaturizer, featureIndexer, addToIndexer);
+    }
+    
+    /**
+     * @return The strings that each span feature of the change is conjoined with; these
+     * only depend on the change
+     */
+    public static List<String> getFeaturePrefixes(MorphChange morphChange, Indexer<MorphChange> changeIndexer) {
+      List<String> featurePrefixes = new ArrayList<String>();
+      if (Driver.rankingFeats.contains("FEAT:CHANGE")) {
+        featurePrefixes.add("CHANGE-" + changeIndexer.indexOf(morphChange) + ":");
+      }
+      if (Driver.rankingFeats.contains("FEAT:FACTORED")) {
+        for (int slot = 0; slot < morphChange.schema.size(); slot++) {
+          Form rewrite = morphChange.getRewrite(slot);
+          if (rewrite != null) {
+            featurePrefixes.add(morphChange.schema.getAttrs(slot).toString() + ":" + morphChange.base.toString() + "=>" + rewrite);
+          }
+        }
+      }
+      return featurePrefixes;
+    }
+    
+    public static int[] featurizeChange(List<String> featurePrefixes,
+                                        AnchoredSpan span,
+                                        AnchoredSpanFeaturizer ruleFeaturizer,
+                                        Indexer<String> featureIndexer,
+                                        boolean addToIndexer) {
+      return featurizeChange(featurePrefixes, ruleFeaturizer.getFeatures(span), featureIndexer, addToIndexer);
+    }
+    
+    /**
+     * @param spanFeatures The rule featurizer's features over the span the change applies to
+     */
+    public static int[] featurizeChange(List<String> featurePrefixes,
+                                        List<String> spanFeatures,
+                                        Indexer<String> featureIndexer,
+                                        boolean addToIndexer) {
+      int[] features = new int[featurePrefixes.size() * spanFeatures.size()];
+      int idx = 0;
+      for (String featurePrefix : featurePrefixes) {
+        for (String spanFeature : spanFeatures) {
+          features[idx] = lookupFeature(featurePrefix + spanFeature, featureIndexer, addToIndexer);
+          idx++;
+        }
+      }
+      return features;
+    }
+    
+    /**
+     * @param windowCache If non-null, FEAT:ALL features are cached here by glyph and window
+     * (see AnchoredSpanFeaturizer.getWindowKey()); only pass one whose features were looked
+     * up in featureIndexer
+     */
+    public static List<int[]> featurizePreservations(LemmaContext context,
+                                                     Indexer<String> featureIndexer,
+                                                     boolean addToIndexer,
+                                                     ClockCache<String,int[]> windowCache) {
+      Form baseForm = context.baseForm;
+      List<int[]> featuresEachPreservation = new ArrayList<int[]>();
+      for (int i = 0; i < baseForm.length(); i++) {
+        // N.B. These two assume that you don't have unseen 
+        if (Driver.nullFeats.contains("FEAT:INDICATOR")) {
+          featuresEachPreservation.add(new int[] { lookupFeature("PRESERVE", featureIndexer, addToIndexer) });
+        } else if (Driver.nullFeats.contains("FEAT:SIMPLE")) {
+          featuresEachPreservation.add(new int[] { lookupFeature("PRESERVE:" + baseForm.charAt(i).toString(), featureIndexer, addToIndexer) });
+        } else if (Driver.nullFeats.contains("FEAT:ALL")) {
+          String windowKey = null;
+          int[] features = null;
+          if (windowCache != null) {
+            windowKey = context.getPreservationWindowKey(i);
+            features = windowCache.get(windowKey);
+          }
+          if (features == null) {
+            List<String> preservationFeatures = context.getPreservationFeatures(i);
+            features = new int[preservationFeatures.size()];
+            int idx = 0;
+            for (String feature : preservationFeatures) {
+              features[idx] = lookupFeature(feature, featureIndexer, addToIndexer);
+              idx++;
+            }
+            if (windowCache != null) {
+              features = windowCache.putIfAbsent(windowKey, features);
+            }
+          }
+          featuresEachPreservation.add(features);
+        } else {
+          featuresEachPreservation.add(new int[0]);
+        }
+      }
+      // Last index has no features
+      featuresEachPreservation.add(new int[0]);
+      return featuresEachPreservation;
+    }
+    
+    static int lookupFeature(String feature, Indexer<String> featureIndexer, boolean addToIndexer) {
+      if (!addToIndexer && !featureIndexer.contains(feature)) {
+        return featureIndexer.getIndex("UNK_FEAT");
+      } else {
+        return featureIndexer.getIndex(feature);
+      }
+    }
+    
+    public double[] computeChangeScores(double[] weights) {
       double[] changeScores = new double[possibleMorphChanges.size()];
       for (int i = 0; i < featuresEachMorphChange.size(); i++) {
-        int[] feats = featuresEachMorphChange.get(i);
-        double score = 0;
-        for (int j = 0; j < feats.length; j++) {
-          score += weights[feats[j]];
+        if (prunedChanges[i]) {
+          continue;
         }
-        changeScores[i] = score;
+        changeScores[i] = computeChangeScore(i, weights);
       }
       return changeScores;
     }
     
-    private double[] computePreserveScores(double[] weights) {
+    private double computeChangeScore(int changeIdx, double[] weights) {
+      int[] feats = featuresEachMorphChange.get(changeIdx);
+      double score = 0;
+      for (int j = 0; j < feats.length; j++) {
+        score += weights[feats[j]];
+      }
+      return score;
+    }
+    
+    public double[] computePreserveScores(double[] weights) {
       assert baseForm.length()+1 == featuresEachPreservation.size();
       double[] preserveScores = new double[baseForm.length()+1];
 //      Arrays.fill(preserveScores, 0.0);
@@ -192,6 +333,9 @@ public class JointSpanMatchingPredictor implements Predictor {
 //      }
       double normalizer = alphas[alphas.length-1];
       for (int i = 0; i < possibleMorphChanges.size(); i++) {
+        if (prunedChanges[i]) {
+          continue;
+        }
         int[] changeFeats = featuresEachMorphChange.get(i);
         int[] preservationFeats = featuresEachPreservation.get(possibleMorphChanges.get(i).spanAppliedTo.end);
         if (goldChangesOn.get(i).booleanValue()) {
@@ -222,6 +366,75 @@ public class JointSpanMatchingPredictor implements Predictor {
       
     }
     
+    /**
+     * Updates the pruning state given the weights at the end of an LBFGS iteration (see
+     * Driver.trainPruneThreshold). After the warmup, every iteration extends or resets each
+     * non-gold change's streak of expected counts below the threshold, but the lattice itself
+     * only changes every trainPruneRecheckInterval iterations, since LBFGS has to re-evaluate
+     * the objective whenever it does: changes with a streak of at least trainPrunePatience are
+     * pruned, and pruned changes are rescored and put back if their expected count (measured
+     * against the pruned lattice's alphas and betas) has come back above the threshold.
+     * 
+     * @param numItrsDone Number of LBFGS iterations finished so far
+     * @return True if the lattice changed
+     */
+    public boolean updatePruning(double[] weights, int numItrsDone) {
+      if (numItrsDone <= Driver.trainPruneWarmup) {
+        return false;
+      }
+      boolean recheck = numItrsDone % Driver.trainPruneRecheckInterval == 0;
+      double[] changeScores = computeChangeScores(weights);
+      double[] preserveScores = computePreserveScores(weights);
+      double[] alphas = computeAlphas(changeScores, preserveScores, false);
+      double[] betas = computeBetas(changeScores, preserveScores, false);
+      double normalizer = alphas[alphas.length-1];
+      boolean changed = false;
+      for (int i = 0; i < possibleMorphChanges.size(); i++) {
+        if (goldChangesOn.get(i).booleanValue() || (prunedChanges[i] && !recheck)) {
+          continue;
+        }
+        if (prunedChanges[i]) {
+          // computeChangeScores() leaves pruned changes at 0, so score this one now
+          changeScores[i] = computeChangeScore(i, weights);
+        }
+        int startIdx = possibleMorphChanges.get(i).spanAppliedTo.start;
+        int endIdx = possibleMorphChanges.get(i).spanAppliedTo.end;
+        double expectedCount = Math.exp(alphas[startIdx] + changeScores[i] + preserveScores[endIdx] + betas[endIdx+1] - normalizer);
+        if (prunedChanges[i]) {
+          if (expectedCount >= Driver.trainPruneThreshold) {
+            prunedChanges[i] = false;
+            lowPosteriorStreaks[i] = 0;
+            changed = true;
+          }
+        } else if (expectedCount < Driver.trainPruneThreshold) {
+          lowPosteriorStreaks[i]++;
+          if (recheck && lowPosteriorStreaks[i] >= Driver.trainPrunePatience) {
+            prunedChanges[i] = true;
+            changed = true;
+          }
+        } else {
+          lowPosteriorStreaks[i] = 0;
+        }
+      }
+      return changed;
+    }
+    
+    public int getNumPrunedChanges() {
+      int numPruned = 0;
+      for (int i = 0; i < prunedChanges.length; i++) {
+        numPruned += (prunedChanges[i] ? 1 : 0);
+      }
+      return numPruned;
+    }
+    
+    /**
+     * Restores the full lattice, e.g. once training is over.
+     */
+    public void clearPruning() {
+      Arrays.fill(prunedChanges, false);
+      Arrays.fill(lowPosteriorStreaks, 0);
+    }
+    
     private void addFeaturesToGradient(double[] gradient, int[] feats, double scale) {
       for (int i = 0; i < feats.length; i++) {
         gradient[feats[i]] += scale;
@@ -249,18 +462,44 @@ public class JointSpanMatchingPredictor implements Predictor {
     }
     
     public List<AnchoredMorphChange> predict(double[] weights) {
+      return predict(computeChangeScores(weights), computePreserveScores(weights));
+    }
+    
+    public List<AnchoredMorphChange> predict(double[] changeScores, double[] preserveScores) {
+      return predict(changeScores, preserveScores, Long.MAX_VALUE);
+    }
+    
+    /**
+     * @param deadlineNanos System.nanoTime() value after which to give up (Long.MAX_VALUE for none)
+     * @return The Viterbi changes, or null if the deadline passed first
+     */
+    public List<AnchoredMorphChange> predict(double[] changeScores, double[] preserveScores, long deadlineNanos) {
       List<AnchoredMorphChange> prediction = new ArrayList<AnchoredMorphChange>();
-      double[] changeScores = computeChangeScores(weights);
-      double[] preserveScores = computePreserveScores(weights);
-      double[] alphas = computeAlphas(changeScores, preserveScores, true);
-      int i = alphas.length - 1;
+      // The alphas don't outlive this call, so they go in this thread's scratch buffer
+      double[] alphas = VITERBI_SCRATCH.get();
+      if (alphas.length < baseForm.length() + 2) {
+        alphas = new double[Math.max(baseForm.length() + 2, alphas.length * 2)];
+        VITERBI_SCRATCH.set(alphas);
+      }
+      if (computeAlphas(changeScores, preserveScores, true, alphas, deadlineNanos) == null) {
+        return null;
+      }
+      int i = baseForm.length() + 1;
       while (i > 0) {
+        if (isPast(deadlineNanos)) {
+          return null;
+        }
         AnchoredMorphChange bestChange = null;
         double bestChangeScore = Double.NEGATIVE_INFINITY;
         for (int j = 0; j <= i-1; j++) {
           if (!possibleChangesBySpan[j][i-1].isEmpty()) {
-            for (AnchoredMorphChange changeIJ : possibleChangesBySpan[j][i-1]) {
-              double score = alphas[j] + changeScores[possibleMorphChanges.indexOf(changeIJ)] + preserveScores[i-1];
+            for (int k = 0; k < possibleChangesBySpan[j][i-1].size(); k++) {
+              int changeIdx = changeIndicesBySpan[j][i-1].get(k);
+              if (prunedChanges[changeIdx]) {
+                continue;
+              }
+              AnchoredMorphChange changeIJ = possibleChangesBySpan[j][i-1].get(k);
+              double score = alphas[j] + changeScores[changeIdx] + preserveScores[i-1];
               if (score > bestChangeScore) {
                 bestChange = changeIJ;
                 bestChangeScore = score;
@@ -285,15 +524,34 @@ public class JointSpanMatchingPredictor implements Predictor {
     private double[] computeAlphas(double[] changeScores, double[] preserveScores, boolean max) {
       // alphas live on fenceposts, need one extra fencepost so we can
       // store the last column of alphas
-      double[] alphas = new double[baseForm.length()+2];
-      Arrays.fill(alphas, Double.NEGATIVE_INFINITY);
+      return computeAlphas(changeScores, preserveScores, max, new double[baseForm.length()+2]);
+    }
+    
+    /**
+     * Fills in the first baseForm.length()+2 entries of alphas.
+     */
+    private double[] computeAlphas(double[] changeScores, double[] preserveScores, boolean max, double[] alphas) {
+      return computeAlphas(changeScores, preserveScores, max, alphas, Long.MAX_VALUE);
+    }
+    
+    /**
+     * @return alphas, or null if the deadline passed before they were all filled in
+     */
+    private double[] computeAlphas(double[] changeScores, double[] preserveScores, boolean max, double[] alphas, long deadlineNanos) {
+      Arrays.fill(alphas, 0, baseForm.length()+2, Double.NEGATIVE_INFINITY);
       alphas[0] = 0;
       for (int i = 0; i < baseForm.length() + 1; i++) {
+        if (isPast(deadlineNanos)) {
+          return null;
+        }
         // Apply changes ending at i
         for (int j = 0; j <= i; j++) {
           if (!possibleChangesBySpan[j][i].isEmpty()) {
-            for (AnchoredMorphChange changeJI : possibleChangesBySpan[j][i]) {
-              double increment = alphas[j] + changeScores[possibleMorphChanges.indexOf(changeJI)] + preserveScores[i];
+            for (int changeIdx : changeIndicesBySpan[j][i]) {
+              if (prunedChanges[changeIdx]) {
+                continue;
+              }
+              double increment = alphas[j] + changeScores[changeIdx] + preserveScores[i];
               alphas[i+1] = sum(alphas[i+1], increment, max);
             }
           }
@@ -313,8 +571,11 @@ public class JointSpanMatchingPredictor implements Predictor {
         // Apply changes beginning at i
         for (int j = i; j < baseForm.length()+1; j++) {
           if (!possibleChangesBySpan[i][j].isEmpty()) {
-            for (AnchoredMorphChange change : possibleChangesBySpan[i][j]) {
-              double increment = betas[j+1] + changeScores[possibleMorphChanges.indexOf(change)] + preserveScores[j];
+            for (int changeIdx : changeIndicesBySpan[i][j]) {
+              if (prunedChanges[changeIdx]) {
+                continue;
+              }
+              double increment = betas[j+1] + changeScores[changeIdx] + preserveScores[j];
               betas[i] = sum(betas[i], increment, max);
             }
           }
@@ -337,51 +598,362 @@ public class JointSpanMatchingPredictor implements Predictor {
     public boolean predictsCorrectly(double[] weights) {
       return predict(weights).equals(this.goldMorphChanges);
     }
+    
+    /**
+     * @return The score of the given possible change, including the preservation of
+     * the glyph that immediately follows it (as in the dynamic program)
+     */
+    public double getChangeScore(AnchoredMorphChange change, double[] changeScores, double[] preserveScores) {
+      int start = change.spanAppliedTo.start;
+      int end = change.spanAppliedTo.end;
+      int idx = possibleChangesBySpan[start][end].indexOf(change);
+      assert idx != -1 : "Not a possible change: " + change;
+      return changeScores[changeIndicesBySpan[start][end].get(idx)] + preserveScores[end];
+    }
+    
+    /**
+     * @return The total score of the given non-overlapping changes, i.e. the score of the
+     * corresponding path through the lattice
+     */
+    public double computeScore(List<AnchoredMorphChange> changes, double[] changeScores, double[] preserveScores) {
+      double score = 0;
+      boolean[] covered = new boolean[baseForm.length() + 1];
+      for (AnchoredMorphChange change : changes) {
+        score += getChangeScore(change, changeScores, preserveScores);
+        for (int i = change.spanAppliedTo.start; i <= change.spanAppliedTo.end; i++) {
+          covered[i] = true;
+        }
+      }
+      for (int i = 0; i < covered.length; i++) {
+        if (!covered[i]) {
+          score += preserveScores[i];
+        }
+      }
+      return score;
+    }
+    
+    /**
+     * @return Up to k change sequences in order of decreasing score (see KBestLattice)
+     */
+    public List<Derivation> predictKBest(double[] weights, int k) {
+      KBestLattice lattice = new KBestLattice(computeChangeScores(weights), computePreserveScores(weights));
+      List<Derivation> kBest = new ArrayList<Derivation>();
+      for (int rank = 0; rank < k; rank++) {
+        Derivation derivation = lattice.getKthBest(rank);
+        if (derivation == null) {
+          break;
+        }
+        kBest.add(derivation);
+      }
+      return kBest;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<Integer>[][] newChangeIndexGrid(int size) {
+      return (List<Integer>[][])new List<?>[size][size];
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static List<Derivation>[] newDerivationListArray(int size) {
+      return (List<Derivation>[])new List<?>[size];
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static PriorityQueue<Derivation>[] newDerivationQueueArray(int size) {
+      return (PriorityQueue<Derivation>[])new PriorityQueue<?>[size];
+    }
+    
+    /**
+     * Lazy k-best extraction (Huang and Chiang (2005), Algorithm 3) over the lattice whose
+     * Viterbi pass is computeAlphas(): node i+1 is reached from node i by preserving glyph i,
+     * or from node j by applying a change over [j, i] (which also preserves glyph i). Each node
+     * keeps its derivations found so far and a heap of candidates, with one candidate per
+     * incoming edge to start with; popping a candidate pushes the same edge applied to the
+     * next-best derivation of its tail node, which is itself computed on demand. Extracting
+     * the top k from the last node thus touches each edge once plus O(k log k) heap work.
+     */
+    public class KBestLattice {
+      private final double[] changeScores;
+      private final double[] preserveScores;
+      private final List<Derivation>[] derivations;
+      private final PriorityQueue<Derivation>[] candidates;
+      
+      public KBestLattice(double[] changeScores, double[] preserveScores) {
+        this.changeScores = changeScores;
+        this.preserveScores = preserveScores;
+        this.derivations = newDerivationListArray(baseForm.length() + 2);
+        this.candidates = newDerivationQueueArray(baseForm.length() + 2);
+        this.derivations[0] = new ArrayList<Derivation>();
+        this.derivations[0].add(new Derivation(null, 0, 0, null, 0));
+        this.candidates[0] = new PriorityQueue<Derivation>();
+      }
+      
+      /**
+       * @return The rank-th best (0-indexed) derivation of the whole base form, or null
+       * if there are no more than rank of them
+       */
+      public Derivation getKthBest(int rank) {
+        return getKthBest(baseForm.length() + 1, rank);
+      }
+      
+      private Derivation getKthBest(int node, int rank) {
+        if (derivations[node] == null) {
+          initializeCandidates(node);
+        }
+        List<Derivation> nodeDerivations = derivations[node];
+        while (nodeDerivations.size() <= rank) {
+          // Before taking the next best, replace the last one taken with its successor
+          if (!nodeDerivations.isEmpty() && nodeDerivations.get(nodeDerivations.size() - 1).prev != null) {
+            Derivation last = nodeDerivations.get(nodeDerivations.size() - 1);
+            Derivation nextPrev = getKthBest(last.prevNode, last.prevRank + 1);
+            if (nextPrev != null) {
+              candidates[node].add(new Derivation(nextPrev, last.prevNode, last.prevRank + 1, last.change, last.edgeScore));
+            }
+          }
+          if (candidates[node].isEmpty()) {
+            return null;
+          }
+          nodeDerivations.add(candidates[node].poll());
+        }
+        return nodeDerivations.get(rank);
+      }
+      
+      private void initializeCandidates(int node) {
+        int i = node - 1;
+        derivations[node] = new ArrayList<Derivation>();
+        candidates[node] = new PriorityQueue<Derivation>();
+        // Changes ending at i
+        for (int j = 0; j <= i; j++) {
+          for (int k = 0; k < possibleChangesBySpan[j][i].size(); k++) {
+            Derivation bestPrev = getKthBest(j, 0);
+            if (bestPrev != null && !prunedChanges[changeIndicesBySpan[j][i].get(k)]) {
+              double edgeScore = changeScores[changeIndicesBySpan[j][i].get(k)] + preserveScores[i];
+              candidates[node].add(new Derivation(bestPrev, j, 0, possibleChangesBySpan[j][i].get(k), edgeScore));
+            }
+          }
+        }
+        // Preserving glyph i
+        Derivation bestPrev = getKthBest(i, 0);
+        if (bestPrev != null) {
+          candidates[node].add(new Derivation(bestPrev, i, 0, null, preserveScores[i]));
+        }
+      }
+    }
+  }
+  
+  /**
+   * One path through a Sequence's lattice: the last edge taken (a change, or null for
+   * a preservation) and the derivation it extends.
+   * 
+   * @author gdurrett
+   *
+   */
+  public static class Derivation implements Comparable<Derivation> {
+    public final Derivation prev;
+    public final int prevNode;
+    public final int prevRank;
+    public final AnchoredMorphChange change;
+    public final double edgeScore;
+    public final double score;
+    
+    public Derivation(Derivation prev, int prevNode, int prevRank, AnchoredMorphChange change, double edgeScore) {
+      this.prev = prev;
+      this.prevNode = prevNode;
+      this.prevRank = prevRank;
+      this.change = change;
+      this.edgeScore = edgeScore;
+      this.score = (prev == null ? 0 : prev.score) + edgeScore;
+    }
+    
+    /**
+     * @return The changes applied along this path, left to right
+     */
+    public List<AnchoredMorphChange> getChanges() {
+      List<AnchoredMorphChange> changes = new ArrayList<AnchoredMorphChange>();
+      for (Derivation curr = this; curr != null; curr = curr.prev) {
+        if (curr.change != null) {
+          changes.add(0, curr.change);
+        }
+      }
+      return changes;
+    }
+    
+    /**
+     * Higher scores come first
+     */
+    @Override
+    public int compareTo(Derivation other) {
+      return Double.compare(other.score, this.score);
+    }
   }
 
+  /**
+   * Emitted for every lemma decoded by predictFromCandidates(). Off by default, since there
+   * is one per lemma; turn it on in the recording settings, e.g.
+   * -XX:StartFlightRecording:+edu.berkeley.nlp.morph.Decode#enabled=true,filename=rec.jfr
+   */
+  @Name("edu.berkeley.nlp.morph.Decode")
+  @Label("Decode Lemma")
+  @Category("Morph")
+  @Enabled(false)
+  @StackTrace(false)
+  static class DecodeEvent extends Event {
+    @Label("Base Form")
+    String baseForm;
+    
+    @Label("Candidate Edges")
+    int candidateEdges;
+    
+    @Label("Predicted Changes")
+    int predictedChanges;
+  }
+  
+  // predictKBest() examines at most this many derivations per hypothesis requested
+  private static final int KBEST_RANKS_PER_HYPOTHESIS = 4;
+  
+  // Per-thread buffer for the Viterbi alphas in Sequence.predict(); grown as needed
+  private static final ThreadLocal<double[]> VITERBI_SCRATCH = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[32];
+    }
+  };
+  
+  private static final Metrics.Histogram CANDIDATE_EDGES = Metrics.histogram("lattice_candidate_edges",
+      "Anchored changes in each lattice, in training and prediction");
+  // Recorded once per lattice rather than per change to keep contention off the featurization loop
+  private static final Metrics.Histogram LATTICE_CHANGE_FEATURES = Metrics.histogram("lattice_change_features",
+      "Features fired on all the anchored changes of each lattice, in training and prediction");
+  private static final Metrics.Histogram FEATURIZE_MICROS = Metrics.histogram("predict_featurize_micros",
+      "Time to featurize a lemma's lattice at prediction time");
+  private static final Metrics.Histogram DP_MICROS = Metrics.histogram("predict_dp_micros",
+      "Time to score a lemma's lattice and find the best path through it");
+  private static final Metrics.Histogram INFLECT_MICROS = Metrics.histogram("predict_inflect_micros",
+      "Time to apply a lemma's predicted changes to get its inflected forms");
+  private static final Metrics.EventCounter RULE_CACHE_HITS = Metrics.counter("rule_feature_cache_hits",
+      "Anchored changes whose features were found in the window cache");
+  private static final Metrics.EventCounter RULE_CACHE_MISSES = Metrics.counter("rule_feature_cache_misses",
+      "Anchored changes whose features weren't in the window cache");
+  private static final Metrics.EventCounter RULE_CACHE_EVICTIONS = Metrics.counter("rule_feature_cache_evictions",
+      "Windows evicted from the rule feature cache");
+  private static final Metrics.EventCounter NULL_CACHE_HITS = Metrics.counter("null_feature_cache_hits",
+      "Preserved glyphs whose features were found in the window cache");
+  private static final Metrics.EventCounter NULL_CACHE_MISSES = Metrics.counter("null_feature_cache_misses",
+      "Preserved glyphs whose features weren't in the window cache");
+  private static final Metrics.EventCounter NULL_CACHE_EVICTIONS = Metrics.counter("null_feature_cache_evictions",
+      "Windows evicted from the null span feature cache");
+  private static final Metrics.EventCounter DECODE_CACHE_HITS = Metrics.counter("decode_cache_hits",
+      "Predictions served from the decode cache");
+  private static final Metrics.EventCounter DECODE_CACHE_MISSES = Metrics.counter("decode_cache_misses",
+      "Predictions that had to be decoded");
+  private static final Metrics.EventCounter DECODE_CACHE_REJECTIONS = Metrics.counter("decode_cache_rejections",
+      "Predictions not admitted to the decode cache's main region because they were requested less often than its victim");
+  static {
+    Metrics.hitRate("decode_cache_hit_rate", "Fraction of predictions served from the decode cache", DECODE_CACHE_HITS, DECODE_CACHE_MISSES);
+    Metrics.hitRate("rule_feature_cache_hit_rate", "Fraction of anchored changes whose features were cached", RULE_CACHE_HITS, RULE_CACHE_MISSES);
+    Metrics.hitRate("null_feature_cache_hit_rate", "Fraction of preserved glyphs whose features were cached", NULL_CACHE_HITS, NULL_CACHE_MISSES);
+  }
+  
   private final ExtractedModel extractedModel;
   private final AnchoredSpanFeaturizer ruleFeaturizer;
   private final AnchoredSpanFeaturizer nullFeaturizer;
   private final Indexer<MorphChange> morphChangeIndexer;
-  private final Indexer<String> featureIndexer;
+  private final ConcurrentIndexer<String> featureIndexer;
 
   private final ChangeFilterer changeFilterer;
+  // Previously trained model to warm-start from; null for training from scratch
+  private final JointModelState priorState;
   
   private double[] weights;
+  private List<Sequence> trainSequences;
+  
+  // Features of windows looked up in featureIndexer, shared across lemmas (null if
+  // Driver.featureCacheSize is 0). Rule features are keyed by change and window, null span
+  // features by glyph and window.
+  private final ClockCache<Pair<MorphChange,String>,int[]> ruleFeatureCache;
+  private final ClockCache<String,int[]> nullFeatureCache;
+  // Predictions by lemma and attribute set (null if Driver.decodeCacheSize is 0); cleared
+  // whenever the weights change
+  private final TinyLfuCache<Pair<Form,AttributeSchema>,ParadigmHypothesis> decodeCache;
   
   public JointSpanMatchingPredictor(ExtractedModel extractedModel, AnchoredSpanFeaturizer ruleFeaturizer, AnchoredSpanFeaturizer nullFeaturizer) {
+    this(extractedModel, ruleFeaturizer, nullFeaturizer, null);
+  }
+  
+  /**
+   * If priorState is non-null, extractedModel should come from priorState.extractChanges().
+   * Changes and features keep the indices they had in the prior model (new ones are added
+   * after them), so its weights and cached sequences carry over, and training starts from
+   * its weights.
+   */
+  public JointSpanMatchingPredictor(ExtractedModel extractedModel, AnchoredSpanFeaturizer ruleFeaturizer, AnchoredSpanFeaturizer nullFeaturizer,
+                                    JointModelState priorState) {
     this.extractedModel = extractedModel;
     this.ruleFeaturizer = ruleFeaturizer;
     this.nullFeaturizer = nullFeaturizer;
     this.morphChangeIndexer = new Indexer<MorphChange>();
+    this.featureIndexer = new ConcurrentIndexer<String>();
+    if (priorState != null) {
+      for (MorphChange morphChange : priorState.morphChanges) {
+        this.morphChangeIndexer.getIndex(morphChange);
+      }
+      for (String feature : priorState.features) {
+        this.featureIndexer.getIndex(feature);
+      }
+    }
     for (AnalyzedParadigmInstance analyzedInstance: this.extractedModel.analyzedInstances) {
       for (AnchoredMorphChange change : analyzedInstance.getCachedChanges()) {
         this.morphChangeIndexer.getIndex(change.change);
       }
     }
-    this.featureIndexer = new Indexer<String>();
     this.featureIndexer.getIndex("UNK_FEAT");
-    this.changeFilterer = new ChangeFilterer(extractedModel, Driver.useMatchFiltering);
+    if (priorState != null) {
+      this.changeFilterer = new ChangeFilterer(extractedModel, Driver.useMatchFiltering, priorState.getPatterns(),
+                                               priorState.getChangesToRecompute(extractedModel));
+    } else {
+      this.changeFilterer = new ChangeFilterer(extractedModel, Driver.useMatchFiltering);
+    }
+    this.priorState = priorState;
     this.weights = new double[0];
+    if (Driver.featureCacheSize > 0) {
+      this.ruleFeatureCache = new ClockCache<Pair<MorphChange,String>,int[]>(Driver.featureCacheSize, RULE_CACHE_HITS, RULE_CACHE_MISSES, RULE_CACHE_EVICTIONS);
+      this.nullFeatureCache = new ClockCache<String,int[]>(Driver.featureCacheSize, NULL_CACHE_HITS, NULL_CACHE_MISSES, NULL_CACHE_EVICTIONS);
+    } else {
+      this.ruleFeatureCache = null;
+      this.nullFeatureCache = null;
+    }
+    if (Driver.decodeCacheSize > 0) {
+      this.decodeCache = new TinyLfuCache<Pair<Form,AttributeSchema>,ParadigmHypothesis>(Driver.decodeCacheSize, DECODE_CACHE_HITS, DECODE_CACHE_MISSES, DECODE_CACHE_REJECTIONS);
+    } else {
+      this.decodeCache = null;
+    }
   }
   
   public void train() {
-    // Index morph changes consistently every time
-    List<Sequence> sequences = new ArrayList<Sequence>();
     List<AnalyzedParadigmInstance> analyzedInstances = this.extractedModel.analyzedInstances;
-    
-    long nanoTime = System.nanoTime();
-    for (int i = 0; i < analyzedInstances.size(); i++) {
-      if (i % 200 == 0) {
-        LogInfo.logss("Featurized " + i + ", memory = " + SysInfoUtils.getUsedMemoryStr());
+    // When warm-starting, cached sequences only need to be re-matched against
+    // changes that are new or whose filter pattern has changed
+    Set<MorphChange> changesToRematch = new HashSet<MorphChange>();
+    if (priorState != null) {
+      for (MorphChange morphChange : morphChangeIndexer) {
+        Pattern priorPattern = priorState.getPatterns().get(morphChange);
+        if (changeFilterer.hasFilterPattern(morphChange) &&
+            (priorPattern == null || !priorPattern.matchesTheSameSpansAs(changeFilterer.getFilterPattern(morphChange)))) {
+          changesToRematch.add(morphChange);
+        }
       }
-      AnalyzedParadigmInstance analyzedInstance = analyzedInstances.get(i);
-      Form baseForm = analyzedInstance.inst.baseForm();
-      List<AnchoredMorphChange> goldMorphChanges = analyzedInstance.getCachedChanges();
-      sequences.add(makeSequence(baseForm, goldMorphChanges, true));
+    }
+    AtomicInteger numRestored = new AtomicInteger(0);
+    
+    StopWatch watch = new StopWatch("featurize").start();
+    List<Sequence> sequences = makeTrainSequences(analyzedInstances, changesToRematch, numRestored);
+    // No features are added after this point, and features are looked up for every prediction
+    featureIndexer.freeze();
+    if (priorState != null) {
+      LogInfo.logss(numRestored.get() + " train sequences restored from saved model, " + changesToRematch.size() + " changes re-matched against them");
     }
     LogInfo.logss(sequences.size() + " train sequences created, " + featureIndexer.size() +
-                  " features, " + morphChangeIndexer.size() + " morph changes in " + (System.nanoTime() - nanoTime)/1000000 + " millis");
+                  " features, " + morphChangeIndexer.size() + " morph changes in " + watch.stop().ms + " millis");
     int avgNumMorphChanges = 0;
     int maxNumMorphChanges = 0;
     for (Sequence sequence : sequences) {
@@ -391,6 +963,9 @@ public class JointSpanMatchingPredictor implements Predictor {
     LogInfo.logss("Average num morph changes: " + avgNumMorphChanges/((double)sequences.size()) + ", max = " + maxNumMorphChanges);
 
     this.weights = new double[featureIndexer.size()];
+    if (priorState != null) {
+      System.arraycopy(priorState.weights, 0, this.weights, 0, priorState.weights.length);
+    }
     // Only run training if there are a non-zero number of morph changes or LBFGS will break
     if (morphChangeIndexer.size() > 0) {
 //      final double reg = 0.001;
@@ -400,22 +975,278 @@ public class JointSpanMatchingPredictor implements Predictor {
       final double reg = 0.00001;
       final double eps = 0.01;
       final int numItrs = 30;
-      new GeneralLogisticRegression().trainWeightsLbfgsL2R(sequences, reg, eps, numItrs, this.weights);
+      StopWatch trainWatch = new StopWatch("trainWeights").start();
+      new GeneralLogisticRegression().trainWeightsLbfgsL2R(sequences, reg, eps, numItrs, this.weights, newPruningHook(sequences));
+      trainWatch.stop();
+    }
+    if (Driver.trainPruneThreshold > 0) {
+      int numPruned = 0;
+      int numPossible = 0;
+      for (Sequence sequence : sequences) {
+        numPruned += sequence.getNumPrunedChanges();
+        numPossible += sequence.possibleMorphChanges.size();
+        sequence.clearPruning();
+      }
+      LogInfo.logss("Lattice pruning: " + numPruned + " of " + numPossible + " possible changes were pruned by the end of training");
     }
     if (Driver.nullFeats.contains("FEAT:INDICATOR")) {
       LogInfo.logss("Weight: " + weights[featureIndexer.indexOf("PRESERVE")]);
     }
+    this.trainSequences = sequences;
+    if (decodeCache != null) {
+      decodeCache.clear();
+    }
+  }
+  
+  /**
+   * @return A hook that updates the training lattices' pruning after each LBFGS iteration,
+   * or null if pruning is off
+   */
+  private static GeneralLogisticRegression.IterationHook newPruningHook(final List<Sequence> sequences) {
+    if (Driver.trainPruneThreshold <= 0) {
+      return null;
+    }
+    return new GeneralLogisticRegression.IterationHook() {
+      @Override
+      public boolean afterIteration(int numItrsDone, double[] weights) {
+        boolean changed = false;
+        int numPruned = 0;
+        for (Sequence sequence : sequences) {
+          changed |= sequence.updatePruning(weights, numItrsDone);
+          numPruned += sequence.getNumPrunedChanges();
+        }
+        if (changed) {
+          LogInfo.logss("Lattice pruning: " + numPruned + " changes pruned after " + numItrsDone + " iterations");
+        }
+        return changed;
+      }
+    };
+  }
+  
+  /**
+   * Featurizes the training instances. With Driver.numThreads > 1 this happens in two
+   * phases: each instance is first featurized in parallel against its own local feature
+   * indexer; then, going through the instances in order, the local features are added to
+   * featureIndexer and the sequences' feature arrays are remapped to the global indices
+   * (also in parallel). Features are therefore added to featureIndexer in the same order
+   * as when featurizing sequentially, so feature indices don't depend on the number of
+   * threads or on timing.
+   */
+  private List<Sequence> makeTrainSequences(List<AnalyzedParadigmInstance> analyzedInstances, final Set<MorphChange> changesToRematch,
+                                            final AtomicInteger numRestored) {
+    List<Sequence> sequences = new ArrayList<Sequence>();
+    if (Driver.numThreads <= 1) {
+      for (int i = 0; i < analyzedInstances.size(); i++) {
+        if (i % 200 == 0) {
+          LogInfo.logss("Featurized " + i + ", memory = " + SysInfoUtils.getUsedMemoryStr());
+        }
+        sequences.add(makeTrainSequence(analyzedInstances.get(i), changesToRematch, featureIndexer, numRestored).sequence);
+      }
+      return sequences;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Driver.numThreads);
+    try {
+      List<Future<LocallyIndexedSequence>> featurizeFutures = new ArrayList<Future<LocallyIndexedSequence>>();
+      for (final AnalyzedParadigmInstance analyzedInstance : analyzedInstances) {
+        featurizeFutures.add(executor.submit(new Callable<LocallyIndexedSequence>() {
+          @Override
+          public LocallyIndexedSequence call() {
+            return makeTrainSequence(analyzedInstance, changesToRematch, new Indexer<String>(), numRestored);
+          }
+        }));
+      }
+      List<Future<?>> remapFutures = new ArrayList<Future<?>>();
+      for (int i = 0; i < featurizeFutures.size(); i++) {
+        if (i % 200 == 0) {
+          LogInfo.logss("Featurized " + i + ", memory = " + SysInfoUtils.getUsedMemoryStr());
+        }
+        final LocallyIndexedSequence localSequence = featurizeFutures.get(i).get();
+        // Release the local indexer and its strings as soon as they've been merged
+        featurizeFutures.set(i, null);
+        final int[] localToGlobal = new int[localSequence.localFeatureIndexer.size()];
+        for (int j = 0; j < localToGlobal.length; j++) {
+          localToGlobal[j] = featureIndexer.getIndex(localSequence.localFeatureIndexer.getObject(j));
+        }
+        remapFutures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            localSequence.remapFeatures(localToGlobal);
+          }
+        }));
+        sequences.add(localSequence.sequence);
+      }
+      for (Future<?> remapFuture : remapFutures) {
+        remapFuture.get();
+      }
+      return sequences;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  /**
+   * A training sequence featurized against an indexer other than featureIndexer, along
+   * with the feature arrays whose indices refer to that indexer.
+   */
+  private static class LocallyIndexedSequence {
+    public final Sequence sequence;
+    public final Indexer<String> localFeatureIndexer;
+    private final List<int[]> localFeatureArrays;
+    
+    public LocallyIndexedSequence(Sequence sequence, Indexer<String> localFeatureIndexer, List<int[]> localFeatureArrays) {
+      this.sequence = sequence;
+      this.localFeatureIndexer = localFeatureIndexer;
+      this.localFeatureArrays = localFeatureArrays;
+    }
+    
+    public void remapFeatures(int[] localToGlobal) {
+      for (int[] features : localFeatureArrays) {
+        for (int i = 0; i < features.length; i++) {
+          features[i] = localToGlobal[features[i]];
+        }
+      }
+    }
+  }
+  
+  private LocallyIndexedSequence makeTrainSequence(AnalyzedParadigmInstance analyzedInstance, Set<MorphChange> changesToRematch,
+                                                   Indexer<String> indexer, AtomicInteger numRestored) {
+    Form baseForm = analyzedInstance.inst.baseForm();
+    List<AnchoredMorphChange> goldMorphChanges = analyzedInstance.getCachedChanges();
+    CachedSequence cachedSequence = (priorState != null ? priorState.getCachedSequence(analyzedInstance.inst) : null);
+    if (cachedSequence != null) {
+      numRestored.incrementAndGet();
+      List<int[]> rematchedFeatureArrays = new ArrayList<int[]>();
+      Sequence sequence = restoreSequence(baseForm, goldMorphChanges, cachedSequence, changesToRematch, indexer, rematchedFeatureArrays);
+      return new LocallyIndexedSequence(sequence, indexer, rematchedFeatureArrays);
+    } else {
+      List<AnchoredMorphChange> possibleMorphChanges = findPossibleChanges(baseForm, null, Long.MAX_VALUE);
+      Sequence sequence = newSequence(new LemmaContext(baseForm, ruleFeaturizer, nullFeaturizer), possibleMorphChanges, goldMorphChanges, indexer, true, null);
+      List<int[]> featureArrays = new ArrayList<int[]>(sequence.featuresEachMorphChange);
+      featureArrays.addAll(sequence.featuresEachPreservation);
+      return new LocallyIndexedSequence(sequence, indexer, featureArrays);
+    }
+  }
+  
+  /**
+   * Drops the featurized training lattices that train() keeps for save() and
+   * predictTrainInstances(), neither of which can be called afterwards.
+   */
+  public void discardTrainSequences() {
+    this.trainSequences = null;
+  }
+  
+  /**
+   * Saves the trained model so that later runs can warm-start from it.
+   */
+  public void save(String path) {
+    assert trainSequences != null : "Must call train() before save()";
+    JointModelState.write(path, morphChangeIndexer, changeFilterer, extractedModel, featureIndexer, weights, trainSequences);
   }
   
   private Sequence makeSequence(Form baseForm, List<AnchoredMorphChange> goldChanges, boolean addToIndexer) {
+    List<AnchoredMorphChange> possibleMorphChanges = findPossibleChanges(baseForm, null, Long.MAX_VALUE);
+    return newSequence(new LemmaContext(baseForm, ruleFeaturizer, nullFeaturizer), possibleMorphChanges, goldChanges, featureIndexer, addToIndexer, null);
+  }
+  
+  /**
+   * @param deadlineNanos A System.nanoTime() value, or Long.MAX_VALUE for no deadline
+   */
+  private static boolean isPast(long deadlineNanos) {
+    return deadlineNanos != Long.MAX_VALUE && System.nanoTime() > deadlineNanos;
+  }
+  
+  /**
+   * @param allowedChanges If non-null, only these changes are matched against the base form
+   * @param deadlineNanos System.nanoTime() value after which to give up (Long.MAX_VALUE for none)
+   * @return All anchored changes matching the base form in index order, or null if the
+   * deadline passed first
+   */
+  public List<AnchoredMorphChange> findPossibleChanges(Form baseForm, Set<MorphChange> allowedChanges, long deadlineNanos) {
     List<AnchoredMorphChange> possibleMorphChanges = new ArrayList<AnchoredMorphChange>();
     for (MorphChange morphChange : morphChangeIndexer) {
+      // Changes carried over from a prior model may no longer occur in the training set
+      if (!changeFilterer.hasFilterPattern(morphChange) || (allowedChanges != null && !allowedChanges.contains(morphChange))) {
+        continue;
+      }
+      if (isPast(deadlineNanos)) {
+        return null;
+      }
       List<AnchoredSpan> matchingSpans = changeFilterer.findMatchingSpans(baseForm, morphChange);
       for (AnchoredSpan matchingSpan : matchingSpans) {
         possibleMorphChanges.add(new AnchoredMorphChange(morphChange, matchingSpan));
       }
     }
-    return new Sequence(baseForm, possibleMorphChanges, goldChanges, ruleFeaturizer, nullFeaturizer, morphChangeIndexer, featureIndexer, addToIndexer);
+    return possibleMorphChanges;
+  }
+  
+  /**
+   * @return The maxCandidates anchored changes whose changes were extracted most often
+   * from the training set (ties broken by index order), kept in their original order
+   */
+  public List<AnchoredMorphChange> keepMostFrequentChanges(List<AnchoredMorphChange> possibleMorphChanges, int maxCandidates) {
+    if (possibleMorphChanges.size() <= maxCandidates) {
+      return possibleMorphChanges;
+    }
+    List<AnchoredMorphChange> sortedChanges = new ArrayList<AnchoredMorphChange>(possibleMorphChanges);
+    // Stable sort, so equally frequent changes stay in index order
+    Collections.sort(sortedChanges, new Comparator<AnchoredMorphChange>() {
+      @Override
+      public int compare(AnchoredMorphChange first, AnchoredMorphChange second) {
+        return getExtractionCount(second.change) - getExtractionCount(first.change);
+      }
+    });
+    Set<AnchoredMorphChange> keptChanges = new HashSet<AnchoredMorphChange>(sortedChanges.subList(0, maxCandidates));
+    List<AnchoredMorphChange> cappedChanges = new ArrayList<AnchoredMorphChange>();
+    for (AnchoredMorphChange change : possibleMorphChanges) {
+      if (keptChanges.contains(change)) {
+        cappedChanges.add(change);
+      }
+    }
+    return cappedChanges;
+  }
+  
+  private int getExtractionCount(MorphChange change) {
+    // Changes carried over from a prior model may not have been extracted this time
+    Set<AnchoredMorphChange> extractions = extractedModel.extractedMorphChanges.get(change);
+    return (extractions == null ? 0 : extractions.size());
+  }
+  
+  /**
+   * Rebuilds a training sequence from its saved features, re-matching only the given changes.
+   * Possible changes are kept in index order, as in makeSequence(). Features of re-matched
+   * changes are looked up in rematchIndexer, and their arrays are added to rematchedFeatureArrays.
+   */
+  private Sequence restoreSequence(Form baseForm, List<AnchoredMorphChange> goldChanges, CachedSequence cachedSequence, Set<MorphChange> changesToRematch,
+                                   Indexer<String> rematchIndexer, List<int[]> rematchedFeatureArrays) {
+    List<AnchoredMorphChange> possibleMorphChanges = new ArrayList<AnchoredMorphChange>();
+    List<int[]> featuresEachMorphChange = new ArrayList<int[]>();
+    int cachedIdx = 0;
+    for (int changeIdx = 0; changeIdx < morphChangeIndexer.size(); changeIdx++) {
+      MorphChange morphChange = morphChangeIndexer.getObject(changeIdx);
+      boolean rematch = changesToRematch.contains(morphChange);
+      for (; cachedIdx < cachedSequence.changeIndices.length && cachedSequence.changeIndices[cachedIdx] == changeIdx; cachedIdx++) {
+        if (!rematch && changeFilterer.hasFilterPattern(morphChange)) {
+          AnchoredSpan span = new AnchoredSpan(baseForm, cachedSequence.starts[cachedIdx], cachedSequence.ends[cachedIdx]);
+          possibleMorphChanges.add(new AnchoredMorphChange(morphChange, span));
+          featuresEachMorphChange.add(cachedSequence.featuresEachMorphChange.get(cachedIdx));
+        }
+      }
+      if (rematch) {
+        for (AnchoredSpan matchingSpan : changeFilterer.findMatchingSpans(baseForm, morphChange)) {
+          AnchoredMorphChange change = new AnchoredMorphChange(morphChange, matchingSpan);
+          possibleMorphChanges.add(change);
+          int[] features = Sequence.featurizeChange(change, ruleFeaturizer, morphChangeIndexer, rematchIndexer, true);
+          featuresEachMorphChange.add(features);
+          rematchedFeatureArrays.add(features);
+        }
+      }
+    }
+    assert cachedIdx == cachedSequence.changeIndices.length;
+    return new Sequence(baseForm, possibleMorphChanges, featuresEachMorphChange, goldChanges, cachedSequence.featuresEachPreservation);
   }
   
   @Override
@@ -425,13 +1256,320 @@ public class JointSpanMatchingPredictor implements Predictor {
   }
 
   public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs) {
-    Sequence seq = makeSequence(baseForm, null, false);
-    List<AnchoredMorphChange> predChanges = seq.predict(this.weights);
+    return predict(newLemmaContext(baseForm), attrs, null);
+  }
+  
+  /**
+   * @return A context for featurizing lattices over the given base form, which can also be
+   * used by any other predictor built with the same featurizers
+   */
+  public LemmaContext newLemmaContext(Form baseForm) {
+    return new LemmaContext(baseForm, ruleFeaturizer, nullFeaturizer);
+  }
+  
+  /**
+   * Looks the prediction up in the decode cache, if there is one, before decoding the full lattice.
+   */
+  private ParadigmHypothesis predict(LemmaContext context, SortedSet<Attributes> attrs, Map<MorphChange,ChangeFeatures> batchFeatures) {
+    Form baseForm = context.baseForm;
+    Pair<Form,AttributeSchema> cacheKey = null;
+    if (decodeCache != null) {
+      cacheKey = Pair.makePair(baseForm, AttributeSchema.forAttrs(attrs));
+      ParadigmHypothesis cachedHypothesis = decodeCache.get(cacheKey);
+      if (cachedHypothesis != null) {
+        return cachedHypothesis;
+      }
+    }
+    ParadigmHypothesis hypothesis = decode(context, attrs, findPossibleChanges(baseForm, null, Long.MAX_VALUE), batchFeatures);
+    if (decodeCache != null) {
+      decodeCache.put(cacheKey, hypothesis);
+    }
+    return hypothesis;
+  }
+  
+  /**
+   * Decodes each distinct base form once. Lemmas with similar endings match the same
+   * changes with many of the same span features around them, so each conjunction of a
+   * change's feature prefix with a span feature is only looked up once per batch.
+   */
+  @Override
+  public List<ParadigmHypothesis> predictBatch(List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances) {
+    List<LemmaContext> contexts = new ArrayList<LemmaContext>(baseForms.size());
+    for (Form baseForm : baseForms) {
+      contexts.add(newLemmaContext(baseForm));
+    }
+    return predictBatch(contexts, attrs);
+  }
+  
+  /**
+   * As predictBatch(), over lemma contexts that may be shared with other predictors (and
+   * threads), e.g. the other slots' predictors of a FACTORED model.
+   */
+  public List<ParadigmHypothesis> predictBatch(List<LemmaContext> contexts, SortedSet<Attributes> attrs) {
+    List<Form> baseForms = new ArrayList<Form>(contexts.size());
+    for (LemmaContext context : contexts) {
+      baseForms.add(context.baseForm);
+    }
+    int[] firstOccurrences = PredictionUtils.firstOccurrences(baseForms, null);
+    Map<MorphChange,ChangeFeatures> featureCache = new HashMap<MorphChange,ChangeFeatures>();
+    List<ParadigmHypothesis> hypotheses = new ArrayList<ParadigmHypothesis>(baseForms.size());
+    for (int i = 0; i < baseForms.size(); i++) {
+      if (firstOccurrences[i] == i) {
+        hypotheses.add(predict(contexts.get(i), attrs, featureCache));
+      } else {
+        hypotheses.add(hypotheses.get(firstOccurrences[i]));
+      }
+    }
+    return hypotheses;
+  }
+  
+  /**
+   * Decodes over a lattice containing only the given anchored changes, e.g. ones
+   * returned by findPossibleChanges() and capped with keepMostFrequentChanges().
+   * @param deadlineNanos System.nanoTime() value after which to give up (Long.MAX_VALUE for none);
+   * checked while featurizing the lattice, before decoding it, and at each position of the Viterbi pass
+   * @return The prediction, or null if the deadline passed first
+   */
+  public ParadigmHypothesis predictFromCandidates(Form baseForm, SortedSet<Attributes> attrs, List<AnchoredMorphChange> possibleMorphChanges,
+                                                  long deadlineNanos) {
+    return decode(newLemmaContext(baseForm), attrs, possibleMorphChanges, null, deadlineNanos);
+  }
+  
+  /**
+   * Features already computed for one change during a batch of predictions.
+   */
+  private static class ChangeFeatures {
+    public final List<String> featurePrefixes;
+    // For each span feature, the index of its conjunction with each prefix
+    public final Map<String,int[]> indicesBySpanFeature;
+    
+    public ChangeFeatures(List<String> featurePrefixes) {
+      this.featurePrefixes = featurePrefixes;
+      this.indicesBySpanFeature = new HashMap<String,int[]>();
+    }
+  }
+  
+  /**
+   * @return The change's features, laid out as in Sequence.featurizeChange() but reusing
+   * (and adding to) the lookups in batchFeatures
+   */
+  private int[] featurizeChangeInBatch(AnchoredMorphChange change, LemmaContext context, Map<MorphChange,ChangeFeatures> batchFeatures) {
+    ChangeFeatures changeFeatures = batchFeatures.get(change.change);
+    if (changeFeatures == null) {
+      changeFeatures = new ChangeFeatures(Sequence.getFeaturePrefixes(change.change, morphChangeIndexer));
+      batchFeatures.put(change.change, changeFeatures);
+    }
+    List<String> featurePrefixes = changeFeatures.featurePrefixes;
+    List<String> spanFeatures = context.getRuleSpanFeatures(change.spanAppliedTo);
+    int[] features = new int[featurePrefixes.size() * spanFeatures.size()];
+    for (int j = 0; j < spanFeatures.size(); j++) {
+      String spanFeature = spanFeatures.get(j);
+      int[] indices = changeFeatures.indicesBySpanFeature.get(spanFeature);
+      if (indices == null) {
+        indices = new int[featurePrefixes.size()];
+        for (int i = 0; i < featurePrefixes.size(); i++) {
+          indices[i] = Sequence.lookupFeature(featurePrefixes.get(i) + spanFeature, featureIndexer, false);
+        }
+        changeFeatures.indicesBySpanFeature.put(spanFeature, indices);
+      }
+      for (int i = 0; i < indices.length; i++) {
+        features[i * spanFeatures.size() + j] = indices[i];
+      }
+    }
+    return features;
+  }
+  
+  /**
+   * Featurizes a lattice against the given indexer. Features looked up in featureIndexer
+   * go through the window caches, except while it is still open and nothing may be added
+   * to it (features missing then would be cached as UNK_FEAT). Arrays from the caches are
+   * shared between sequences, so they're never used with other indexers, whose arrays are
+   * remapped in place.
+   * @param batchFeatures If non-null, lookups for features that aren't cached are shared
+   * through it (see predictBatch()); nothing may be added to the indexer in that case
+   */
+  private Sequence newSequence(LemmaContext context, List<AnchoredMorphChange> possibleMorphChanges, List<AnchoredMorphChange> goldChanges,
+                               Indexer<String> indexer, boolean addToIndexer, Map<MorphChange,ChangeFeatures> batchFeatures) {
+    return newSequence(context, possibleMorphChanges, goldChanges, indexer, addToIndexer, batchFeatures, Long.MAX_VALUE);
+  }
+  
+  /**
+   * @param deadlineNanos System.nanoTime() value after which to give up (Long.MAX_VALUE for none)
+   * @return The featurized lattice, or null if the deadline passed first
+   */
+  private Sequence newSequence(LemmaContext context, List<AnchoredMorphChange> possibleMorphChanges, List<AnchoredMorphChange> goldChanges,
+                               Indexer<String> indexer, boolean addToIndexer, Map<MorphChange,ChangeFeatures> batchFeatures,
+                               long deadlineNanos) {
+    assert batchFeatures == null || (indexer == featureIndexer && !addToIndexer);
+    assert context.ruleFeaturizer == ruleFeaturizer && context.nullFeaturizer == nullFeaturizer;
+    Form baseForm = context.baseForm;
+    boolean useCaches = ruleFeatureCache != null && indexer == featureIndexer && (addToIndexer || featureIndexer.isLocked());
+    if (!useCaches && batchFeatures == null && deadlineNanos == Long.MAX_VALUE) {
+      return new Sequence(baseForm, possibleMorphChanges, goldChanges, ruleFeaturizer, nullFeaturizer, morphChangeIndexer, indexer, addToIndexer);
+    }
+    List<int[]> featuresEachMorphChange = new ArrayList<int[]>(possibleMorphChanges.size());
+    for (AnchoredMorphChange change : possibleMorphChanges) {
+      if (isPast(deadlineNanos)) {
+        return null;
+      }
+      Pair<MorphChange,String> windowKey = null;
+      int[] features = null;
+      if (useCaches) {
+        windowKey = Pair.makePair(change.change, context.getRuleWindowKey(change.spanAppliedTo));
+        features = ruleFeatureCache.get(windowKey);
+      }
+      if (features == null) {
+        if (batchFeatures != null) {
+          features = featurizeChangeInBatch(change, context, batchFeatures);
+        } else {
+          features = Sequence.featurizeChange(Sequence.getFeaturePrefixes(change.change, morphChangeIndexer),
+                                              context.getRuleSpanFeatures(change.spanAppliedTo), indexer, addToIndexer);
+        }
+        if (useCaches) {
+          features = ruleFeatureCache.putIfAbsent(windowKey, features);
+        }
+      }
+      featuresEachMorphChange.add(features);
+    }
+    List<int[]> featuresEachPreservation = Sequence.featurizePreservations(context, indexer, addToIndexer, (useCaches ? nullFeatureCache : null));
+    return new Sequence(baseForm, possibleMorphChanges, featuresEachMorphChange, goldChanges, featuresEachPreservation);
+  }
+  
+  /**
+   * @param featureCache If non-null, change features are shared through it (see featurizeCandidates())
+   */
+  private ParadigmHypothesis decode(LemmaContext context, SortedSet<Attributes> attrs, List<AnchoredMorphChange> possibleMorphChanges,
+                                    Map<MorphChange,ChangeFeatures> featureCache) {
+    return decode(context, attrs, possibleMorphChanges, featureCache, Long.MAX_VALUE);
+  }
+  
+  /**
+   * @return The prediction, or null if deadlineNanos passed first
+   */
+  private ParadigmHypothesis decode(LemmaContext context, SortedSet<Attributes> attrs, List<AnchoredMorphChange> possibleMorphChanges,
+                                    Map<MorphChange,ChangeFeatures> featureCache, long deadlineNanos) {
+    DecodeEvent event = new DecodeEvent();
+    event.begin();
+    long startNanos = System.nanoTime();
+    Sequence seq = newSequence(context, possibleMorphChanges, null, featureIndexer, false, featureCache, deadlineNanos);
+    FEATURIZE_MICROS.recordMicrosSince(startNanos);
+    if (seq == null || isPast(deadlineNanos)) {
+      return null;
+    }
+    ParadigmHypothesis hypothesis = decodeSequence(seq, attrs, deadlineNanos);
+    if (hypothesis == null) {
+      return null;
+    }
+    if (event.shouldCommit()) {
+      event.baseForm = context.baseForm.toString();
+      event.candidateEdges = possibleMorphChanges.size();
+      event.predictedChanges = hypothesis.appliedChanges.size();
+      event.commit();
+    }
+    return hypothesis;
+  }
+  
+  private ParadigmHypothesis decodeSequence(Sequence seq, SortedSet<Attributes> attrs) {
+    return decodeSequence(seq, attrs, Long.MAX_VALUE);
+  }
+  
+  /**
+   * @return The prediction, or null if deadlineNanos passed first
+   */
+  private ParadigmHypothesis decodeSequence(Sequence seq, SortedSet<Attributes> attrs, long deadlineNanos) {
+    long startNanos = System.nanoTime();
+    double[] changeScores = seq.computeChangeScores(this.weights);
+    double[] preserveScores = seq.computePreserveScores(this.weights);
+    List<AnchoredMorphChange> predChanges = seq.predict(changeScores, preserveScores, deadlineNanos);
+    if (predChanges == null) {
+      return null;
+    }
+    DP_MICROS.recordMicrosSince(startNanos);
     Counter<AnchoredMorphChange> scores = new Counter<AnchoredMorphChange>();
     for (AnchoredMorphChange change : predChanges) {
-      scores.setCount(change, 0.0);
+      scores.setCount(change, seq.getChangeScore(change, changeScores, preserveScores));
+    }
+    startNanos = System.nanoTime();
+    ParadigmInstance predInstance = new ParadigmInstance(seq.baseForm, attrs, predChanges);
+    INFLECT_MICROS.recordMicrosSince(startNanos);
+    return new ParadigmHypothesis(predInstance, predChanges, scores, seq.computeScore(predChanges, changeScores, preserveScores));
+  }
+  
+  /**
+   * Predicts the training instances' paradigms by decoding the lattices that train()
+   * featurized for them with the final weights, which gives the same hypotheses as
+   * predict() without featurizing every lemma again. Runs on Driver.numThreads threads.
+   * @return One hypothesis per training instance, in the order of the extracted model's
+   * analyzed instances
+   */
+  public List<ParadigmHypothesis> predictTrainInstances() {
+    assert trainSequences != null : "Must call train() before predictTrainInstances()";
+    final List<AnalyzedParadigmInstance> analyzedInstances = extractedModel.analyzedInstances;
+    final ParadigmHypothesis[] hypotheses = new ParadigmHypothesis[trainSequences.size()];
+    if (Driver.numThreads <= 1) {
+      for (int i = 0; i < hypotheses.length; i++) {
+        hypotheses[i] = decodeSequence(trainSequences.get(i), analyzedInstances.get(i).inst.getAttrSetSorted());
+      }
+      return Arrays.asList(hypotheses);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Driver.numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (int thread = 0; thread < Driver.numThreads; thread++) {
+        final int firstIdx = thread;
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            // Interleaved so that long and short lemmas are spread over the threads
+            for (int i = firstIdx; i < hypotheses.length; i += Driver.numThreads) {
+              hypotheses[i] = decodeSequence(trainSequences.get(i), analyzedInstances.get(i).inst.getAttrSetSorted());
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      return Arrays.asList(hypotheses);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  /**
+   * @return Up to k hypotheses with distinct predicted paradigms, in order of decreasing
+   * model score. Change sequences that yield the same paradigm as a higher-scoring one
+   * are skipped, but only the KBEST_RANKS_PER_HYPOTHESIS * k best sequences are examined,
+   * so fewer than k hypotheses may come back when many sequences yield the same paradigm.
+   */
+  public List<ParadigmHypothesis> predictKBest(Form baseForm, SortedSet<Attributes> attrs, int k) {
+    Sequence seq = makeSequence(baseForm, null, false);
+    double[] changeScores = seq.computeChangeScores(this.weights);
+    double[] preserveScores = seq.computePreserveScores(this.weights);
+    Sequence.KBestLattice lattice = seq.new KBestLattice(changeScores, preserveScores);
+    List<ParadigmHypothesis> hypotheses = new ArrayList<ParadigmHypothesis>();
+    // All of these paradigms share a schema, so comparing forms slot-by-slot suffices
+    Set<List<Form>> paradigmsSeen = new HashSet<List<Form>>();
+    int maxRanks = KBEST_RANKS_PER_HYPOTHESIS * k;
+    for (int rank = 0; rank < maxRanks && hypotheses.size() < k; rank++) {
+      Derivation derivation = lattice.getKthBest(rank);
+      if (derivation == null) {
+        break;
+      }
+      List<AnchoredMorphChange> changes = derivation.getChanges();
+      ParadigmInstance predInstance = new ParadigmInstance(baseForm, attrs, changes);
+      if (paradigmsSeen.add(predInstance.getInflFormsBySlot())) {
+        Counter<AnchoredMorphChange> scores = new Counter<AnchoredMorphChange>();
+        for (AnchoredMorphChange change : changes) {
+          scores.setCount(change, seq.getChangeScore(change, changeScores, preserveScores));
+        }
+        hypotheses.add(new ParadigmHypothesis(predInstance, changes, scores, derivation.score));
+      }
     }
-    ParadigmInstance predInstance = new ParadigmInstance( baseForm, attrs, predChanges);
-    return new ParadigmHypothesis(predInstance, predChanges, scores, 0);
+    return hypotheses;
   }
 }
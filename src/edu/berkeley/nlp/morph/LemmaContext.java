@@ -0,0 +1,107 @@
+package edu.berkeley.nlp.morph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The parts of featurizing a lemma's lattice that only depend on the lemma and the
+ * featurizers, not on the model: the rule features and window key of each span that a
+ * change matches, and the FEAT:ALL preservation features and window key of each glyph.
+ * These are computed lazily and kept, so a context built once per lemma can be handed
+ * to several predictors with the same featurizers (e.g. the per-slot predictors of the
+ * FACTORED model), which then only match their own changes and look the strings up in
+ * their own feature indexers.
+ *
+ * Contexts can be shared between threads; two threads that ask for the same span at
+ * once may both compute it, which only wastes a little work.
+ *
+ * @author gdurrett
+ *
+ */
+public class LemmaContext {
+
+  public final Form baseForm;
+  public final AnchoredSpanFeaturizer ruleFeaturizer;
+  public final AnchoredSpanFeaturizer nullFeaturizer;
+
+  // Indexed by spanIndex()
+  private final AtomicReferenceArray<List<String>> ruleSpanFeatures;
+  private final AtomicReferenceArray<String> ruleWindowKeys;
+  // Indexed by glyph position
+  private final AtomicReferenceArray<List<String>> preservationFeatures;
+  private final AtomicReferenceArray<String> preservationWindowKeys;
+
+  public LemmaContext(Form baseForm, AnchoredSpanFeaturizer ruleFeaturizer, AnchoredSpanFeaturizer nullFeaturizer) {
+    this.baseForm = baseForm;
+    this.ruleFeaturizer = ruleFeaturizer;
+    this.nullFeaturizer = nullFeaturizer;
+    int numSpans = (baseForm.length() + 1) * (baseForm.length() + 1);
+    this.ruleSpanFeatures = new AtomicReferenceArray<List<String>>(numSpans);
+    this.ruleWindowKeys = new AtomicReferenceArray<String>(numSpans);
+    this.preservationFeatures = new AtomicReferenceArray<List<String>>(baseForm.length());
+    this.preservationWindowKeys = new AtomicReferenceArray<String>(baseForm.length());
+  }
+
+  private int spanIndex(AnchoredSpan span) {
+    assert span.form.equals(baseForm) : span.form + " is not " + baseForm;
+    return span.start * (baseForm.length() + 1) + span.end;
+  }
+
+  /**
+   * @return ruleFeaturizer.getFeatures(span)
+   */
+  public List<String> getRuleSpanFeatures(AnchoredSpan span) {
+    int spanIdx = spanIndex(span);
+    List<String> features = ruleSpanFeatures.get(spanIdx);
+    if (features == null) {
+      features = ruleFeaturizer.getFeatures(span);
+      ruleSpanFeatures.set(spanIdx, features);
+    }
+    return features;
+  }
+
+  /**
+   * @return ruleFeaturizer.getWindowKey(span)
+   */
+  public String getRuleWindowKey(AnchoredSpan span) {
+    int spanIdx = spanIndex(span);
+    String windowKey = ruleWindowKeys.get(spanIdx);
+    if (windowKey == null) {
+      windowKey = ruleFeaturizer.getWindowKey(span);
+      ruleWindowKeys.set(spanIdx, windowKey);
+    }
+    return windowKey;
+  }
+
+  /**
+   * @return The FEAT:ALL features for preserving the glyph at position i: the null
+   * featurizer's features around it, each prefixed by the glyph
+   */
+  public List<String> getPreservationFeatures(int i) {
+    List<String> features = preservationFeatures.get(i);
+    if (features == null) {
+      String featurePrefix = "PRESERVE:" + baseForm.charAt(i).toString();
+      List<String> spanFeatures = nullFeaturizer.getFeatures(new AnchoredSpan(baseForm, i, i+1));
+      features = new ArrayList<String>(spanFeatures.size());
+      for (String spanFeature : spanFeatures) {
+        features.add(featurePrefix + spanFeature);
+      }
+      preservationFeatures.set(i, features);
+    }
+    return features;
+  }
+
+  /**
+   * @return A key that is the same for two glyphs whenever getPreservationFeatures()
+   * gives them the same features
+   */
+  public String getPreservationWindowKey(int i) {
+    String windowKey = preservationWindowKeys.get(i);
+    if (windowKey == null) {
+      windowKey = baseForm.charAt(i).glyph + nullFeaturizer.getWindowKey(new AnchoredSpan(baseForm, i, i+1));
+      preservationWindowKeys.set(i, windowKey);
+    }
+    return windowKey;
+  }
+}
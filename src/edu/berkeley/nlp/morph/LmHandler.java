@@ -4,54 +4,91 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Set;
 
 import edu.berkeley.nlp.morph.fig.IOUtils;
 import edu.berkeley.nlp.morph.fig.LogInfo;
-import edu.berkeley.nlp.morph.util.Counter;
 import edu.berkeley.nlp.morph.util.Iterators;
+import edu.berkeley.nlp.morph.util.OpenAddressCounter;
 
 /**
- * Wrapper around vocabulary count information.
+ * Wrapper around vocabulary count information. Counts come either from a text LM
+ * (word \t count per line, sorted by decreasing count), which is loaded into memory,
+ * or from a binary LM written by MappedLm, which is memory-mapped.
  * 
  * @author gdurrett
  *
  */
 public class LmHandler {
   
-  private final Counter<Form> counts;
+  // Exactly one of these is non-null
+  private final OpenAddressCounter<Form> counts;
+  private final MappedLm mappedLm;
 
   public LmHandler(String fileName) {
     this(fileName, 0);
   }
   
   public LmHandler(String fileName, int minCountThreshold) {
-    this.counts = new Counter<Form>();
-    LogInfo.logss("Loading LM");
+    this(fileName, minCountThreshold, null);
+  }
+  
+  /**
+   * Loads a text LM, streaming over it and keeping only the given words so that huge
+   * count lists can be joined against a much smaller set of forms of interest.
+   * @param wordsToKeep Words to load counts for, or null to load everything
+   */
+  public LmHandler(String fileName, int minCountThreshold, Set<String> wordsToKeep) {
+    this.counts = new OpenAddressCounter<Form>(wordsToKeep == null ? 16 : wordsToKeep.size());
+    this.mappedLm = null;
+    LogInfo.logss("Loading LM" + (wordsToKeep == null ? "" : " restricted to " + wordsToKeep.size() + " words"));
+    long numLines = 0;
+    double totalCount = 0;
     try {
       Iterator<String> lineItr = IOUtils.lineIterator(fileName);
       for (String line : Iterators.able(lineItr)) {
-        String[] fields = line.split("\t");
-        assert fields.length == 2;
-        String word = fields[0];
-        int count = Integer.parseInt(fields[1]);
+        numLines++;
+        int tabIdx = line.indexOf('\t');
+        assert tabIdx != -1 && line.indexOf('\t', tabIdx + 1) == -1;
+        int count = Integer.parseInt(line.substring(tabIdx + 1));
         if (count < minCountThreshold) {
           break;
         }
-        Form form = new Form(word);
-        counts.setCount(form, count);
+        totalCount += count;
+        String word = line.substring(0, tabIdx);
+        if (wordsToKeep == null || wordsToKeep.contains(word)) {
+          counts.setCount(new Form(word), count);
+        }
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logss("LM loaded: " + counts.totalCount() + " tokens read for " + counts.size() + " types, cut off at count " + minCountThreshold);
+    LogInfo.logss("LM loaded: " + totalCount + " tokens read for " + numLines + " types, " + counts.size() +
+                  " types kept, cut off at count " + minCountThreshold);
+  }
+  
+  private LmHandler(MappedLm mappedLm) {
+    this.counts = null;
+    this.mappedLm = mappedLm;
+  }
+  
+  /**
+   * @return An LmHandler backed by a memory-mapped binary LM written by MappedLm
+   */
+  public static LmHandler readBinary(String fileName) {
+    return new LmHandler(new MappedLm(fileName));
   }
   
   public Collection<Form> getAllForms() {
-    return counts.keySet();
+    return (mappedLm != null ? mappedLm.getAllForms() : counts.keySet());
+  }
+  
+  public boolean containsForm(Form form) {
+    return (mappedLm != null ? mappedLm.containsForm(form) : counts.containsKey(form));
   }
   
   public double getCount(Form form) {
-    return counts.getCount(form);
+    return (mappedLm != null ? mappedLm.getCount(form) : counts.getCount(form));
   }
   
   /**
@@ -61,7 +98,7 @@ public class LmHandler {
   public static void main(String[] args) {
     String textPath = args[0];
     String lmPath = args[1];
-    Counter<String> wordCounts = new Counter<String>();
+    OpenAddressCounter<String> wordCounts = new OpenAddressCounter<String>();
     PrintWriter outWriter = IOUtils.openOutHard(lmPath);
     try {
       Iterator<String> lineItr = IOUtils.lineIterator(textPath);
@@ -79,7 +116,7 @@ public class LmHandler {
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    for (String word : Iterators.able(wordCounts.asPriorityQueue())) {
+    for (String word : wordCounts.getSortedKeys()) {
       outWriter.println(word + "\t" + ((int)wordCounts.getCount(word)));
     }
     outWriter.close();
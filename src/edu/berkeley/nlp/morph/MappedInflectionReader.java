@@ -0,0 +1,319 @@
+package edu.berkeley.nlp.morph;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.nlp.morph.ParadigmInstanceReader.RowReader;
+import edu.berkeley.nlp.morph.fig.LogInfo;
+
+/**
+ * Byte-level reader for inflection files (the Wiktionary comma-separated format and
+ * the tab-separated CELEX format) that works directly off a memory-mapped copy of the
+ * file. Fields are located by scanning for single-byte delimiters, forms are decoded from
+ * UTF-8 straight into Forms, and Attributes are interned by their raw bytes so that each
+ * distinct attribute string in the file is only ever parsed once. Large files are mapped
+ * in windows of MAP_WINDOW_BYTES.
+ *
+ * @author gdurrett
+ *
+ */
+public class MappedInflectionReader implements RowReader {
+
+  public static final int MAP_WINDOW_BYTES = 1 << 28;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final String fileName;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final byte fieldDelimiter;
+  private final byte[] alternativeDelimiter;
+
+  // Current window of the file and where it starts
+  private MappedByteBuffer window;
+  private long windowStart;
+  // Position (relative to the window) of the start of the next line
+  private int nextLineStart;
+
+  // Byte offsets of the current row's fields, relative to the window
+  private int inflStart, inflEnd, baseStart, baseEnd, attrsStart, attrsEnd;
+
+  // Attributes interned by their raw bytes (open addressing, linear probing)
+  private byte[][] internedAttrsBytes;
+  private Attributes[] internedAttrs;
+  private int numInternedAttrs;
+
+  private char[] charBuffer;
+  private byte[] byteBuffer;
+  private long numRows;
+  private final long startTime;
+
+  public MappedInflectionReader(String fileName, String fieldDelimiter, String alternativeDelimiter) {
+    assert fieldDelimiter.getBytes(UTF8).length == 1 : "Field delimiter must be a single byte: " + fieldDelimiter;
+    this.fileName = fileName;
+    this.fieldDelimiter = fieldDelimiter.getBytes(UTF8)[0];
+    this.alternativeDelimiter = alternativeDelimiter.getBytes(UTF8);
+    try {
+      this.file = new RandomAccessFile(fileName, "r");
+      this.channel = file.getChannel();
+      this.fileSize = channel.size();
+      mapWindow(0);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    this.internedAttrsBytes = new byte[64][];
+    this.internedAttrs = new Attributes[64];
+    this.numInternedAttrs = 0;
+    this.charBuffer = new char[256];
+    this.byteBuffer = new byte[256];
+    this.numRows = 0;
+    this.startTime = System.nanoTime();
+  }
+
+  private void mapWindow(long start) throws IOException {
+    this.windowStart = start;
+    this.window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW_BYTES, fileSize - start));
+    this.nextLineStart = 0;
+  }
+
+  @Override
+  public boolean nextRow() {
+    try {
+      while (true) {
+        if (windowStart + nextLineStart >= fileSize) {
+          return false;
+        }
+        int lineEnd = findLineEnd(nextLineStart);
+        if (lineEnd == -1) {
+          // Line runs off the end of the window, so slide the window up to the line start
+          if (nextLineStart == 0) {
+            throw new RuntimeException("Line longer than " + MAP_WINDOW_BYTES + " bytes in " + fileName);
+          }
+          mapWindow(windowStart + nextLineStart);
+          continue;
+        }
+        int lineStart = nextLineStart;
+        nextLineStart = Math.min(lineEnd + 1, window.limit());
+        // Drop a trailing carriage return
+        if (lineEnd > lineStart && window.get(lineEnd - 1) == '\r') {
+          lineEnd--;
+        }
+        if (isBlank(lineStart, lineEnd)) {
+          continue;
+        }
+        inflStart = lineStart;
+        inflEnd = findByte(fieldDelimiter, inflStart, lineEnd);
+        baseStart = inflEnd + 1;
+        baseEnd = findByte(fieldDelimiter, baseStart, lineEnd);
+        attrsStart = baseEnd + 1;
+        attrsEnd = lineEnd;
+        assert inflEnd < lineEnd && baseEnd < lineEnd && findByte(fieldDelimiter, attrsStart, lineEnd) == lineEnd :
+          "Not 3 fields for line: " + decodeString(lineStart, lineEnd);
+        numRows++;
+        return true;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return The position of the newline ending the line that starts at start, the window
+   * limit if the window reaches the end of the file, or -1 if the line continues past
+   * the window.
+   */
+  private int findLineEnd(int start) {
+    int limit = window.limit();
+    for (int i = start; i < limit; i++) {
+      if (window.get(i) == '\n') {
+        return i;
+      }
+    }
+    return (windowStart + limit >= fileSize ? limit : -1);
+  }
+
+  private int findByte(byte target, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (window.get(i) == target) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  private boolean isBlank(int start, int end) {
+    for (int i = start; i < end; i++) {
+      byte b = window.get(i);
+      if (b != ' ' && b != '\t' && b != '\r') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean matchesAlternativeDelimiter(int posn, int end) {
+    if (alternativeDelimiter.length == 0 || posn + alternativeDelimiter.length > end) {
+      return false;
+    }
+    for (int i = 0; i < alternativeDelimiter.length; i++) {
+      if (window.get(posn + i) != alternativeDelimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String baseForm() {
+    return decodeString(baseStart, baseEnd);
+  }
+
+  @Override
+  public List<Form> inflForms() {
+    List<Form> inflForms = new ArrayList<Form>(1);
+    int altStart = inflStart;
+    int i = inflStart;
+    while (i < inflEnd) {
+      if (matchesAlternativeDelimiter(i, inflEnd)) {
+        inflForms.add(decodeForm(altStart, i));
+        i += alternativeDelimiter.length;
+        altStart = i;
+      } else {
+        i++;
+      }
+    }
+    inflForms.add(decodeForm(altStart, inflEnd));
+    return inflForms;
+  }
+
+  @Override
+  public Attributes attrs() {
+    int hash = 1;
+    for (int i = attrsStart; i < attrsEnd; i++) {
+      hash = 31 * hash + window.get(i);
+    }
+    int mask = internedAttrs.length - 1;
+    int slot = hash & mask;
+    while (internedAttrs[slot] != null) {
+      if (bytesEqual(internedAttrsBytes[slot], attrsStart, attrsEnd)) {
+        return internedAttrs[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    byte[] attrsBytes = new byte[attrsEnd - attrsStart];
+    for (int i = 0; i < attrsBytes.length; i++) {
+      attrsBytes[i] = window.get(attrsStart + i);
+    }
+    Attributes attrs = ParadigmInstanceReader.parseAttrs(new String(attrsBytes, UTF8));
+    internedAttrsBytes[slot] = attrsBytes;
+    internedAttrs[slot] = attrs;
+    numInternedAttrs++;
+    if (numInternedAttrs * 2 > internedAttrs.length) {
+      growInternTable();
+    }
+    return attrs;
+  }
+
+  private boolean bytesEqual(byte[] bytes, int start, int end) {
+    if (bytes.length != end - start) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] != window.get(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void growInternTable() {
+    byte[][] oldBytes = internedAttrsBytes;
+    Attributes[] oldAttrs = internedAttrs;
+    internedAttrsBytes = new byte[oldBytes.length * 2][];
+    internedAttrs = new Attributes[oldAttrs.length * 2];
+    int mask = internedAttrs.length - 1;
+    for (int i = 0; i < oldAttrs.length; i++) {
+      if (oldAttrs[i] != null) {
+        int hash = 1;
+        for (byte b : oldBytes[i]) {
+          hash = 31 * hash + b;
+        }
+        int slot = hash & mask;
+        while (internedAttrs[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        internedAttrsBytes[slot] = oldBytes[i];
+        internedAttrs[slot] = oldAttrs[i];
+      }
+    }
+  }
+
+  private String decodeString(int start, int end) {
+    int len = decodeUtf8(start, end);
+    return new String(charBuffer, 0, len);
+  }
+
+  private Form decodeForm(int start, int end) {
+    int len = decodeUtf8(start, end);
+    return new Form(charBuffer, 0, len);
+  }
+
+  /**
+   * Decodes the given byte range into charBuffer, returning the number of chars.
+   * ASCII is handled inline; anything else goes through the JDK decoder.
+   */
+  private int decodeUtf8(int start, int end) {
+    int len = end - start;
+    if (charBuffer.length < len) {
+      charBuffer = new char[Math.max(len, charBuffer.length * 2)];
+    }
+    for (int i = 0; i < len; i++) {
+      byte b = window.get(start + i);
+      if (b < 0) {
+        return decodeUtf8Slow(start, end);
+      }
+      charBuffer[i] = (char)b;
+    }
+    return len;
+  }
+
+  private int decodeUtf8Slow(int start, int end) {
+    int len = end - start;
+    if (byteBuffer.length < len) {
+      byteBuffer = new byte[Math.max(len, byteBuffer.length * 2)];
+    }
+    for (int i = 0; i < len; i++) {
+      byteBuffer[i] = window.get(start + i);
+    }
+    String decoded = new String(byteBuffer, 0, len, UTF8);
+    decoded.getChars(0, decoded.length(), charBuffer, 0);
+    return decoded.length();
+  }
+
+  public int getNumInternedAttrs() {
+    return numInternedAttrs;
+  }
+
+  @Override
+  public void close() {
+    if (window == null) {
+      return;
+    }
+    long elapsedMillis = Math.max(1, (System.nanoTime() - startTime)/1000000);
+    LogInfo.logss("Parsed " + numRows + " rows (" + numInternedAttrs + " distinct attribute strings) in " +
+                  elapsedMillis + " millis, " + (numRows * 1000/elapsedMillis) + " rows/sec");
+    try {
+      channel.close();
+      file.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    window = null;
+  }
+}
@@ -0,0 +1,256 @@
+package edu.berkeley.nlp.morph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.berkeley.nlp.morph.fig.IOUtils;
+import edu.berkeley.nlp.morph.fig.LogInfo;
+import edu.berkeley.nlp.morph.util.Iterators;
+
+/**
+ * Read-only vocabulary counts stored in a compact binary file that is memory-mapped
+ * rather than loaded, so even very large word-count lists are available immediately
+ * and don't take up heap. Words are looked up by binary search over their UTF-8 bytes.
+ *
+ * Layout (big-endian): magic, version, number of types n, total count (long), then n
+ * counts, n+1 offsets into the string arena, and the arena itself, which holds the
+ * UTF-8 bytes of every word concatenated in unsigned lexicographic byte order.
+ *
+ * Run main() to convert a text LM (word \t count per line, as written by LmHandler.main())
+ * into this format.
+ *
+ * @author gdurrett
+ *
+ */
+public class MappedLm {
+
+  public static final int MAGIC = 0x4d524c4d;
+  public static final int VERSION = 1;
+  private static final int HEADER_BYTES = 20;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int numTypes;
+  private final long totalCount;
+  private final IntBuffer counts;
+  private final IntBuffer offsets;
+  private final ByteBuffer arena;
+
+  public MappedLm(String fileName) {
+    try {
+      RandomAccessFile file = new RandomAccessFile(fileName, "r");
+      try {
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+          throw new RuntimeException("Not a binary LM (or written by a different version): " + fileName);
+        }
+        this.numTypes = header.getInt();
+        this.totalCount = header.getLong();
+        long countsStart = HEADER_BYTES;
+        long offsetsStart = countsStart + 4L * numTypes;
+        long arenaStart = offsetsStart + 4L * (numTypes + 1);
+        // Mappings are limited to 2GB each, so the three sections are mapped separately
+        this.counts = channel.map(FileChannel.MapMode.READ_ONLY, countsStart, 4L * numTypes).asIntBuffer();
+        this.offsets = channel.map(FileChannel.MapMode.READ_ONLY, offsetsStart, 4L * (numTypes + 1)).asIntBuffer();
+        this.arena = channel.map(FileChannel.MapMode.READ_ONLY, arenaStart, channel.size() - arenaStart);
+      } finally {
+        // Mappings stay valid after the channel is closed
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    LogInfo.logss("Mapped binary LM: " + totalCount + " tokens for " + numTypes + " types");
+  }
+
+  public int size() {
+    return numTypes;
+  }
+
+  public long totalCount() {
+    return totalCount;
+  }
+
+  /**
+   * @return The count of the given form, or zero if it isn't in the LM
+   */
+  public double getCount(Form form) {
+    int idx = find(encode(form));
+    return (idx < 0 ? 0.0 : counts.get(idx));
+  }
+
+  public boolean containsForm(Form form) {
+    return find(encode(form)) >= 0;
+  }
+
+  /**
+   * Decodes every word in the LM; this touches the whole file, so use getCount() instead
+   * where possible.
+   */
+  public List<Form> getAllForms() {
+    List<Form> forms = new ArrayList<Form>(numTypes);
+    for (int i = 0; i < numTypes; i++) {
+      byte[] bytes = new byte[offsets.get(i + 1) - offsets.get(i)];
+      for (int j = 0; j < bytes.length; j++) {
+        bytes[j] = arena.get(offsets.get(i) + j);
+      }
+      forms.add(new Form(new String(bytes, UTF8)));
+    }
+    return forms;
+  }
+
+  private static byte[] encode(Form form) {
+    char[] chars = new char[form.length()];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = form.charAt(i).glyph;
+    }
+    return new String(chars).getBytes(UTF8);
+  }
+
+  /**
+   * @return The index of the word with the given bytes, or -1 if there is none
+   */
+  private int find(byte[] word) {
+    int lo = 0;
+    int hi = numTypes - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compareToEntry(word, mid);
+      if (cmp == 0) {
+        return mid;
+      } else if (cmp < 0) {
+        hi = mid - 1;
+      } else {
+        lo = mid + 1;
+      }
+    }
+    return -1;
+  }
+
+  private int compareToEntry(byte[] word, int idx) {
+    int start = offsets.get(idx);
+    int len = offsets.get(idx + 1) - start;
+    int minLen = Math.min(word.length, len);
+    for (int i = 0; i < minLen; i++) {
+      int diff = (word[i] & 0xff) - (arena.get(start + i) & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return word.length - len;
+  }
+
+  private static int compareBytes(byte[] first, byte[] second) {
+    int minLen = Math.min(first.length, second.length);
+    for (int i = 0; i < minLen; i++) {
+      int diff = (first[i] & 0xff) - (second[i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return first.length - second.length;
+  }
+
+  /**
+   * Converts a text LM into the binary format. Lines with counts below minCountThreshold
+   * are dropped; if a word appears more than once, its last count is used.
+   */
+  public static void write(String textLmPath, String binaryLmPath, int minCountThreshold) {
+    final List<byte[]> words = new ArrayList<byte[]>();
+    final List<Integer> wordCounts = new ArrayList<Integer>();
+    try {
+      Iterator<String> lineItr = IOUtils.lineIterator(textLmPath);
+      for (String line : Iterators.able(lineItr)) {
+        int tabIdx = line.indexOf('\t');
+        assert tabIdx != -1 : "Bad LM line: " + line;
+        int count = Integer.parseInt(line.substring(tabIdx + 1));
+        if (count >= minCountThreshold) {
+          words.add(line.substring(0, tabIdx).getBytes(UTF8));
+          wordCounts.add(count);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Integer[] order = new Integer[words.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    // Stable sort, so among duplicates the last one read comes last
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer first, Integer second) {
+        return compareBytes(words.get(first), words.get(second));
+      }
+    });
+    List<Integer> uniqueOrder = new ArrayList<Integer>(order.length);
+    for (int i = 0; i < order.length; i++) {
+      if (i + 1 < order.length && compareBytes(words.get(order[i]), words.get(order[i+1])) == 0) {
+        continue;
+      }
+      uniqueOrder.add(order[i]);
+    }
+    long totalCount = 0;
+    long arenaSize = 0;
+    for (int idx : uniqueOrder) {
+      totalCount += wordCounts.get(idx);
+      arenaSize += words.get(idx).length;
+    }
+    if (arenaSize > Integer.MAX_VALUE) {
+      throw new RuntimeException("LM strings take up " + arenaSize + " bytes, more than the format allows");
+    }
+    try {
+      File file = new File(binaryLmPath).getAbsoluteFile();
+      File tmpFile = File.createTempFile("lm-", ".tmp", file.getParentFile());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(uniqueOrder.size());
+        out.writeLong(totalCount);
+        for (int idx : uniqueOrder) {
+          out.writeInt(wordCounts.get(idx));
+        }
+        int offset = 0;
+        out.writeInt(offset);
+        for (int idx : uniqueOrder) {
+          offset += words.get(idx).length;
+          out.writeInt(offset);
+        }
+        for (int idx : uniqueOrder) {
+          out.write(words.get(idx));
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmpFile.renameTo(file)) {
+        tmpFile.delete();
+        throw new RuntimeException("Could not move binary LM into place at " + file);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    LogInfo.logss("Wrote binary LM with " + uniqueOrder.size() + " types to " + binaryLmPath);
+  }
+
+  /**
+   * Usage: MappedLm textLmPath binaryLmPath [minCountThreshold]
+   */
+  public static void main(String[] args) {
+    write(args[0], args[1], (args.length > 2 ? Integer.parseInt(args[2]) : 0));
+  }
+}
@@ -1,29 +1,112 @@
 package edu.berkeley.nlp.morph;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Map;
+
+import edu.berkeley.nlp.morph.util.Interner;
 
 /**
  * Maintains an unanchored base form span (represented as a Form, though it isn't
  * a complete lexical item generally) and how it changes for each possible inflection.
+ * Rewrites are stored by slot in an AttributeSchema; a change may leave some slots
+ * undefined (null). Changes kept by the model are interned (see intern()), so most
+ * equality checks between them come down to ==.
  * 
  * @author gdurrett
  *
  */
 public class MorphChange {
+  
+  private static final Interner<MorphChange> internedChanges = new Interner<MorphChange>();
 
   public final Form base;
-  public final SortedMap<Attributes,Form> rewrite;
+  public final AttributeSchema schema;
+  private final Form[] rewrite;
+  private final int hashCode;
   
-  public MorphChange(Form base, SortedMap<Attributes,Form> rewrite) {
+  public MorphChange(Form base, AttributeSchema schema, Form[] rewrite) {
+    assert rewrite.length == schema.size();
     this.base = base;
+    this.schema = schema;
     this.rewrite = rewrite;
+    // Same as the hash code of the equivalent SortedMap<Attributes,Form>, so hash-based
+    // collections of changes iterate in the same order as when rewrites were maps
+    int rewriteHashCode = 0;
+    for (int slot = 0; slot < rewrite.length; slot++) {
+      if (rewrite[slot] != null) {
+        rewriteHashCode += schema.getAttrs(slot).hashCode() ^ rewrite[slot].hashCode();
+      }
+    }
+    this.hashCode = base.hashCode() * 81071 + rewriteHashCode;
+  }
+  
+  /**
+   * @param rewrite Keyed by attributes that all belong to the same schema, e.g. as read
+   * from a file
+   */
+  public MorphChange(Form base, Map<Attributes,Form> rewrite) {
+    this(base, AttributeSchema.forAttrs(rewrite.keySet()), rewrite);
+  }
+  
+  private MorphChange(Form base, AttributeSchema schema, Map<Attributes,Form> rewrite) {
+    this(base, schema, toSlotArray(schema, rewrite));
+  }
+  
+  private static Form[] toSlotArray(AttributeSchema schema, Map<Attributes,Form> rewrite) {
+    Form[] slotRewrite = new Form[schema.size()];
+    for (Map.Entry<Attributes,Form> entry : rewrite.entrySet()) {
+      slotRewrite[schema.slotOf(entry.getKey())] = entry.getValue();
+    }
+    return slotRewrite;
+  }
+  
+  /**
+   * @return What the base span is rewritten to in the given slot, or null if this
+   * change doesn't define it
+   */
+  public Form getRewrite(int slot) {
+    return rewrite[slot];
+  }
+  
+  public Form getRewrite(Attributes attrs) {
+    int slot = schema.slotOf(attrs);
+    return (slot == -1 ? null : rewrite[slot]);
+  }
+  
+  /**
+   * @return The number of slots this change defines a rewrite for
+   */
+  public int numRewrites() {
+    int numRewrites = 0;
+    for (Form form : rewrite) {
+      if (form != null) {
+        numRewrites++;
+      }
+    }
+    return numRewrites;
+  }
+  
+  /**
+   * @return The canonical MorphChange equal to this one; its base and rewrites are
+   * interned as well
+   */
+  public MorphChange intern() {
+    MorphChange canonical = internedChanges.get(this);
+    if (canonical != null) {
+      return canonical;
+    }
+    Form[] internedRewrite = new Form[rewrite.length];
+    for (int slot = 0; slot < rewrite.length; slot++) {
+      internedRewrite[slot] = (rewrite[slot] == null ? null : rewrite[slot].intern());
+    }
+    return internedChanges.intern(new MorphChange(base.intern(), schema, internedRewrite));
   }
   
   public MorphChange getMinimizedSubMorphChange(Attributes attrs) {
     Form newBase = this.base;
-    assert rewrite.containsKey(attrs);
-    Form newInfl = rewrite.get(attrs);
+    int slot = schema.slotOf(attrs);
+    assert slot != -1 && rewrite[slot] != null;
+    Form newInfl = rewrite[slot];
     while (newBase.length() > 0 && newInfl.length() > 0 && newBase.charAt(0).equals(newInfl.charAt(0))) {
       newBase = newBase.substring(1);
       newInfl = newInfl.substring(1);
@@ -32,30 +115,50 @@ public class MorphChange {
       newBase = newBase.substring(0, newBase.length() - 1);
       newInfl = newInfl.substring(0, newInfl.length() - 1);
     }
-    SortedMap<Attributes,Form> newRewrite = new TreeMap<Attributes,Form>();
-    newRewrite.put(attrs, newInfl);
-    return new MorphChange(newBase, newRewrite);
+    Form[] newRewrite = new Form[schema.size()];
+    newRewrite[slot] = newInfl;
+    return new MorphChange(newBase, schema, newRewrite);
   }
   
   @Override
   public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
     if (other == null || !(other instanceof MorphChange)) {
       return false;
     }
     MorphChange rhs = (MorphChange)other;
-    return this.base.equals(rhs.base) && this.rewrite.equals(rhs.rewrite);
+    if (this.hashCode != rhs.hashCode || !this.base.equals(rhs.base)) {
+      return false;
+    }
+    if (this.schema == rhs.schema) {
+      return Arrays.equals(this.rewrite, rhs.rewrite);
+    }
+    // Different schemas can still define the same rewrites
+    if (this.numRewrites() != rhs.numRewrites()) {
+      return false;
+    }
+    for (int slot = 0; slot < rewrite.length; slot++) {
+      if (rewrite[slot] != null && !rewrite[slot].equals(rhs.getRewrite(schema.getAttrs(slot)))) {
+        return false;
+      }
+    }
+    return true;
   }
   
   @Override
   public int hashCode() {
-    return base.hashCode() * 81071 + rewrite.hashCode();
+    return hashCode;
   }
   
   @Override
   public String toString() {
     String ret = base.toString() + "=>";
-    for (Attributes attrs : rewrite.keySet()) {
-      ret += rewrite.get(attrs).toString() + ",";
+    for (Form form : rewrite) {
+      if (form != null) {
+        ret += form.toString() + ",";
+      }
     }
     // Remove trailing , (or > if no inflected forms)
     return ret.substring(0, ret.length() - 1);
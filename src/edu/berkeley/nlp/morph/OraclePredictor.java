@@ -1,39 +1,75 @@
 package edu.berkeley.nlp.morph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.nlp.morph.fig.LogInfo;
 import edu.berkeley.nlp.morph.util.Counter;
+import edu.berkeley.nlp.morph.util.Metrics;
 
 /**
  * Finds the set of predicted rule applications that produces a paradigm instance
- * closest to the gold. This would be easy except the gold isn't always reachable
- * and sometimes the set of changes used is slightly different (if the analysis is
- * ambiguous). To find the best in general, you have to manually inspect every possible
- * change sequence, which is exponential in the number of possible changes that can
- * coexist, so this requires a few clever pruning tricks to run quickly, like first
- * adding rules that exactly match gold rules and pruning those that don't individually
- * improve overall edit distance.
- * 
+ * closest to the gold, i.e. with the most inflected forms that exactly match it. The
+ * gold isn't always reachable and sometimes the set of changes used is slightly different
+ * (if the analysis is ambiguous), so we search over every set of non-overlapping changes.
+ *
+ * Whether a form can still match the gold only depends on the changes applied so far
+ * through whether its prefix matches, so the search goes left to right over changes sorted
+ * by ending index, tracking for each attribute how much of the gold form has been produced
+ * and which of its gold alternatives it still agrees with. Attributes that stop agreeing
+ * are dropped, which lets a branch be cut off as soon as it can't beat one already explored,
+ * and search states that are reached by different sets of changes are only expanded once.
+ *
  * @author gdurrett
  *
  */
 public class OraclePredictor implements Predictor {
-  
+
+  private static final Metrics.EventCounter PREDICTIONS = Metrics.counter("oracle_predictions",
+      "Lemmas searched by the oracle");
+  private static final Metrics.EventCounter STATES_EXPANDED = Metrics.counter("oracle_states_expanded",
+      "Search states expanded by the oracle");
+  private static final Metrics.EventCounter OVER_BUDGET = Metrics.counter("oracle_over_budget",
+      "Lemmas that needed more than the maximum number of oracle search states and only got their definite changes");
+
   public final ExtractedModel extractedModel;
   public final ChangeFilterer changeFilterer;
+  private final int maxSearchStates;
+
+  // Updated from every thread that predicts with this
+  private final AtomicInteger numPredictions;
+  private final AtomicInteger numOverBudget;
+  private final AtomicLong numStatesExpanded;
 
   public OraclePredictor(ExtractedModel extractedModel) {
+    this(extractedModel, 1000000);
+  }
+
+  /**
+   * @param maxSearchStates Maximum number of search states to expand for a single lemma;
+   * lemmas that need more than this only get the changes that definitely match the gold
+   */
+  public OraclePredictor(ExtractedModel extractedModel, int maxSearchStates) {
     this.extractedModel = extractedModel;
     this.changeFilterer = new ChangeFilterer(extractedModel, true);
+    this.maxSearchStates = maxSearchStates;
+    this.numPredictions = new AtomicInteger(0);
+    this.numOverBudget = new AtomicInteger(0);
+    this.numStatesExpanded = new AtomicLong(0);
   }
-  
+
   @Override
   public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs, ParadigmInstance goldInstance) {
+    numPredictions.incrementAndGet();
+    PREDICTIONS.increment();
     List<AnchoredMorphChange> sortedMorphChanges = new ArrayList<AnchoredMorphChange>();
     for (MorphChange change : extractedModel.extractedMorphChanges.keySet()) {
       for (AnchoredSpan match : changeFilterer.findMatchingSpans(baseForm, change)) {
@@ -47,64 +83,268 @@ public class OraclePredictor implements Predictor {
         return first.spanAppliedTo.end - second.spanAppliedTo.end;
       }
     });
-    // Analyze the gold and commit to any proposed change that also appears in the gold; this could
-    // only mess up under extremely tenuous circumstances (e.g. something like .->te,,,te, etc.
-    // is committed to but that blocks using XX->YYet,YY,,,YYet, etc.)
-    AnalyzedParadigmInstance analyzedInst = new AnalyzedParadigmInstance(goldInstance);
-    analyzedInst.analyzeConsistent();
-    List<AnchoredMorphChange> definiteChanges = analyzedInst.extractAndCacheChanges(true);
-    definiteChanges.retainAll(sortedMorphChanges);
-    List<AnchoredMorphChange> stillPossibleChanges = new ArrayList<AnchoredMorphChange>();
-    for (AnchoredMorphChange sortedChange : sortedMorphChanges) {
-      if (PredictionUtils.isCompatible(definiteChanges, sortedChange)) {
-        stillPossibleChanges.add(sortedChange);
-      }
-    }
-    // From morph changes that are left, prune those that don't improve edit distance
-    List<AnchoredMorphChange> prunedMorphChanges = new ArrayList<AnchoredMorphChange>();
-    int baselineEd = new ParadigmInstance(baseForm, attrs, definiteChanges).editDistanceToGold(goldInstance, true);
-    for (AnchoredMorphChange anchoredChange : stillPossibleChanges) {
-      List<AnchoredMorphChange> proposedChangesList = new ArrayList<AnchoredMorphChange>(definiteChanges);
-      proposedChangesList.add(anchoredChange);
-      ParadigmInstance instanceThisChangeApplied = new ParadigmInstance(baseForm, attrs, proposedChangesList);
-      int edToGold = instanceThisChangeApplied.editDistanceToGold(goldInstance, true);
-      if (edToGold <= baselineEd) {
-        prunedMorphChanges.add(anchoredChange);
-      }
-    }
-    stillPossibleChanges = prunedMorphChanges;
-    if (stillPossibleChanges.size() >= 20) {
-      LogInfo.logss("Lots of morph changes: " + sortedMorphChanges.size());
-    }
-    // Now enumerate all combinations
-    List<List<AnchoredMorphChange>> allCombinations = PredictionUtils.getPossibleMorphChangeSets(stillPossibleChanges);
-    if (allCombinations.size() >= 1000000) {
-      LogInfo.logss("Too many combinations: " + allCombinations.size());
-      Counter<AnchoredMorphChange> scores = new Counter<AnchoredMorphChange>();
-      for (AnchoredMorphChange change : definiteChanges) {
-        scores.setCount(change, 0.0);
-      }
-      return new ParadigmHypothesis(new ParadigmInstance(baseForm, attrs, definiteChanges), definiteChanges, scores, 0.0);
-    } else {
-      // Try all subsets and pick the best one
-      ParadigmInstance bestInst = null;
-      List<AnchoredMorphChange> bestChanges = null;
-      int bestNumMatches = 0;
-      for (List<AnchoredMorphChange> combination : allCombinations) {
-        combination.addAll(definiteChanges);
-        ParadigmInstance predInstance = new ParadigmInstance(baseForm, attrs, combination);
-        int numMatches = predInstance.countMatchesGold(goldInstance, false);
-        if (numMatches > bestNumMatches) {
-          bestInst = predInstance;
-          bestChanges = combination;
-          bestNumMatches = numMatches;
+    OracleSearch search = new OracleSearch(baseForm, attrs, goldInstance, sortedMorphChanges);
+    List<AnchoredMorphChange> bestChanges = search.findBestChanges();
+    numStatesExpanded.addAndGet(search.numStatesExpanded);
+    STATES_EXPANDED.increment(search.numStatesExpanded);
+    if (bestChanges == null) {
+      LogInfo.logss("Too many search states for " + baseForm + " with " + sortedMorphChanges.size() + " possible changes");
+      numOverBudget.incrementAndGet();
+      OVER_BUDGET.increment();
+      // Commit to any proposed change that also appears in the gold analysis
+      AnalyzedParadigmInstance analyzedInst = new AnalyzedParadigmInstance(goldInstance);
+      analyzedInst.analyzeConsistent();
+      bestChanges = analyzedInst.extractAndCacheChanges(true);
+      bestChanges.retainAll(sortedMorphChanges);
+    }
+    Counter<AnchoredMorphChange> scores = new Counter<AnchoredMorphChange>();
+    for (AnchoredMorphChange change : bestChanges) {
+      scores.setCount(change, 0.0);
+    }
+    return new ParadigmHypothesis(new ParadigmInstance(baseForm, attrs, bestChanges), bestChanges, scores, 0.0);
+  }
+
+  @Override
+  public List<ParadigmHypothesis> predictBatch(List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances) {
+    // The search depends on the gold, so only share it between repeats with the same gold
+    int[] firstOccurrences = PredictionUtils.firstOccurrences(baseForms, goldInstances);
+    List<ParadigmHypothesis> hypotheses = new ArrayList<ParadigmHypothesis>(baseForms.size());
+    for (int i = 0; i < baseForms.size(); i++) {
+      if (firstOccurrences[i] == i) {
+        hypotheses.add(predict(baseForms.get(i), attrs, (goldInstances == null ? null : goldInstances.get(i))));
+      } else {
+        hypotheses.add(hypotheses.get(firstOccurrences[i]));
+      }
+    }
+    return hypotheses;
+  }
+
+  public String renderStats() {
+    return "Oracle: expanded " + numStatesExpanded.get() + " search states over " + numPredictions.get() + " lemmas; " + numOverBudget.get() +
+        " needed more than " + maxSearchStates + " and only got their definite changes";
+  }
+
+  /**
+   * Memoized branch-and-bound search for a single lemma. A search state is the end of the
+   * last change applied together with, for each attribute, the length of the form produced
+   * so far and a bitmask of the gold alternatives it's still a prefix of (attributes that
+   * agree with no alternative are zeroed out so that they don't distinguish states).
+   */
+  private class OracleSearch {
+    private final char[] baseChars;
+    private final List<AnchoredMorphChange> changes;
+    // Rewrites of each change for each attribute, indexed [change][attr]
+    private final char[][][] rewrites;
+    // Gold alternatives for each attribute (empty for stars, which never count as matches)
+    private final char[][][] goldForms;
+    // Best number of matches reachable from each state, and the next change to apply to
+    // get there (-1 to apply nothing more)
+    private final Map<State,int[]> memo;
+    private int numStatesExpanded;
+
+    public OracleSearch(Form baseForm, SortedSet<Attributes> attrs, ParadigmInstance goldInstance, List<AnchoredMorphChange> changes) {
+      this.baseChars = toChars(baseForm);
+      this.changes = changes;
+      this.rewrites = new char[changes.size()][attrs.size()][];
+      this.goldForms = new char[attrs.size()][][];
+      AttributeSchema schema = goldInstance.getSchema();
+      assert schema == AttributeSchema.forAttrs(attrs);
+      for (int slot = 0; slot < schema.size(); slot++) {
+        for (int i = 0; i < changes.size(); i++) {
+          rewrites[i][slot] = toChars(changes.get(i).change.getRewrite(slot));
+        }
+        List<Form> goldAlternatives = (goldInstance.isStar(slot) ? new ArrayList<Form>() : goldInstance.getAllInflForms(slot));
+        assert goldAlternatives.size() < 32 : "Too many gold alternatives for " + schema.getAttrs(slot);
+        goldForms[slot] = new char[goldAlternatives.size()][];
+        for (int i = 0; i < goldAlternatives.size(); i++) {
+          goldForms[slot][i] = toChars(goldAlternatives.get(i));
+        }
+      }
+      this.memo = new HashMap<State,int[]>();
+      this.numStatesExpanded = 0;
+    }
+
+    /**
+     * @return The best set of changes, or null if the search ran out of budget
+     */
+    public List<AnchoredMorphChange> findBestChanges() {
+      int numAttrs = goldForms.length;
+      int[] lengths = new int[numAttrs];
+      int[] aliveMasks = new int[numAttrs];
+      for (int i = 0; i < numAttrs; i++) {
+        aliveMasks[i] = (1 << goldForms[i].length) - 1;
+      }
+      State state = new State(-1, lengths, aliveMasks);
+      if (search(state) < 0) {
+        return null;
+      }
+      // Follow the best next change from each state
+      List<AnchoredMorphChange> bestChanges = new ArrayList<AnchoredMorphChange>();
+      while (true) {
+        int[] entry = memo.get(state);
+        if (entry == null || entry[1] == -1) {
+          break;
+        }
+        bestChanges.add(changes.get(entry[1]));
+        state = advance(state, entry[1]);
+      }
+      return bestChanges;
+    }
+
+    /**
+     * @return The largest number of attributes that can be made to match the gold from this
+     * state, or -1 if the budget ran out
+     */
+    private int search(State state) {
+      int upperBound = state.countAlive();
+      if (upperBound == 0) {
+        return 0;
+      }
+      int[] entry = memo.get(state);
+      if (entry != null) {
+        return entry[0];
+      }
+      if (++numStatesExpanded > maxSearchStates) {
+        return -1;
+      }
+      // Applying nothing more finishes off each form with the rest of the base form
+      int bestScore = countMatchesAtEnd(state);
+      int bestNext = -1;
+      for (int next = 0; next < changes.size() && bestScore < upperBound; next++) {
+        // Changes are sorted by end, so a change that starts after the last one's end
+        // can't touch any change before that either
+        if (changes.get(next).spanAppliedTo.start <= state.lastEnd) {
+          continue;
+        }
+        State nextState = advance(state, next);
+        if (nextState.countAlive() <= bestScore) {
+          continue;
+        }
+        int score = search(nextState);
+        if (score < 0) {
+          return -1;
+        }
+        if (score > bestScore) {
+          bestScore = score;
+          bestNext = next;
+        }
+      }
+      memo.put(state, new int[] { bestScore, bestNext });
+      return bestScore;
+    }
+
+    private int basePosition(State state) {
+      return Math.max(0, state.lastEnd);
+    }
+
+    /**
+     * @return The state after copying the base form up to the given change and applying it
+     */
+    private State advance(State state, int next) {
+      AnchoredSpan span = changes.get(next).spanAppliedTo;
+      int numAttrs = goldForms.length;
+      int[] lengths = new int[numAttrs];
+      int[] aliveMasks = new int[numAttrs];
+      for (int i = 0; i < numAttrs; i++) {
+        if (state.aliveMasks[i] != 0) {
+          int mask = extend(i, state.lengths[i], state.aliveMasks[i], baseChars, basePosition(state), span.start);
+          mask = extend(i, state.lengths[i] + span.start - basePosition(state), mask, rewrites[next][i], 0, rewrites[next][i].length);
+          if (mask != 0) {
+            lengths[i] = state.lengths[i] + span.start - basePosition(state) + rewrites[next][i].length;
+            aliveMasks[i] = mask;
+          }
+        }
+      }
+      return new State(span.end, lengths, aliveMasks);
+    }
+
+    private int countMatchesAtEnd(State state) {
+      int numMatches = 0;
+      for (int i = 0; i < goldForms.length; i++) {
+        if (state.aliveMasks[i] != 0) {
+          int finalLength = state.lengths[i] + baseChars.length - basePosition(state);
+          int mask = extend(i, state.lengths[i], state.aliveMasks[i], baseChars, basePosition(state), baseChars.length);
+          for (int alt = 0; alt < goldForms[i].length; alt++) {
+            if ((mask & (1 << alt)) != 0 && goldForms[i][alt].length == finalLength) {
+              numMatches++;
+              break;
+            }
+          }
+        }
+      }
+      return numMatches;
+    }
+
+    /**
+     * @return The gold alternatives for the given attribute that still agree with the
+     * form after appending chars[start:end] at position offset
+     */
+    private int extend(int attrIdx, int offset, int aliveMask, char[] chars, int start, int end) {
+      int mask = aliveMask;
+      for (int alt = 0; alt < goldForms[attrIdx].length; alt++) {
+        if ((mask & (1 << alt)) == 0) {
+          continue;
+        }
+        char[] gold = goldForms[attrIdx][alt];
+        if (offset + end - start > gold.length) {
+          mask &= ~(1 << alt);
+          continue;
+        }
+        for (int j = start; j < end; j++) {
+          if (gold[offset + j - start] != chars[j]) {
+            mask &= ~(1 << alt);
+            break;
+          }
         }
       }
-      Counter<AnchoredMorphChange> scores = new Counter<AnchoredMorphChange>();
-      for (AnchoredMorphChange change : bestChanges) {
-        scores.setCount(change, 0.0);
+      return mask;
+    }
+  }
+
+  private static char[] toChars(Form form) {
+    char[] chars = new char[form.length()];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = form.charAt(i).glyph;
+    }
+    return chars;
+  }
+
+  private static class State {
+    // End of the last change applied, or -1 if none has been
+    public final int lastEnd;
+    public final int[] lengths;
+    public final int[] aliveMasks;
+    private final int hashCode;
+
+    public State(int lastEnd, int[] lengths, int[] aliveMasks) {
+      this.lastEnd = lastEnd;
+      this.lengths = lengths;
+      this.aliveMasks = aliveMasks;
+      this.hashCode = (lastEnd * 31 + Arrays.hashCode(lengths)) * 31 + Arrays.hashCode(aliveMasks);
+    }
+
+    public int countAlive() {
+      int numAlive = 0;
+      for (int mask : aliveMasks) {
+        if (mask != 0) {
+          numAlive++;
+        }
+      }
+      return numAlive;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof State)) {
+        return false;
       }
-      return new ParadigmHypothesis(bestInst, bestChanges, scores, 0.0);
+      State rhs = (State)other;
+      return this.lastEnd == rhs.lastEnd && Arrays.equals(this.lengths, rhs.lengths) && Arrays.equals(this.aliveMasks, rhs.aliveMasks);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
     }
   }
 }
@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.morph;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -14,9 +15,8 @@ import java.util.TreeSet;
 import edu.berkeley.nlp.morph.MarkovEditDistanceComputer.EditDistanceParams;
 import edu.berkeley.nlp.morph.fig.Fmt;
 import edu.berkeley.nlp.morph.fig.LogInfo;
-import edu.berkeley.nlp.morph.util.Counter;
 import edu.berkeley.nlp.morph.util.GUtil;
-import edu.berkeley.nlp.morph.util.Iterators;
+import edu.berkeley.nlp.morph.util.OpenAddressCounter;
 
 /**
  * Instance of a morphological paradigm.
@@ -27,46 +27,57 @@ import edu.berkeley.nlp.morph.util.Iterators;
 public class ParadigmInstance {
   
   private final Form baseForm;
-  private final SortedSet<Attributes> attrsSet;
-  private final SortedMap<Attributes,List<Form>> inflForms;
+  private final AttributeSchema schema;
+  // Forms for each slot of the schema
+  private final List<Form>[] inflForms;
   
   // Shows up in the Dreyer and Eisner CELEX data to indicate a form that is
   // never attested. Useful to look for so that we don't evaluate on these and
   // don't try to extract rules over nonexistent forms.
   public static final Form STAR_TOKEN = new Form("STAR");
-    
-  private static SortedMap<Attributes,List<Form>> convertToSingletonLists(SortedMap<Attributes,Form> origMap) {
-    SortedMap<Attributes,List<Form>> newMap = new TreeMap<Attributes,List<Form>>();
-    for (Attributes attrs : origMap.keySet()) {
-      newMap.put(attrs, Collections.singletonList(origMap.get(attrs)));
-    }
-    return newMap;
+  
+  @SuppressWarnings("unchecked")
+  private static List<Form>[] newSlotArray(int size) {
+    return (List<Form>[])new List<?>[size];
   }
   
   public ParadigmInstance(Form baseForm, SortedMap<Attributes,List<Form>> inflForms) {
     this.baseForm = baseForm;
-    this.attrsSet = (SortedSet<Attributes>)inflForms.keySet();
-    this.inflForms = inflForms;
+    this.schema = AttributeSchema.forAttrs(inflForms.keySet());
+    this.inflForms = newSlotArray(schema.size());
+    for (Map.Entry<Attributes,List<Form>> entry : inflForms.entrySet()) {
+      this.inflForms[schema.slotOf(entry.getKey())] = entry.getValue();
+    }
   }
   
   public ParadigmInstance(Form baseForm, SortedSet<Attributes> attrsSet, List<AnchoredMorphChange> morphChanges) {
-    this(baseForm, convertToSingletonLists(inflect(baseForm, attrsSet, morphChanges)));
+    this.baseForm = baseForm;
+    this.schema = AttributeSchema.forAttrs(attrsSet);
+    Form[] slotForms = inflect(baseForm, schema, morphChanges);
+    this.inflForms = newSlotArray(schema.size());
+    for (int slot = 0; slot < slotForms.length; slot++) {
+      this.inflForms[slot] = Collections.singletonList(slotForms[slot]);
+    }
   }
   
   public boolean isStar(Attributes attrs) {
-    List<Form> forms = this.inflForms.get(attrs);
-    return forms.contains(STAR_TOKEN);
+    return isStar(schema.slotOf(attrs));
+  }
+  
+  public boolean isStar(int slot) {
+    return inflForms[slot].contains(STAR_TOKEN);
   }
   
   public boolean containsStar() {
-    boolean containsStar = false;
-    for (Attributes attrs : this.attrsSet) {
-      containsStar = containsStar || isStar(attrs);
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      if (isStar(slot)) {
+        return true;
+      }
     }
-    return containsStar;
+    return false;
   }
   
-  private static SortedMap<Attributes,Form> inflect(Form baseForm, SortedSet<Attributes> attrsSet, List<AnchoredMorphChange> morphChanges) {
+  private static Form[] inflect(Form baseForm, AttributeSchema schema, List<AnchoredMorphChange> morphChanges) {
     // Sort by starting position so we can construct the forms with a left-to-right pass
     Collections.sort(morphChanges, new Comparator<AnchoredMorphChange>() {
       @Override
@@ -76,16 +87,16 @@ public class ParadigmInstance {
     });
     // Check that the morph changes are all defined over the correct set of attributes
     for (AnchoredMorphChange morphChange : morphChanges) {
-      assert attrsSet.equals(morphChange.change.rewrite.keySet());
+      assert morphChange.change.schema == schema && morphChange.change.numRewrites() == schema.size();
     }
-    SortedMap<Attributes,Form> inflForms = new TreeMap<Attributes,Form>();
-    for (Attributes attrs : attrsSet) {
+    Form[] inflForms = new Form[schema.size()];
+    for (int slot = 0; slot < inflForms.length; slot++) {
       Form newForm = new Form("");
       int currBaseFormIndex = 0;
       for (AnchoredMorphChange change : morphChanges) {
         int changeStart = change.spanAppliedTo.start;
         int changeEnd = change.spanAppliedTo.end;
-        Form changeResult = change.change.rewrite.get(attrs);
+        Form changeResult = change.change.getRewrite(slot);
         if (changeStart < currBaseFormIndex) {
           throw new IllegalArgumentException("Bad sequence of changes; last change ended at " +
                                              currBaseFormIndex + " but current on starts at " + changeStart);
@@ -96,7 +107,7 @@ public class ParadigmInstance {
       if (currBaseFormIndex < baseForm.length()) {
         newForm = newForm.append(baseForm.substring(currBaseFormIndex));
       }
-      inflForms.put(attrs, newForm);
+      inflForms[slot] = newForm;
     }
     return inflForms;
   }
@@ -105,27 +116,35 @@ public class ParadigmInstance {
     return baseForm;
   }
   
-//  public SortedMap<Attributes,Form> inflForms() {
-//    return inflForms;
-//  }
+  public AttributeSchema getSchema() {
+    return schema;
+  }
   
   public SortedSet<Attributes> getAttrSetSorted() {
-    return attrsSet;
+    return schema.getAttrSetSorted();
   }
   
   public Form getInflForm(Attributes attrs) {
-    return inflForms.get(attrs).get(0);
+    return getInflForm(schema.slotOf(attrs));
+  }
+  
+  public Form getInflForm(int slot) {
+    return inflForms[slot].get(0);
   }
   
   public List<Form> getAllInflForms(Attributes attrs) {
-    return inflForms.get(attrs);
+    return getAllInflForms(schema.slotOf(attrs));
+  }
+  
+  public List<Form> getAllInflForms(int slot) {
+    return inflForms[slot];
   }
   
   public SortedSet<Attributes> getAttrsForForm(Form form) {
     SortedSet<Attributes> thisFormAttrsSet = new TreeSet<Attributes>();
-    for (Attributes attrs : attrsSet) {
-      if (getInflForm(attrs).equals(form)) {
-        thisFormAttrsSet.add(attrs);
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      if (getInflForm(slot).equals(form)) {
+        thisFormAttrsSet.add(schema.getAttrs(slot));
       }
     }
     return thisFormAttrsSet;
@@ -133,18 +152,30 @@ public class ParadigmInstance {
   
   public Map<Attributes,Form> getAttrsFormMap() {
     SortedMap<Attributes,Form> map = new TreeMap<Attributes,Form>();
-    for (Attributes attrs : attrsSet) {
-      map.put(attrs, getInflForm(attrs));
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      map.put(schema.getAttrs(slot), getInflForm(slot));
     }
     return map;
   }
   
+  /**
+   * @return The (first) form in each slot; two paradigms over the same schema
+   * have the same forms iff these lists are equal
+   */
+  public List<Form> getInflFormsBySlot() {
+    Form[] forms = new Form[inflForms.length];
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      forms[slot] = getInflForm(slot);
+    }
+    return Arrays.asList(forms);
+  }
+  
   public boolean doesExactlyMatchGold(ParadigmInstance goldInstance) {
-    if (!this.attrsSet.equals(goldInstance.attrsSet)) {
+    if (this.schema != goldInstance.schema) {
       return false;
     }
-    for (Attributes attrs : this.attrsSet) {
-      if (!goldInstance.getAllInflForms(attrs).contains(this.getInflForm(attrs))) {
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      if (!goldInstance.getAllInflForms(slot).contains(this.getInflForm(slot))) {
         return false;
       }
     }
@@ -152,12 +183,13 @@ public class ParadigmInstance {
   }
   
   public int countMatchesGold(ParadigmInstance goldInstance, boolean allowStars) {
+    assert this.schema == goldInstance.schema;
     int correctAllowStars = 0;
     int correctDisallowStars = 0;
-    for (Attributes attrs : getAttrSetSorted()) {
-      Form predForm = getInflForm(attrs);
-      List<Form> goldForms = goldInstance.getAllInflForms(attrs);
-      if (!goldInstance.isStar(attrs)) {
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      Form predForm = getInflForm(slot);
+      List<Form> goldForms = goldInstance.getAllInflForms(slot);
+      if (!goldInstance.isStar(slot)) {
         if (goldForms.contains(predForm)) {
           correctDisallowStars++;
           correctAllowStars++;
@@ -170,16 +202,17 @@ public class ParadigmInstance {
   }
   
   public int editDistanceToGold(ParadigmInstance goldInstance, boolean allowStars) {
+    assert this.schema == goldInstance.schema;
     int totalEditDistance = 0;
-    for (Attributes attrs : getAttrSetSorted()) {
-      Form predForm = getInflForm(attrs);
-      List<Form> goldForms = goldInstance.getAllInflForms(attrs);
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      Form predForm = getInflForm(slot);
+      List<Form> goldForms = goldInstance.getAllInflForms(slot);
       int minEd = Integer.MAX_VALUE;
       for (Form goldForm : goldForms) {
         int ed = (int)new MarkovEditDistanceComputer(EditDistanceParams.getStandardParams(predForm, goldForm, 0.0)).runEditDistance().cost;
         minEd = Math.min(ed, minEd);
       }
-      if (!allowStars || !goldInstance.isStar(attrs)) {
+      if (!allowStars || !goldInstance.isStar(slot)) {
         totalEditDistance += minEd;
       }
     }
@@ -189,8 +222,8 @@ public class ParadigmInstance {
   @Override
   public String toString() {
     String ret = "";
-    for (Attributes key : inflForms.keySet()) {
-      ret += baseForm.toString() + " => " + inflForms.get(key).toString() + " (" + key.toShortString() + ")\n";
+    for (int slot = 0; slot < inflForms.length; slot++) {
+      ret += baseForm.toString() + " => " + inflForms[slot].toString() + " (" + schema.getAttrs(slot).toShortString() + ")\n";
     }
     return ret;
   }
@@ -203,12 +236,20 @@ public class ParadigmInstance {
    * @param insts
    */
   public static void filterNoncanonicalParadigmInstances(List<ParadigmInstance> insts) {
-    Counter<Set<Attributes>> attrSetCounts = new Counter<Set<Attributes>>();
+    OpenAddressCounter<Set<Attributes>> attrSetCounts = new OpenAddressCounter<Set<Attributes>>();
     for (ParadigmInstance inst : insts) {
       attrSetCounts.incrementCount(inst.getAttrSetSorted(), 1.0);
     }
+    filterNoncanonicalParadigmInstances(insts, attrSetCounts);
+  }
+  
+  /**
+   * @param attrSetCounts Number of tables with each attribute set, which may have been
+   * counted over more tables than insts (e.g. a whole file of which insts is a subset)
+   */
+  public static void filterNoncanonicalParadigmInstances(List<ParadigmInstance> insts, OpenAddressCounter<Set<Attributes>> attrSetCounts) {
     LogInfo.logss("Attribute set counts");
-    for (Set<Attributes> attrSet : Iterators.able(attrSetCounts.asPriorityQueue())) {
+    for (Set<Attributes> attrSet : attrSetCounts.getSortedKeys()) {
       LogInfo.logss(attrSetCounts.getCount(attrSet) + ": " + GUtil.toStringSorted(attrSet));
     }
     Set<Attributes> mostCommonAttrsSet = attrSetCounts.argMax();
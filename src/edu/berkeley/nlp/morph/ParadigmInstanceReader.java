@@ -1,12 +1,17 @@
 package edu.berkeley.nlp.morph;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -16,8 +21,8 @@ import java.util.TreeSet;
 import edu.berkeley.nlp.morph.Attributes.Attribute;
 import edu.berkeley.nlp.morph.fig.IOUtils;
 import edu.berkeley.nlp.morph.fig.LogInfo;
-import edu.berkeley.nlp.morph.util.GUtil;
 import edu.berkeley.nlp.morph.util.Iterators;
+import edu.berkeley.nlp.morph.util.OpenAddressCounter;
 
 /**
  * Reader for our Wiktionary data and also the CELEX data of Dreyer and Eisner (2011).
@@ -32,53 +37,428 @@ public class ParadigmInstanceReader {
   public static final String CELEX_FIELD_DELIMITER = "\t";
   public static final String CELEX_ALTERNATIVE_DELIMITER = ",";
 
+  // Number of lines held in memory at once when sorting an ungrouped file by base form
+  public static final int EXTERNAL_SORT_CHUNK_LINES = 500000;
+
   public static List<ParadigmInstance> readParadigmInstancesWiktionary(String fileName) {
-    return readParadigmInstances(fileName, WIKTIONARY_FIELD_DELIMITER, WIKTIONARY_ALTERNATIVE_DELIMITER);
+    return readParadigmInstancesWiktionary(fileName, null);
+  }
+  
+  /**
+   * @param fileName
+   * @param lemmasToKeep Base forms whose tables should be read; tables for any other base
+   * form are skipped without being materialized. null keeps everything.
+   * @return
+   */
+  public static List<ParadigmInstance> readParadigmInstancesWiktionary(String fileName, Set<String> lemmasToKeep) {
+    return readParadigmInstances(fileName, WIKTIONARY_FIELD_DELIMITER, WIKTIONARY_ALTERNATIVE_DELIMITER, lemmasToKeep);
   }
  
   public static List<ParadigmInstance> readParadigmInstancesCelex(String fileName) {
-    return readParadigmInstances(fileName, CELEX_FIELD_DELIMITER, CELEX_ALTERNATIVE_DELIMITER);
+    return readParadigmInstances(fileName, CELEX_FIELD_DELIMITER, CELEX_ALTERNATIVE_DELIMITER, null);
+  }
+  
+  /**
+   * Streams the tables in a Wiktionary file without ever holding the whole file in memory.
+   * The file must be grouped by base form (all lines for a base form contiguous, as in
+   * the released data); if it isn't, iterating will throw an UngroupedInputException.
+   * Use sortByBaseForm() first for files that aren't grouped.
+   */
+  public static GroupingIterator streamParadigmInstancesWiktionary(String fileName, Set<String> lemmasToKeep) {
+    return new GroupingIterator(fileName, WIKTIONARY_FIELD_DELIMITER, WIKTIONARY_ALTERNATIVE_DELIMITER, lemmasToKeep);
   }
   
-  private static List<ParadigmInstance> readParadigmInstances(String fileName, String fieldDelimiter, String alternativeDelimiter) {
+  private static List<ParadigmInstance> readParadigmInstances(String fileName, String fieldDelimiter, String alternativeDelimiter, Set<String> lemmasToKeep) {
     LogInfo.logss("Loading from " + fileName);
-    Map<Form,SortedMap<Attributes,List<Form>>> protoInstances = new HashMap<Form,SortedMap<Attributes,List<Form>>>();
-    Iterator<String> lines = IOUtils.lineIterator(IOUtils.openInHard(fileName));
-    GUtil.logsEveryNReset();
-    int numDuplicatesDiscarded = 0;
-    for (String line : Iterators.able(lines)) {
-      if (line.trim().equals("")) {
-        continue;
-      }
-//      GUtil.logsEveryN("Another 50000 lines read", 50000);
-      String[] fields = line.split(fieldDelimiter);
-      assert fields.length == 3 : fields.length + " is not 3 fields for line: " + line;
+    GroupingIterator instanceItr = new GroupingIterator(fileName, fieldDelimiter, alternativeDelimiter, lemmasToKeep);
+    List<ParadigmInstance> instances = new ArrayList<ParadigmInstance>();
+    try {
+      for (ParadigmInstance instance : Iterators.able(instanceItr)) {
+        instances.add(instance);
+      }
+    } catch (UngroupedInputException e) {
+      // Fall back to sorting the file on disk and streaming the sorted copy
+      instanceItr.close();
+      LogInfo.logss(e.getMessage() + "; sorting " + fileName + " by base form");
+      File sortedFile = sortByBaseForm(fileName, fieldDelimiter);
+      instanceItr = new GroupingIterator(sortedFile.getPath(), fieldDelimiter, alternativeDelimiter, lemmasToKeep);
+      instances.clear();
+      for (ParadigmInstance instance : Iterators.able(instanceItr)) {
+        instances.add(instance);
+      }
+      sortedFile.delete();
+    }
+    OpenAddressCounter<Set<Attributes>> attrSetCounts = instanceItr.getAttrSetCounts();
+    LogInfo.logss((int)attrSetCounts.totalCount() + " templates read in (" + instances.size() + " kept), " +
+        instanceItr.getNumDuplicatesDiscarded() + " duplicate entries discarded");
+    // The canonical attribute set is the most common one over the whole file, not just the kept tables
+    ParadigmInstance.filterNoncanonicalParadigmInstances(instances, attrSetCounts);
+    return instances;
+  }
+  
+  /**
+   * Thrown when a base form's lines turn up again after a different base form has started.
+   */
+  public static class UngroupedInputException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UngroupedInputException(String message) {
+      super(message);
+    }
+  }
+  
+  /**
+   * Reads an inflection file row by row and emits each ParadigmInstance as soon as
+   * the rows for its base form are complete, i.e. when a row with a different base form
+   * is read. Rows for base forms not in lemmasToKeep are dropped before any Forms are
+   * built for them; only their attribute sets are counted (see getAttrSetCounts()).
+   * 
+   * @author gdurrett
+   *
+   */
+  public static class GroupingIterator implements Iterator<ParadigmInstance> {
+    
+    private final RowReader rows;
+    private final Set<String> lemmasToKeep;
+    // Base forms we've already finished, kept or not, so that a scattered table can't be
+    // counted twice in attrSetCounts
+    private final Set<String> finishedLemmas;
+    private final OpenAddressCounter<Set<Attributes>> attrSetCounts;
+    
+    private String currLemma;
+    private SortedSet<Attributes> currAttrSet;
+    private SortedMap<Attributes,List<Form>> currTable;
+    private ParadigmInstance nextInstance;
+    private boolean done;
+    private int numDuplicatesDiscarded;
+    
+    public GroupingIterator(String fileName, String fieldDelimiter, String alternativeDelimiter, Set<String> lemmasToKeep) {
+      this(openRowReader(fileName, fieldDelimiter, alternativeDelimiter), lemmasToKeep);
+    }
+    
+    public GroupingIterator(RowReader rows, Set<String> lemmasToKeep) {
+      this.rows = rows;
+      this.lemmasToKeep = lemmasToKeep;
+      this.finishedLemmas = new HashSet<String>();
+      this.attrSetCounts = new OpenAddressCounter<Set<Attributes>>();
+      this.currLemma = null;
+      this.currAttrSet = null;
+      this.currTable = null;
+      this.nextInstance = null;
+      this.done = false;
+      this.numDuplicatesDiscarded = 0;
+    }
+    
+    public int getNumDuplicatesDiscarded() {
+      return numDuplicatesDiscarded;
+    }
+    
+    /**
+     * @return How many tables in the input have each attribute set, counting tables for
+     * base forms that weren't kept; complete once iteration is done
+     */
+    public OpenAddressCounter<Set<Attributes>> getAttrSetCounts() {
+      return attrSetCounts;
+    }
+    
+    @Override
+    public boolean hasNext() {
+      if (nextInstance == null && !done) {
+        nextInstance = advance();
+      }
+      return nextInstance != null;
+    }
+
+    @Override
+    public ParadigmInstance next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ParadigmInstance instance = nextInstance;
+      nextInstance = null;
+      return instance;
+    }
+    
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+    
+    public void close() {
+      done = true;
+      rows.close();
+    }
+    
+    /**
+     * Reads rows until a table is complete and returns it, or returns null at the end of the file.
+     */
+    private ParadigmInstance advance() {
+      while (rows.nextRow()) {
+        String lemma = rows.baseForm();
+        ParadigmInstance finished = null;
+        if (!lemma.equals(currLemma)) {
+          finished = finishCurrentTable();
+          currLemma = lemma;
+          if (finishedLemmas.contains(lemma)) {
+            throw new UngroupedInputException("Lines for " + lemma + " are not contiguous");
+          }
+          currAttrSet = new TreeSet<Attributes>();
+          if (lemmasToKeep == null || lemmasToKeep.contains(lemma)) {
+            currTable = new TreeMap<Attributes,List<Form>>();
+          }
+        }
+        Attributes attrs = rows.attrs();
+        currAttrSet.add(attrs);
+        if (currTable != null) {
+          if (currTable.containsKey(attrs)) {
+            numDuplicatesDiscarded++;
+          }
+          currTable.put(attrs, rows.inflForms());
+        }
+        if (finished != null) {
+          return finished;
+        }
+      }
+      close();
+      return finishCurrentTable();
+    }
+    
+    private ParadigmInstance finishCurrentTable() {
+      ParadigmInstance finished = null;
+      if (currAttrSet != null) {
+        attrSetCounts.incrementCount(currAttrSet, 1.0);
+        finishedLemmas.add(currLemma);
+      }
+      if (currTable != null) {
+        finished = new ParadigmInstance(new Form(currLemma), currTable);
+      }
+      currLemma = null;
+      currAttrSet = null;
+      currTable = null;
+      return finished;
+    }
+  }
+  
+  /**
+   * Source of the rows of an inflection file, each of which gives the inflected form(s),
+   * base form, and attributes of one cell. The fields of a row are only decoded when asked
+   * for, so rows for unwanted base forms cost next to nothing.
+   * 
+   * @author gdurrett
+   *
+   */
+  public static interface RowReader {
+    
+    /**
+     * Advances to the next non-blank row, returning false at the end of the input.
+     */
+    public boolean nextRow();
+    
+    public String baseForm();
+    
+    public List<Form> inflForms();
+    
+    public Attributes attrs();
+    
+    public void close();
+  }
+  
+  /**
+   * Memory-maps uncompressed files; gzipped files go through a BufferedReader.
+   */
+  public static RowReader openRowReader(String fileName, String fieldDelimiter, String alternativeDelimiter) {
+    if (fileName.endsWith(".gz")) {
+      return new LineRowReader(IOUtils.openInHard(fileName), fieldDelimiter, alternativeDelimiter);
+    }
+    return new MappedInflectionReader(fileName, fieldDelimiter, alternativeDelimiter);
+  }
+  
+  /**
+   * Straightforward line-at-a-time RowReader.
+   * 
+   * @author gdurrett
+   *
+   */
+  public static class LineRowReader implements RowReader {
+    
+    private final BufferedReader reader;
+    private final String fieldDelimiter;
+    private final String alternativeDelimiter;
+    private String[] fields;
+    
+    public LineRowReader(BufferedReader reader, String fieldDelimiter, String alternativeDelimiter) {
+      this.reader = reader;
+      this.fieldDelimiter = fieldDelimiter;
+      this.alternativeDelimiter = alternativeDelimiter;
+    }
+    
+    @Override
+    public boolean nextRow() {
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.trim().equals("")) {
+            continue;
+          }
+          fields = line.split(fieldDelimiter);
+          assert fields.length == 3 : fields.length + " is not 3 fields for line: " + line;
+          return true;
+        }
+        return false;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    
+    @Override
+    public String baseForm() {
+      return fields[1];
+    }
+    
+    @Override
+    public List<Form> inflForms() {
       List<Form> inflForms = new ArrayList<Form>();
       for (String alternative : fields[0].split(alternativeDelimiter)) {
         inflForms.add(new Form(alternative));
       }
-      Form base = new Form(fields[1]);
-      Attributes attrs = parseAttrs(fields[2]);
-      if (!protoInstances.containsKey(base)) {
-        protoInstances.put(base, new TreeMap<Attributes,List<Form>>());
+      return inflForms;
+    }
+    
+    @Override
+    public Attributes attrs() {
+      return parseAttrs(fields[2]);
+    }
+    
+    @Override
+    public void close() {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
       }
-      if (protoInstances.get(base).containsKey(attrs)) {
-//        LogInfo.logss("Warning: " + base + " already contains entry for " + attrs.toString());
-        numDuplicatesDiscarded++;
+    }
+  }
+  
+  /**
+   * External merge sort of an inflection file by base form, for inputs that aren't
+   * already grouped. Sorts chunks of EXTERNAL_SORT_CHUNK_LINES lines in memory, writes
+   * each to a temp file, and merges them. The sort is stable, so duplicate entries are
+   * resolved the same way as they would be in the original file.
+   * @param fileName
+   * @param fieldDelimiter
+   * @return A temp file holding the sorted lines; the caller should delete it when done.
+   */
+  public static File sortByBaseForm(String fileName, String fieldDelimiter) {
+    List<File> chunkFiles = new ArrayList<File>();
+    List<BufferedReader> chunkReaders = new ArrayList<BufferedReader>();
+    BufferedReader reader = null;
+    PrintWriter out = null;
+    File sortedFile = null;
+    boolean succeeded = false;
+    try {
+      reader = IOUtils.openIn(fileName);
+      List<MergeEntry> chunk = new ArrayList<MergeEntry>();
+      String line;
+      while (true) {
+        line = reader.readLine();
+        if (line != null && !line.trim().equals("")) {
+          chunk.add(new MergeEntry(line, fieldDelimiter, chunkFiles.size()));
+        }
+        if (chunk.size() >= EXTERNAL_SORT_CHUNK_LINES || (line == null && !chunk.isEmpty())) {
+          // Entries in a chunk all have the same index, so this only compares base forms
+          Collections.sort(chunk);
+          File chunkFile = IOUtils.createTempFileHard("inflections", ".chunk");
+          chunkFiles.add(chunkFile);
+          out = IOUtils.openOut(chunkFile);
+          for (MergeEntry entry : chunk) {
+            out.println(entry.line);
+          }
+          closeChecked(out, chunkFile);
+          out = null;
+          chunk.clear();
+        }
+        if (line == null) {
+          break;
+        }
+      }
+      reader.close();
+      reader = null;
+      LogInfo.logss("Merging " + chunkFiles.size() + " sorted chunks");
+      PriorityQueue<MergeEntry> queue = new PriorityQueue<MergeEntry>(Math.max(1, chunkFiles.size()));
+      for (int i = 0; i < chunkFiles.size(); i++) {
+        BufferedReader chunkReader = IOUtils.openIn(chunkFiles.get(i));
+        chunkReaders.add(chunkReader);
+        String chunkLine = chunkReader.readLine();
+        if (chunkLine != null) {
+          queue.add(new MergeEntry(chunkLine, fieldDelimiter, i));
+        }
+      }
+      sortedFile = IOUtils.createTempFileHard("inflections", ".sorted");
+      out = IOUtils.openOut(sortedFile);
+      while (!queue.isEmpty()) {
+        MergeEntry top = queue.poll();
+        out.println(top.line);
+        String chunkLine = chunkReaders.get(top.chunkIndex).readLine();
+        if (chunkLine != null) {
+          queue.add(new MergeEntry(chunkLine, fieldDelimiter, top.chunkIndex));
+        }
+      }
+      closeChecked(out, sortedFile);
+      out = null;
+      succeeded = true;
+      return sortedFile;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (reader != null) {
+        IOUtils.closeEasy(reader);
+      }
+      if (out != null) {
+        out.close();
+      }
+      for (BufferedReader chunkReader : chunkReaders) {
+        IOUtils.closeEasy(chunkReader);
+      }
+      for (File chunkFile : chunkFiles) {
+        chunkFile.delete();
+      }
+      if (!succeeded && sortedFile != null) {
+        sortedFile.delete();
       }
-      protoInstances.get(base).put(attrs, inflForms);
     }
-    List<ParadigmInstance> instances = new ArrayList<ParadigmInstance>();
-    for (Form key : protoInstances.keySet()) {
-      SortedMap<Attributes,List<Form>> protoInstance = protoInstances.get(key);
-//      if (collapse1stAnd3rd) {
-//        protoInstance = collapseFirstAndThird(protoInstance);
-//      }
-      instances.add(new ParadigmInstance(key, protoInstance));
-    }
-    LogInfo.logss(instances.size() + " templates read in, " + numDuplicatesDiscarded + " duplicate entries discarded");
-    ParadigmInstance.filterNoncanonicalParadigmInstances(instances);
-    return instances;
+  }
+  
+  private static void closeChecked(PrintWriter out, File file) throws IOException {
+    out.close();
+    if (out.checkError()) {
+      throw new IOException("Error writing " + file);
+    }
+  }
+  
+  /**
+   * A line being sorted by sortByBaseForm(), with the chunk it came from; ties between
+   * chunks go to the earlier one, which keeps the sort stable.
+   */
+  private static class MergeEntry implements Comparable<MergeEntry> {
+    public final String baseForm;
+    public final String line;
+    public final int chunkIndex;
+    
+    public MergeEntry(String line, String fieldDelimiter, int chunkIndex) {
+      String[] fields = line.split(fieldDelimiter);
+      if (fields.length < 2) {
+        throw new RuntimeException("Malformed line: " + line);
+      }
+      this.baseForm = fields[1];
+      this.line = line;
+      this.chunkIndex = chunkIndex;
+    }
+    
+    @Override
+    public int compareTo(MergeEntry other) {
+      int result = baseForm.compareTo(other.baseForm);
+      return (result != 0 ? result : chunkIndex - other.chunkIndex);
+    }
   }
 
   static Attributes parseAttrs(String attrsLine) {
@@ -90,7 +470,7 @@ public class ParadigmInstanceReader {
       assert entryArr.length == 2 : "Bad attrs line: " + attrsLine;
       protoAttrs.add(new Attribute(entryArr[0], entryArr[1]));
     }
-    return new Attributes(protoAttrs);
+    return new Attributes(protoAttrs).intern();
   }
   
   /**
@@ -113,7 +493,7 @@ public class ParadigmInstanceReader {
         if (firstPerson) {
           Attributes copy = new Attributes(new TreeMap<String,Attribute>(currAttrs.attrs));
           copy.setValue("Person", "1st3rd");
-          newInstance.put(copy, entry.getValue());
+          newInstance.put(copy.intern(), entry.getValue());
         }
         // For third person, do nothing; it's deleted
       } else {
@@ -0,0 +1,197 @@
+package edu.berkeley.nlp.morph;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Predicts paradigms for a stream of base forms (one per line) in constant memory, so
+ * that arbitrarily many lemmas can be inflected. A reader thread groups the lemmas into
+ * batches and hands each batch to a pool of decoding threads; the calling thread writes
+ * out the hypotheses of each batch in input order as soon as it's done and passes them
+ * on to a Listener, e.g. to be evaluated, which can do the expensive part of its work
+ * on the decoding threads. At most maxBatchesInFlight batches are read
+ * and not yet written at any time, so the reader blocks whenever the decoders or the
+ * writer fall behind.
+ *
+ * The predictor is called from several threads at once, so it must be thread-safe.
+ *
+ * @author gdurrett
+ *
+ */
+public class PredictionPipeline {
+
+  /**
+   * Receives each hypothesis of the pipeline.
+   */
+  public static interface Listener<T> {
+    /**
+     * Called on a decoding thread for each lemma of a batch once the batch is decoded, in
+     * parallel with other batches.
+     * @return Passed on to hypothesisWritten()
+     */
+    public T prepare(Form baseForm, ParadigmHypothesis hypothesis);
+
+    /**
+     * Called on the writing thread after each hypothesis has been written, in input order.
+     */
+    public void hypothesisWritten(Form baseForm, ParadigmHypothesis hypothesis, T prepared);
+  }
+
+  private static class DecodedBatch<T> {
+    public final List<Form> baseForms;
+    public final List<ParadigmHypothesis> hypotheses;
+    public final List<T> prepared;
+
+    public DecodedBatch(List<Form> baseForms, List<ParadigmHypothesis> hypotheses, List<T> prepared) {
+      this.baseForms = baseForms;
+      this.hypotheses = hypotheses;
+      this.prepared = prepared;
+    }
+  }
+
+  private final Predictor predictor;
+  private final SortedSet<Attributes> attrs;
+  private final Map<Form,ParadigmInstance> goldInstances;
+  private final int batchSize;
+  private final int numThreads;
+  private final int maxBatchesInFlight;
+
+  /**
+   * @param goldInstances Gold paradigms to hand to the predictor (only the oracle uses
+   * them), or null if there are none
+   * @param maxBatchesInFlight Number of batches that can be read before the oldest has
+   * been written; should be at least numThreads to keep all the decoders busy
+   */
+  public PredictionPipeline(Predictor predictor, SortedSet<Attributes> attrs, Map<Form,ParadigmInstance> goldInstances,
+                            int batchSize, int numThreads, int maxBatchesInFlight) {
+    this.predictor = predictor;
+    this.attrs = attrs;
+    this.goldInstances = goldInstances;
+    this.batchSize = Math.max(1, batchSize);
+    this.numThreads = Math.max(1, numThreads);
+    this.maxBatchesInFlight = Math.max(1, maxBatchesInFlight);
+  }
+
+  /**
+   * Predicts a paradigm for each line of baseForms and writes them all to output (which
+   * is flushed after each batch, but not closed).
+   * @param listener May be null
+   * @return The number of lemmas predicted
+   */
+  public <T> int run(final BufferedReader baseForms, PrintWriter output, final Listener<T> listener) {
+    final BlockingQueue<Future<DecodedBatch<T>>> batchesInFlight = new ArrayBlockingQueue<Future<DecodedBatch<T>>>(maxBatchesInFlight);
+    // Marks the end of the input in the queue; never run
+    final Future<DecodedBatch<T>> endOfInput = new FutureTask<DecodedBatch<T>>(new Callable<DecodedBatch<T>>() {
+      @Override
+      public DecodedBatch<T> call() {
+        return null;
+      }
+    });
+    final ExecutorService decodeExecutor = Executors.newFixedThreadPool(numThreads);
+    Thread readerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          readBatches(baseForms, listener, decodeExecutor, batchesInFlight, endOfInput);
+        } catch (InterruptedException e) {
+          // The writer gave up
+        }
+      }
+    }, "PredictionPipeline-reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+    int numWritten = 0;
+    try {
+      while (true) {
+        Future<DecodedBatch<T>> batchFuture = batchesInFlight.take();
+        if (batchFuture == endOfInput) {
+          break;
+        }
+        DecodedBatch<T> batch = batchFuture.get();
+        for (int i = 0; i < batch.hypotheses.size(); i++) {
+          ParadigmHypothesis hypothesis = batch.hypotheses.get(i);
+          ParadigmInstanceWriter.writeParadigmInstance(hypothesis.predictedInstance, output);
+          if (listener != null) {
+            listener.hypothesisWritten(batch.baseForms.get(i), hypothesis, batch.prepared.get(i));
+          }
+          numWritten++;
+        }
+        output.flush();
+      }
+      return numWritten;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      readerThread.interrupt();
+      decodeExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads the lemmas, submits them to decodeExecutor a batch at a time, and queues up the
+   * results in order. A failure to read is passed on through the queue.
+   */
+  private <T> void readBatches(BufferedReader baseForms, Listener<T> listener, ExecutorService decodeExecutor,
+                               BlockingQueue<Future<DecodedBatch<T>>> batchesInFlight, Future<DecodedBatch<T>> endOfInput) throws InterruptedException {
+    try {
+      List<Form> batch = new ArrayList<Form>();
+      String line;
+      while ((line = baseForms.readLine()) != null) {
+        batch.add(new Form(line));
+        if (batch.size() == batchSize) {
+          batchesInFlight.put(decodeExecutor.submit(newDecodeTask(batch, listener)));
+          batch = new ArrayList<Form>();
+        }
+      }
+      if (!batch.isEmpty()) {
+        batchesInFlight.put(decodeExecutor.submit(newDecodeTask(batch, listener)));
+      }
+    } catch (final IOException e) {
+      FutureTask<DecodedBatch<T>> failure = new FutureTask<DecodedBatch<T>>(new Callable<DecodedBatch<T>>() {
+        @Override
+        public DecodedBatch<T> call() throws IOException {
+          throw e;
+        }
+      });
+      failure.run();
+      batchesInFlight.put(failure);
+    }
+    batchesInFlight.put(endOfInput);
+  }
+
+  private <T> Callable<DecodedBatch<T>> newDecodeTask(final List<Form> batch, final Listener<T> listener) {
+    return new Callable<DecodedBatch<T>>() {
+      @Override
+      public DecodedBatch<T> call() {
+        List<ParadigmInstance> batchGoldInstances = null;
+        if (goldInstances != null) {
+          batchGoldInstances = new ArrayList<ParadigmInstance>(batch.size());
+          for (Form baseForm : batch) {
+            batchGoldInstances.add(goldInstances.get(baseForm));
+          }
+        }
+        List<ParadigmHypothesis> hypotheses = predictor.predictBatch(batch, attrs, batchGoldInstances);
+        List<T> prepared = new ArrayList<T>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+          prepared.add(listener == null ? null : listener.prepare(batch.get(i), hypotheses.get(i)));
+        }
+        return new DecodedBatch<T>(batch, hypotheses, prepared);
+      }
+    };
+  }
+}
@@ -1,7 +1,10 @@
 package edu.berkeley.nlp.morph;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
 
 /**
  * Various utilities assorted with the prediction classes, most notably the ability
@@ -11,6 +14,40 @@ import java.util.List;
  *
  */
 public class PredictionUtils {
+  
+  /**
+   * Implements Predictor.predictBatch() by calling predict() on each base form in turn.
+   */
+  public static List<ParadigmHypothesis> predictEach(Predictor predictor, List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances) {
+    List<ParadigmHypothesis> hypotheses = new ArrayList<ParadigmHypothesis>(baseForms.size());
+    for (int i = 0; i < baseForms.size(); i++) {
+      hypotheses.add(predictor.predict(baseForms.get(i), attrs, (goldInstances == null ? null : goldInstances.get(i))));
+    }
+    return hypotheses;
+  }
+  
+  /**
+   * @param goldInstances Parallel to baseForms, or null to ignore them
+   * @return For each position, the position of the first base form equal to it (with the
+   * same gold instance, if those are given), so only positions i with result[i] == i
+   * need to be decoded
+   */
+  public static int[] firstOccurrences(List<Form> baseForms, List<ParadigmInstance> goldInstances) {
+    int[] firstOccurrences = new int[baseForms.size()];
+    Map<Form,Integer> firstIndices = new HashMap<Form,Integer>();
+    for (int i = 0; i < baseForms.size(); i++) {
+      Integer first = firstIndices.get(baseForms.get(i));
+      if (first != null && (goldInstances == null || goldInstances.get(first) == goldInstances.get(i))) {
+        firstOccurrences[i] = first;
+      } else {
+        firstOccurrences[i] = i;
+        if (first == null) {
+          firstIndices.put(baseForms.get(i), i);
+        }
+      }
+    }
+    return firstOccurrences;
+  }
 
   public static List<List<AnchoredMorphChange>> getPossibleMorphChangeSets(List<AnchoredMorphChange> allChanges) {
     return getPossibleMorphChangeSets(allChanges, Integer.MAX_VALUE);
@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.morph;
 
+import java.util.List;
 import java.util.SortedSet;
 
 /**
@@ -18,4 +19,14 @@ public interface Predictor {
    * @return
    */
   public ParadigmHypothesis predict(Form baseForm, SortedSet<Attributes> attrs, ParadigmInstance goldInstance);
+  
+  /**
+   * Predicts paradigms for many base forms at once, which lets implementations share work
+   * across them (PredictionUtils.predictEach() is the trivial implementation).
+   * @param baseForms May contain repeats, which needn't be decoded more than once
+   * @param attrs
+   * @param goldInstances Parallel to baseForms, or null; as in predict()
+   * @return One hypothesis per base form, in order
+   */
+  public List<ParadigmHypothesis> predictBatch(List<Form> baseForms, SortedSet<Attributes> attrs, List<ParadigmInstance> goldInstances);
 }
@@ -0,0 +1,146 @@
+package edu.berkeley.nlp.morph.fig;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexer that many threads can use at once. Looking up an object that's already
+ * indexed never takes a lock; adding a new object takes a lock only long enough to
+ * append it, so indices stay contiguous and are never reassigned. Which of two objects
+ * added concurrently gets the lower index depends on timing, though.
+ *
+ * Once all objects have been added, freeze() locks the indexer (as lock() does) and
+ * swaps in a plain read-only table, which is cheaper to read from.
+ *
+ * @author gdurrett
+ */
+public class ConcurrentIndexer<E> extends Indexer<E>
+{
+	private static final long serialVersionUID = 1L;
+
+	// Writes of objectArray happen before the corresponding index is published in indexMap,
+	// so any thread that sees an index can also read its object
+	private volatile Map<E, Integer> indexMap;
+	private volatile Object[] objectArray;
+	private volatile int numObjects;
+
+	public ConcurrentIndexer() {
+		super(false);
+		this.indexMap = new ConcurrentHashMap<E, Integer>();
+		this.objectArray = new Object[16];
+		this.numObjects = 0;
+	}
+
+	@Override
+	public int getIndex(E e) {
+		if (e == null) return -1;
+		Integer index = indexMap.get(e);
+		if (index != null) return index;
+		if (locked) return -1;
+		return addIfAbsent(e);
+	}
+
+	private synchronized int addIfAbsent(E e) {
+		if (locked) return -1;
+		Integer index = indexMap.get(e);
+		if (index != null) return index;
+		int newIndex = numObjects;
+		if (newIndex == objectArray.length) {
+			// freeze() trims the array to size, which may be zero
+			objectArray = Arrays.copyOf(objectArray, Math.max(16, newIndex * 2));
+		}
+		objectArray[newIndex] = e;
+		numObjects = newIndex + 1;
+		indexMap.put(e, newIndex);
+		return newIndex;
+	}
+
+	@Override
+	public boolean add(E elem) {
+		if (locked) throw new IllegalStateException("Tried to add to locked indexer");
+		int sizeBefore = numObjects;
+		return getIndex(elem) >= sizeBefore;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		Integer index = indexMap.get(o);
+		return (index == null ? -1 : index);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexMap.containsKey(o);
+	}
+
+	@Override
+	public int size() {
+		return numObjects;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E getObject(int index) {
+		if (index >= numObjects) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + numObjects);
+		return (E)objectArray[index];
+	}
+
+	@Deprecated
+	@Override
+	public E get(int index) {
+		return getObject(index);
+	}
+
+	/**
+	 * Locks the indexer and replaces the concurrent table with a read-only one.
+	 */
+	public synchronized void freeze() {
+		lock();
+		objectArray = Arrays.copyOf(objectArray, numObjects);
+		indexMap = Collections.unmodifiableMap(new HashMap<E, Integer>(indexMap));
+	}
+
+	@Override
+	public synchronized void unlock() {
+		if (!(indexMap instanceof ConcurrentHashMap)) {
+			indexMap = new ConcurrentHashMap<E, Integer>(indexMap);
+		}
+		super.unlock();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public E remove(int i) {
+		throw new UnsupportedOperationException();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<E> getObjects() {
+		return Collections.unmodifiableList(Arrays.asList((E[])Arrays.copyOf(objectArray, numObjects)));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E[] getObjects(int[] is) {
+		if (size() == 0) throw Exceptions.bad("Can't instantiate array");
+		E[] os = (E[])Array.newInstance(getObject(0).getClass(), is.length);
+		for (int i = 0; i < is.length; i++)
+			os[i] = is[i] == -1 ? null : getObject(is[i]);
+		return os;
+	}
+
+	@Override
+	public Map<E, Integer> getMap() {
+		return Collections.unmodifiableMap(indexMap);
+	}
+}
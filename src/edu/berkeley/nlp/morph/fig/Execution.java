@@ -319,6 +319,7 @@ public class Execution {
     } catch (Throwable t) {
       raiseException(t);
     }
+    LogInfo.finish();
     System.exit(exitCode);
   }
 }
@@ -52,6 +52,10 @@ public class Indexer<E> extends AbstractList<E> implements Serializable
 		this.locked = false;
 	}
 
+	public boolean isLocked() {
+		return locked;
+	}
+
 	/**
 	 * Return the object with the given index
 	 * 
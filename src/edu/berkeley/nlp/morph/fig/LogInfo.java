@@ -7,6 +7,8 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * The logging output has a tree structure, where each node is a
@@ -14,9 +16,18 @@ import java.util.List;
  * A run is the sequence of children of some node.
  * A subset of the lines in the run will get printed.
  *
- * WARNING: not thread safe.
+ * Messages can be given a Level; those below the level option are dropped
+ * before they're formatted. With asyncWrite, output is handed to a background
+ * thread instead of being written (and flushed) by the thread that logs it.
+ *
+ * Everything that prints is synchronized, so several threads can log at once,
+ * but tracks are shared, so they should only be opened from one thread.
  */
 public class LogInfo {
+  public static enum Level {
+    DEBUG, INFO, WARNING, ERROR;
+  }
+
   public static void track(String format, Object... args) {
     track(String.format(format, args), false);
   }
@@ -148,6 +159,20 @@ public class LogInfo {
     if(parentPrinted()) thisRun().forcePrint();
     logs(o);
   }
+
+  // Print if the level is enabled; the message is only formatted (or
+  // converted to a string) if it's going to be printed
+  public static void logss(Level level, String format, Object... args) {
+    if(isEnabled(level)) logss(String.format(format, args));
+  }
+  public static void logss(Level level, Object o) {
+    if(isEnabled(level)) logss(o);
+  }
+  // Check this before building an expensive message
+  public static boolean isEnabled(Level messageLevel) {
+    return messageLevel.compareTo(level) >= 0;
+  }
+
   private static boolean parentPrinted() {
     // Parent must have been a track, so its run information has not been
     // updated yet.  Therefore, shouldPrint() is valid.
@@ -177,8 +202,8 @@ public class LogInfo {
   public static void errors(String format, Object... args) {
     error(String.format(format, args));
   }
-  public static void error(Object o) {
-    if(numErrors < maxPrintErrors)
+  public synchronized static void error(Object o) {
+    if(numErrors < maxPrintErrors && isEnabled(Level.ERROR))
       print("ERROR: " + o + "\n");
     numErrors++;
   }
@@ -188,8 +213,9 @@ public class LogInfo {
   public static void warnings(String format, Object... args) {
     warning(String.format(format, args));
   }
-  public static void warning(Object o) {
-    print("WARNING: " + o + "\n");
+  public synchronized static void warning(Object o) {
+    if(isEnabled(Level.WARNING))
+      print("WARNING: " + o + "\n");
     numWarnings++;
   }
 
@@ -230,6 +256,12 @@ public class LogInfo {
   static public boolean forcePrint;
   @Option(gloss="Maximum number of errors (via error()) to print")
   static public int maxPrintErrors = 10000;
+  @Option(gloss="Only print messages at this level or above (messages without a level are INFO)")
+  static public Level level = Level.INFO;
+  @Option(gloss="Write output from a background thread rather than the one logging it")
+  static public boolean asyncWrite = false;
+  @Option(gloss="Maximum number of pieces of output waiting for the background thread (logging blocks when it's full)")
+  static public int asyncQueueSize = 10000;
 
   static { updateStdStreams(); }
   public static void updateStdStreams() {
@@ -248,6 +280,56 @@ public class LogInfo {
       fout = IOUtils.openOutHard(file);
     }
     if(writeToStdout) out = stdout;
+    if(asyncWrite && writerThread == null) startAsyncWriter();
+  }
+
+  private synchronized static void startAsyncWriter() {
+    // finish() clears writeQueue before the thread is done with it
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(asyncQueueSize);
+    writeQueue = queue;
+    writerThread = new Thread("LogInfo writer") {
+      @Override
+      public void run() {
+        try {
+          while(true) {
+            Object o = queue.take();
+            if(o == END_OF_OUTPUT) break;
+            write(o);
+            if(queue.isEmpty()) flushOutputs();
+          }
+          flushOutputs();
+        } catch(InterruptedException e) {
+          // Exit quietly; whatever is still queued is lost
+        }
+      }
+    };
+    writerThread.setDaemon(true);
+    writerThread.start();
+    // Output is written out when the program exits, however it exits
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() { finish(); }
+    });
+  }
+
+  /**
+   * Waits for the background thread (if any) to write out everything logged
+   * so far and stops it; any later output is written synchronously.
+   */
+  public static void finish() {
+    Thread thread;
+    synchronized(LogInfo.class) {
+      if(writerThread == null) return;
+      thread = writerThread;
+      enqueue(END_OF_OUTPUT);
+      writerThread = null;
+      writeQueue = null;
+    }
+    try {
+      thread.join();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   private static LogRun parentRun() { return runs.get(indLevel-1); }
@@ -261,8 +343,28 @@ public class LogInfo {
   // Internal: don't use these functions directly
 
   private static void rawPrint(Object o) {
-    if(out != null) { out.print(o); out.flush(); }
-    if(fout != null) { fout.print(o); fout.flush(); }
+    if(writeQueue != null) {
+      // Convert now, since o (e.g. buf) may change before the writer gets to it
+      enqueue(String.valueOf(o));
+    } else {
+      write(o);
+      flushOutputs();
+    }
+  }
+  private static void enqueue(Object o) {
+    try {
+      writeQueue.put(o);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  private static void write(Object o) {
+    if(out != null) out.print(o);
+    if(fout != null) fout.print(o);
+  }
+  private static void flushOutputs() {
+    if(out != null) out.flush();
+    if(fout != null) fout.flush();
   }
 
   // Print with indent; flush the buffer as necessary
@@ -298,6 +400,9 @@ public class LogInfo {
   static StopWatch watch;        // StopWatch that starts at the beginning of the program
   static int numErrors;          // Number of errors made
   static int numWarnings;        // Number of warnings
+  static BlockingQueue<Object> writeQueue; // Output for the background thread; null if writing synchronously
+  static Thread writerThread;    // Background thread that writes output
+  private static final Object END_OF_OUTPUT = new Object(); // Tells the background thread to stop
 
   // Default setup
   static {
@@ -1,14 +1,39 @@
 package edu.berkeley.nlp.morph.fig;
 
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
 /**
- * Simple class for measuring elapsed time.
+ * Simple class for measuring elapsed time. A named stop watch also reports each interval
+ * between start() and stop() as a JFR event, so the phases it times are marked in flight
+ * recordings; when nothing is recording, this costs next to nothing.
  */
 public class StopWatch
 {
+	@Name("edu.berkeley.nlp.morph.Phase")
+	@Label("Phase")
+	@Category("Morph")
+	@Description("Interval timed by a named StopWatch")
+	@StackTrace(false)
+	static class PhaseEvent extends Event
+	{
+		@Label("Phase")
+		String phase;
+	}
+
 	public StopWatch()
 	{
 	}
 
+	public StopWatch(String name)
+	{
+		this.name = name;
+	}
+
 	public StopWatch(long ms)
 	{
 		startTime = 0;
@@ -27,6 +52,11 @@ public class StopWatch
 		assert !isRunning;
 		isRunning = true;
 		startTime = System.currentTimeMillis();
+		if (name != null) {
+			event = new PhaseEvent();
+			event.phase = name;
+			event.begin();
+		}
 
 		return this;
 	}
@@ -38,6 +68,7 @@ public class StopWatch
 		isRunning = false;
 		ms = endTime - startTime;
 		n = 1;
+		commitEvent();
 		return this;
 	}
 
@@ -49,9 +80,18 @@ public class StopWatch
 		isRunning = false;
 		ms += endTime - startTime;
 		n++;
+		commitEvent();
 		return this;
 	}
 
+	private void commitEvent()
+	{
+		if (event != null) {
+			event.commit();
+			event = null;
+		}
+	}
+
   public void add(StopWatch w) {
     assert !isRunning && !w.isRunning;
     ms += w.ms;
@@ -131,6 +171,10 @@ public class StopWatch
 
 	protected boolean isRunning = false;
 
+	// Null for an unnamed stop watch, which doesn't report JFR events
+	private String name;
+	private PhaseEvent event;
+
 	public boolean isRunning()
 	{
 		return isRunning;
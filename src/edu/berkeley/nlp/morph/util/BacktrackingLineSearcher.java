@@ -7,6 +7,9 @@ import edu.berkeley.nlp.morph.fig.LogInfo;
  */
 public class BacktrackingLineSearcher implements GradientLineSearcher
 {
+	private static final Metrics.Histogram FUNCTION_EVALUATIONS = Metrics.histogram("line_search_evaluations",
+		"Function evaluations per line search");
+
 	private double EPS = 1e-10;
 
 	public double stepSizeMultiplier = 0.1;//was 0.9;
@@ -90,12 +93,17 @@ public class BacktrackingLineSearcher implements GradientLineSearcher
 					LogInfo.errors("BacktrackingSearcher.minimize: stepSize underflow.");
 					EmpiricalGradientTester.test(function, initial);
 					stepSizeUnderflow = true;
+					FUNCTION_EVALUATIONS.record(iter + 1);
 					return initial;
 
 				}
 			}
-			if (iter++ > maxIterations) return initial;
+			if (iter++ > maxIterations) {
+				FUNCTION_EVALUATIONS.record(iter);
+				return initial;
+			}
 		}
+		FUNCTION_EVALUATIONS.record(iter);
 		//    double lastGuessValue = guessValue;
 		//    double[] lastGuess = guess;
 		//    while (lastGuessValue >= guessValue) {
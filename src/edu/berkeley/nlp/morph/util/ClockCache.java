@@ -0,0 +1,101 @@
+package edu.berkeley.nlp.morph.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded map for caching values that are expensive to compute, with CLOCK (second
+ * chance) eviction: entries sit in a ring, a hit sets the entry's reference bit, and when
+ * the cache is full the hand sweeps the ring, clearing reference bits until it finds an
+ * entry that hasn't been used since the last sweep, which is evicted. This approximates
+ * LRU, but hits don't take a lock or reorder anything; only insertions are serialized.
+ *
+ * Hits, misses, and evictions are counted in the given metrics, which may be shared by
+ * several caches.
+ *
+ * @author gdurrett
+ */
+public class ClockCache<K, V>
+{
+	private static class Entry<K, V>
+	{
+		public final K key;
+		public final V value;
+		public volatile boolean referenced;
+
+		public Entry(K key, V value) {
+			this.key = key;
+			this.value = value;
+			this.referenced = false;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<K, V>> map;
+	private final Entry<K, V>[] ring;
+	private int hand;
+
+	private final Metrics.EventCounter hits;
+	private final Metrics.EventCounter misses;
+	private final Metrics.EventCounter evictions;
+
+	public ClockCache(int capacity, Metrics.EventCounter hits, Metrics.EventCounter misses, Metrics.EventCounter evictions) {
+		assert capacity > 0;
+		this.map = new ConcurrentHashMap<K, Entry<K, V>>(capacity * 4 / 3 + 1);
+		this.ring = newRing(capacity);
+		this.hand = 0;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Entry<K, V>[] newRing(int capacity) {
+		return (Entry<K, V>[])new Entry<?, ?>[capacity];
+	}
+
+	/**
+	 * @return The cached value for key, or null if there is none
+	 */
+	public V get(K key) {
+		Entry<K, V> entry = map.get(key);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		entry.referenced = true;
+		hits.increment();
+		return entry.value;
+	}
+
+	/**
+	 * Caches value for key, evicting another entry if the cache is full.
+	 * @return The value now cached for key, which is an existing value if another thread
+	 * got there first
+	 */
+	public synchronized V putIfAbsent(K key, V value) {
+		Entry<K, V> existing = map.get(key);
+		if (existing != null) {
+			return existing.value;
+		}
+		while (ring[hand] != null && ring[hand].referenced) {
+			ring[hand].referenced = false;
+			hand = (hand + 1) % ring.length;
+		}
+		if (ring[hand] != null) {
+			map.remove(ring[hand].key);
+			evictions.increment();
+		}
+		Entry<K, V> entry = new Entry<K, V>(key, value);
+		ring[hand] = entry;
+		map.put(key, entry);
+		hand = (hand + 1) % ring.length;
+		return value;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public int capacity() {
+		return ring.length;
+	}
+}
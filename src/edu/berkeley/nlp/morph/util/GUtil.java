@@ -12,17 +12,24 @@ public class GUtil {
 
   // LOGGING UTILS
   
-  public static int loggingCounter = 0;
+  // Each thread counts its own calls to logsEveryN()
+  private static final ThreadLocal<int[]> loggingCounter = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
   
   public static void logsEveryNReset() {
-    loggingCounter = 0;
+    loggingCounter.get()[0] = 0;
   }
   
   public static void logsEveryN(String str, int n) {
-    if (loggingCounter % n == 0) {
-      LogInfo.logss(loggingCounter + ": " + str);
+    int[] counter = loggingCounter.get();
+    if (counter[0] % n == 0) {
+      LogInfo.logss(counter[0] + ": " + str);
     }
-    loggingCounter++;
+    counter[0]++;
   }
   
   public static void logVerbose(String str) {
@@ -0,0 +1,36 @@
+package edu.berkeley.nlp.morph.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonicalizing table for immutable values, like String.intern(): intern() returns
+ * the first object added that equals its argument, so values that went through the
+ * same interner can be compared with == and share storage. Safe to use from many
+ * threads at once. Interned objects are never released, so only intern values that
+ * live as long as the model does.
+ *
+ * @author gdurrett
+ */
+public class Interner<T>
+{
+	private final ConcurrentHashMap<T, T> canonical = new ConcurrentHashMap<T, T>();
+
+	/**
+	 * @return The canonical object equal to obj, or null if there isn't one yet
+	 */
+	public T get(T obj) {
+		return canonical.get(obj);
+	}
+
+	/**
+	 * @return The canonical object equal to obj; obj itself becomes canonical if none was
+	 */
+	public T intern(T obj) {
+		T existing = canonical.putIfAbsent(obj, obj);
+		return (existing == null ? obj : existing);
+	}
+
+	public int size() {
+		return canonical.size();
+	}
+}
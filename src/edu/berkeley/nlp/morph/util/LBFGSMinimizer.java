@@ -4,6 +4,12 @@ import java.io.File;
 import java.io.Serializable;
 import java.util.LinkedList;
 
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
 import edu.berkeley.nlp.morph.fig.LogInfo;
 
 
@@ -12,6 +18,22 @@ import edu.berkeley.nlp.morph.fig.LogInfo;
  */
 public class LBFGSMinimizer implements GradientMinimizer, LineSearchingMinimizer, Serializable
 {
+	@Name("edu.berkeley.nlp.morph.LbfgsIteration")
+	@Label("LBFGS Iteration")
+	@Category("Morph")
+	@StackTrace(false)
+	static class IterationEvent extends Event
+	{
+		@Label("Iteration")
+		int iteration;
+
+		@Label("Objective Value")
+		double value;
+	}
+
+	private static final Metrics.Histogram ITERATION_MICROS = Metrics.histogram("lbfgs_iteration_micros",
+		"Time per LBFGS iteration, including the line search");
+
 	public void setCheckEmpiricalGradient(boolean checkEmpiricalGradient) {
 		this.checkEmpiricalGradient = checkEmpiricalGradient;
 	}
@@ -60,6 +82,8 @@ public class LBFGSMinimizer implements GradientMinimizer, LineSearchingMinimizer
 
 	transient CallbackFunction iterCallbackFunction = null;
 
+	boolean functionChanged = false;
+
 	int minIterations = -1;
 
 	double initialStepSizeMultiplier = 0.01;
@@ -170,6 +194,9 @@ public class LBFGSMinimizer implements GradientMinimizer, LineSearchingMinimizer
 		double value = initialValue;
 		double[] derivative = initialDerivative;
 		for (int iteration = startIteration; iteration < maxIterations; iteration++) {
+			long iterationStartNanos = System.nanoTime();
+			IterationEvent event = new IterationEvent();
+			event.begin();
 			if (checkEmpiricalGradient) EmpiricalGradientTester.test(function, guess);
 			assert derivative.length == function.dimension();
 			double[] initialInverseHessianDiagonal = getInitialInverseHessianDiagonal(function);
@@ -197,6 +224,10 @@ public class LBFGSMinimizer implements GradientMinimizer, LineSearchingMinimizer
 			}
 			double nextValue = function.valueAt(nextGuess);
 			double[] nextDerivative = function.derivativeAt(nextGuess);
+			ITERATION_MICROS.recordMicrosSince(iterationStartNanos);
+			event.iteration = iteration;
+			event.value = nextValue;
+			event.commit();
 
 			if (printProgress) {
 				printProgress(iteration, nextValue);
@@ -219,6 +250,14 @@ public class LBFGSMinimizer implements GradientMinimizer, LineSearchingMinimizer
 			derivative = nextDerivative;
 			if (iterCallbackFunction != null) {
 				iterCallbackFunction.callback(guess, iteration, value, derivative);
+				if (functionChanged) {
+					// The next line search and convergence check must start from the new function's
+					// value and gradient; the curvature histories are kept as an approximation
+					functionChanged = false;
+					value = function.valueAt(guess);
+					derivative = function.derivativeAt(guess);
+					convergedAndClearedHistories = false;
+				}
 			}
 //			if (checkpointFile != null) {
 //				IOUtils.writeObjFileHard(checkpointFile, new Checkpoint(this, iteration, guess, value, derivative));
@@ -339,6 +378,17 @@ public class LBFGSMinimizer implements GradientMinimizer, LineSearchingMinimizer
 		this.iterCallbackFunction = callbackFunction;
 	}
 
+	/**
+	 * Call from the iteration callback if it changed the function being minimized.
+	 * The function is then re-evaluated at the current guess (so any cache it keeps
+	 * must already have been cleared) before the next iteration. The histories are
+	 * kept, which is only reasonable if the change is small; otherwise also call
+	 * clearHistories().
+	 */
+	public void setFunctionChanged() {
+		this.functionChanged = true;
+	}
+
 	public LBFGSMinimizer() {
 	}
 
@@ -0,0 +1,355 @@
+package edu.berkeley.nlp.morph.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.berkeley.nlp.morph.fig.IOUtils;
+import edu.berkeley.nlp.morph.fig.LogInfo;
+
+/**
+ * Process-wide registry of named counters, gauges, and histograms. Metrics are
+ * registered once, typically into static final fields of the class that updates them,
+ * and are cheap and thread-safe to update. The whole registry can be written out as
+ * JSON (writeJson()) or in the Prometheus text exposition format (renderPrometheus()),
+ * which startServer() serves over HTTP at /metrics.
+ *
+ * Names must be valid Prometheus metric names and should carry their unit (e.g.
+ * _micros, _bytes); in Prometheus output they're prefixed with "morph_".
+ *
+ * @author gdurrett
+ */
+public class Metrics
+{
+	private static final String PROMETHEUS_PREFIX = "morph_";
+	private static final double[] REPORTED_QUANTILES = { 0.5, 0.9, 0.99 };
+
+	private static final Map<String, Metric> registry = new ConcurrentSkipListMap<String, Metric>();
+
+	static {
+		register(new Gauge("jvm_heap_peak_bytes", "Heap high-water mark (sum of the peak usage of each heap memory pool)") {
+			@Override
+			public double value() {
+				long peak = 0;
+				for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+					if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+						peak += pool.getPeakUsage().getUsed();
+					}
+				}
+				return peak;
+			}
+		});
+	}
+
+	public static abstract class Metric
+	{
+		public final String name;
+		public final String help;
+
+		protected Metric(String name, String help) {
+			assert name.matches("[a-zA-Z_][a-zA-Z0-9_]*") : "Bad metric name: " + name;
+			this.name = name;
+			this.help = help;
+		}
+
+		protected abstract void appendJson(StringBuilder sb);
+
+		protected abstract void appendPrometheus(StringBuilder sb);
+	}
+
+	/**
+	 * Monotonically increasing count of events.
+	 */
+	public static class EventCounter extends Metric
+	{
+		private final AtomicLong count = new AtomicLong();
+
+		public EventCounter(String name, String help) {
+			super(name, help);
+		}
+
+		public void increment() {
+			count.incrementAndGet();
+		}
+
+		public void increment(long delta) {
+			count.addAndGet(delta);
+		}
+
+		public long get() {
+			return count.get();
+		}
+
+		@Override
+		protected void appendJson(StringBuilder sb) {
+			sb.append(get());
+		}
+
+		@Override
+		protected void appendPrometheus(StringBuilder sb) {
+			String fullName = PROMETHEUS_PREFIX + name + "_total";
+			sb.append("# HELP ").append(fullName).append(" ").append(help).append("\n");
+			sb.append("# TYPE ").append(fullName).append(" counter\n");
+			sb.append(fullName).append(" ").append(get()).append("\n");
+		}
+	}
+
+	/**
+	 * Current value of some quantity; subclasses can override value() to compute it
+	 * when the registry is read.
+	 */
+	public static class Gauge extends Metric
+	{
+		private volatile double value;
+
+		public Gauge(String name, String help) {
+			super(name, help);
+		}
+
+		public void set(double value) {
+			this.value = value;
+		}
+
+		public double value() {
+			return value;
+		}
+
+		@Override
+		protected void appendJson(StringBuilder sb) {
+			sb.append(formatNumber(value()));
+		}
+
+		@Override
+		protected void appendPrometheus(StringBuilder sb) {
+			String fullName = PROMETHEUS_PREFIX + name;
+			sb.append("# HELP ").append(fullName).append(" ").append(help).append("\n");
+			sb.append("# TYPE ").append(fullName).append(" gauge\n");
+			sb.append(fullName).append(" ").append(formatNumber(value())).append("\n");
+		}
+	}
+
+	/**
+	 * Distribution of non-negative long values, in the style of an HDR histogram: each
+	 * power of two is split into SUB_BUCKETS linear buckets, so quantiles are accurate to
+	 * within 1/SUB_BUCKETS of the value over the whole range of longs, in fixed space.
+	 * Quantiles report the largest value in their bucket (capped at the observed max).
+	 */
+	public static class Histogram extends Metric
+	{
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int NUM_BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray bucketCounts = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		public Histogram(String name, String help) {
+			super(name, help);
+		}
+
+		public void record(long value) {
+			if (value < 0) value = 0;
+			bucketCounts.incrementAndGet(bucketIndex(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long currMin;
+			while (value < (currMin = min.get()) && !min.compareAndSet(currMin, value));
+			long currMax;
+			while (value > (currMax = max.get()) && !max.compareAndSet(currMax, value));
+		}
+
+		/**
+		 * Records the time elapsed since startNanos (a System.nanoTime() value), in microseconds.
+		 */
+		public void recordMicrosSince(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		static int bucketIndex(long value) {
+			if (value < SUB_BUCKETS) return (int)value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BUCKET_BITS;
+			int subBucket = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+			return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+		}
+
+		/**
+		 * @return The largest value that falls in the given bucket
+		 */
+		static long bucketUpperBound(int index) {
+			if (index < SUB_BUCKETS) return index;
+			int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+			long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+			return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getSum() {
+			return sum.get();
+		}
+
+		public long getMin() {
+			return (getCount() == 0 ? 0 : min.get());
+		}
+
+		public long getMax() {
+			return (getCount() == 0 ? 0 : max.get());
+		}
+
+		public double getMean() {
+			long n = getCount();
+			return (n == 0 ? 0.0 : getSum() / (double)n);
+		}
+
+		public long getQuantile(double quantile) {
+			long n = getCount();
+			if (n == 0) return 0;
+			long rank = Math.max(1, (long)Math.ceil(quantile * n));
+			long cumulative = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				cumulative += bucketCounts.get(i);
+				if (cumulative >= rank) {
+					return Math.min(bucketUpperBound(i), getMax());
+				}
+			}
+			return getMax();
+		}
+
+		@Override
+		protected void appendJson(StringBuilder sb) {
+			sb.append("{\"count\": ").append(getCount());
+			sb.append(", \"sum\": ").append(getSum());
+			sb.append(", \"min\": ").append(getMin());
+			sb.append(", \"max\": ").append(getMax());
+			sb.append(", \"mean\": ").append(formatNumber(getMean()));
+			for (double quantile : REPORTED_QUANTILES) {
+				sb.append(", \"p").append(Math.round(quantile * 100)).append("\": ").append(getQuantile(quantile));
+			}
+			sb.append("}");
+		}
+
+		@Override
+		protected void appendPrometheus(StringBuilder sb) {
+			String fullName = PROMETHEUS_PREFIX + name;
+			sb.append("# HELP ").append(fullName).append(" ").append(help).append("\n");
+			sb.append("# TYPE ").append(fullName).append(" summary\n");
+			for (double quantile : REPORTED_QUANTILES) {
+				sb.append(fullName).append("{quantile=\"").append(quantile).append("\"} ").append(getQuantile(quantile)).append("\n");
+			}
+			sb.append(fullName).append("_sum ").append(getSum()).append("\n");
+			sb.append(fullName).append("_count ").append(getCount()).append("\n");
+		}
+	}
+
+	private static <M extends Metric> M register(M metric) {
+		Metric existing = registry.put(metric.name, metric);
+		assert existing == null : "Metric registered twice: " + metric.name;
+		return metric;
+	}
+
+	public static EventCounter counter(String name, String help) {
+		return register(new EventCounter(name, help));
+	}
+
+	public static Gauge gauge(String name, String help) {
+		return register(new Gauge(name, help));
+	}
+
+	public static Histogram histogram(String name, String help) {
+		return register(new Histogram(name, help));
+	}
+
+	/**
+	 * Registers a gauge reporting the fraction of lookups that hit, i.e. hits / (hits + misses).
+	 */
+	public static Gauge hitRate(String name, String help, final EventCounter hits, final EventCounter misses) {
+		return register(new Gauge(name, help) {
+			@Override
+			public double value() {
+				long numHits = hits.get();
+				long numLookups = numHits + misses.get();
+				return (numLookups == 0 ? 0.0 : numHits / (double)numLookups);
+			}
+		});
+	}
+
+	private static String formatNumber(double value) {
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			return Long.toString((long)value);
+		}
+		return Double.toString(value);
+	}
+
+	public static String renderJson() {
+		StringBuilder sb = new StringBuilder("{\n");
+		boolean first = true;
+		for (Metric metric : registry.values()) {
+			if (!first) sb.append(",\n");
+			first = false;
+			sb.append("  \"").append(metric.name).append("\": ");
+			metric.appendJson(sb);
+		}
+		sb.append("\n}\n");
+		return sb.toString();
+	}
+
+	public static String renderPrometheus() {
+		StringBuilder sb = new StringBuilder();
+		for (Metric metric : registry.values()) {
+			metric.appendPrometheus(sb);
+		}
+		return sb.toString();
+	}
+
+	public static void writeJson(String path) {
+		PrintWriter out = IOUtils.openOutHard(path);
+		out.print(renderJson());
+		out.close();
+		LogInfo.logss("Metrics written to " + path);
+	}
+
+	/**
+	 * Serves renderPrometheus() at http://localhost:port/metrics from a background thread
+	 * for the rest of the run; only the loopback interface is bound.
+	 */
+	public static void startServer(int port) {
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext("/metrics", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					byte[] body = renderPrometheus().getBytes("UTF-8");
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+			});
+			server.setExecutor(Executors.newSingleThreadExecutor());
+			server.start();
+			LogInfo.logss("Serving metrics at http://localhost:" + port + "/metrics");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
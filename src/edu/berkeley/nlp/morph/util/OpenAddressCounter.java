@@ -0,0 +1,345 @@
+package edu.berkeley.nlp.morph.util;
+
+import java.text.NumberFormat;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map from objects to doubles, like Counter, but stored in parallel key and value
+ * arrays with open addressing (linear probing), so getCount() and incrementCount() don't
+ * box anything or allocate per-entry objects. Meant for large counters that are only
+ * ever added to; keys can't be removed. Objects not in the counter return a count of zero.
+ *
+ * @author gdurrett
+ */
+public class OpenAddressCounter<E> implements CounterInterface<E>
+{
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private Object[] keys;
+	private double[] values;
+	private int size;
+
+	public OpenAddressCounter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize Number of keys the counter can hold without resizing
+	 */
+	public OpenAddressCounter(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * 2 < expectedSize * 3) {
+			capacity *= 2;
+		}
+		this.keys = new Object[capacity];
+		this.values = new double[capacity];
+		this.size = 0;
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return The slot holding key, or the empty slot where it would go
+	 */
+	private int findSlot(Object key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != null && !keys[slot].equals(key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return The slot holding key, adding it with a count of zero if it isn't present
+	 */
+	private int ensureSlot(E key) {
+		assert key != null : "Null keys are not supported";
+		int slot = findSlot(key);
+		if (keys[slot] == null) {
+			// Keep the load factor at most 2/3
+			if ((size + 1) * 3 > keys.length * 2) {
+				grow();
+				slot = findSlot(key);
+			}
+			keys[slot] = key;
+			size++;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		Object[] oldKeys = keys;
+		double[] oldValues = values;
+		keys = new Object[oldKeys.length * 2];
+		values = new double[oldValues.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = findSlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public boolean containsKey(E key) {
+		return keys[findSlot(key)] != null;
+	}
+
+	public double getCount(E key) {
+		int slot = findSlot(key);
+		return (keys[slot] == null ? 0.0 : values[slot]);
+	}
+
+	public void setCount(E key, double count) {
+		// ensureSlot() may grow the arrays, so it has to be called before values is read
+		int slot = ensureSlot(key);
+		values[slot] = count;
+	}
+
+	public double incrementCount(E key, double increment) {
+		int slot = ensureSlot(key);
+		values[slot] += increment;
+		return values[slot];
+	}
+
+	public <T extends E> void incrementAll(CounterInterface<T> counter) {
+		incrementAll(counter, 1.0);
+	}
+
+	public <T extends E> void incrementAll(CounterInterface<T> counter, double scale) {
+		for (Map.Entry<T, Double> entry : counter.entries()) {
+			incrementCount(entry.getKey(), scale * entry.getValue());
+		}
+	}
+
+	public void scale(double c) {
+		for (int i = 0; i < keys.length; i++) {
+			values[i] *= c;
+		}
+	}
+
+	public double dotProduct(CounterInterface<E> other) {
+		double sum = 0.0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && values[i] != 0.0) {
+				sum += values[i] * other.getCount(key(i));
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Finds the total of all counts in the counter; this is a linear operation.
+	 */
+	public double totalCount() {
+		double total = 0.0;
+		for (int i = 0; i < keys.length; i++) {
+			total += values[i];
+		}
+		return total;
+	}
+
+	/**
+	 * The number of entries in the counter (not the total count -- use
+	 * totalCount() instead).
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Finds the key with maximum count. This is a linear operation; ties go to
+	 * the smallest key in the order of compareKeys(), so the result doesn't depend
+	 * on where the keys hash to.
+	 */
+	public E argMax() {
+		double maxCount = Double.NEGATIVE_INFINITY;
+		E maxKey = null;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && (maxKey == null || values[i] > maxCount || (values[i] == maxCount && compareKeys(key(i), maxKey) < 0))) {
+				maxKey = key(i);
+				maxCount = values[i];
+			}
+		}
+		return maxKey;
+	}
+
+	/**
+	 * Orders keys by their natural order if they're Comparable and by their
+	 * string forms otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compareKeys(Object key1, Object key2) {
+		if (key1 instanceof Comparable && key1.getClass() == key2.getClass()) {
+			return ((Comparable<Object>)key1).compareTo(key2);
+		}
+		return key1.toString().compareTo(key2.toString());
+	}
+
+	/**
+	 * @return The keys in order of decreasing count, with ties broken by
+	 * compareKeys(); unlike asPriorityQueue(), the order of tied keys is the same
+	 * however the keys were added
+	 */
+	public List<E> getSortedKeys() {
+		List<E> sortedKeys = new ArrayList<E>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				sortedKeys.add(key(i));
+			}
+		}
+		Collections.sort(sortedKeys, new Comparator<E>() {
+			public int compare(E key1, E key2) {
+				int countComparison = Double.compare(getCount(key2), getCount(key1));
+				return (countComparison != 0 ? countComparison : compareKeys(key1, key2));
+			}
+		});
+		return sortedKeys;
+	}
+
+	/**
+	 * Builds a priority queue whose elements are the counter's elements, and
+	 * whose priorities are those elements' counts in the counter.
+	 */
+	public PriorityQueue<E> asPriorityQueue() {
+		PriorityQueue<E> pq = new PriorityQueue<E>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				pq.add(key(i), values[i]);
+			}
+		}
+		return pq;
+	}
+
+	/**
+	 * Returns a string representation with the keys ordered by decreasing
+	 * counts.
+	 */
+	@Override
+	public String toString() {
+		return toString(size);
+	}
+
+	/**
+	 * Returns a string representation which includes no more than the
+	 * maxKeysToPrint elements with largest counts, formatted like
+	 * PriorityQueue.toString() but in the order of getSortedKeys().
+	 */
+	public String toString(int maxKeysToPrint) {
+		StringBuilder sb = new StringBuilder("[");
+		NumberFormat f = NumberFormat.getInstance();
+		f.setMaximumFractionDigits(5);
+		int numKeysPrinted = 0;
+		for (E key : getSortedKeys()) {
+			if (numKeysPrinted >= maxKeysToPrint) break;
+			sb.append(key.toString());
+			sb.append(" : ");
+			sb.append(f.format(getCount(key)));
+			if (numKeysPrinted < size - 1) sb.append(", ");
+			numKeysPrinted++;
+		}
+		if (numKeysPrinted < size) sb.append("...");
+		sb.append("]");
+		return sb.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private E key(int slot) {
+		return (E)keys[slot];
+	}
+
+	/**
+	 * @return The index of the first occupied slot at or after slot, or keys.length if none
+	 */
+	private int nextOccupied(int slot) {
+		while (slot < keys.length && keys[slot] == null) {
+			slot++;
+		}
+		return slot;
+	}
+
+	/**
+	 * The elements in the counter, as a read-only view.
+	 */
+	public Set<E> keySet() {
+		return new AbstractSet<E>() {
+			@Override
+			public Iterator<E> iterator() {
+				return new Iterator<E>() {
+					private int slot = nextOccupied(0);
+
+					public boolean hasNext() {
+						return slot < keys.length;
+					}
+
+					public E next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						E key = key(slot);
+						slot = nextOccupied(slot + 1);
+						return key;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public boolean contains(Object key) {
+				return key != null && containsKey((E)key);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Entries are boxed as they're iterated over, so prefer getCount() on hot paths.
+	 */
+	public Iterable<Map.Entry<E, Double>> entries() {
+		return new Iterable<Map.Entry<E, Double>>() {
+			public Iterator<Map.Entry<E, Double>> iterator() {
+				return new Iterator<Map.Entry<E, Double>>() {
+					private int slot = nextOccupied(0);
+
+					public boolean hasNext() {
+						return slot < keys.length;
+					}
+
+					public Map.Entry<E, Double> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						Map.Entry<E, Double> entry = new AbstractMap.SimpleImmutableEntry<E, Double>(key(slot), values[slot]);
+						slot = nextOccupied(slot + 1);
+						return entry;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
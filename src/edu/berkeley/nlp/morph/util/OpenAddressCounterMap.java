@@ -0,0 +1,170 @@
+package edu.berkeley.nlp.morph.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maintains counts of (key, value) pairs, like CounterMap, but each key's counter over
+ * values is an OpenAddressCounter, and the counters themselves are found by open addressing
+ * on the key, so counting a pair doesn't box anything. As with OpenAddressCounter, entries
+ * can't be removed.
+ *
+ * @author gdurrett
+ */
+public class OpenAddressCounterMap<K, V>
+{
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private Object[] keys;
+	private OpenAddressCounter<V>[] counters;
+	private int size;
+
+	public OpenAddressCounterMap() {
+		this.keys = new Object[DEFAULT_CAPACITY];
+		this.counters = newCounterArray(DEFAULT_CAPACITY);
+		this.size = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> OpenAddressCounter<V>[] newCounterArray(int capacity) {
+		return (OpenAddressCounter<V>[])new OpenAddressCounter<?>[capacity];
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private int findSlot(Object key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != null && !keys[slot].equals(key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		Object[] oldKeys = keys;
+		OpenAddressCounter<V>[] oldCounters = counters;
+		keys = new Object[oldKeys.length * 2];
+		counters = newCounterArray(oldCounters.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = findSlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counters[slot] = oldCounters[i];
+			}
+		}
+	}
+
+	/**
+	 * Gets the counter for the given key, adding an empty one if the key isn't present.
+	 */
+	public OpenAddressCounter<V> getCounter(K key) {
+		assert key != null : "Null keys are not supported";
+		int slot = findSlot(key);
+		if (keys[slot] == null) {
+			if ((size + 1) * 3 > keys.length * 2) {
+				grow();
+				slot = findSlot(key);
+			}
+			keys[slot] = key;
+			counters[slot] = new OpenAddressCounter<V>();
+			size++;
+		}
+		return counters[slot];
+	}
+
+	/**
+	 * Gets the counter for the given key, or null if the key isn't present.
+	 */
+	public OpenAddressCounter<V> getCounterNoInsert(K key) {
+		int slot = findSlot(key);
+		return counters[slot];
+	}
+
+	public boolean containsKey(K key) {
+		return keys[findSlot(key)] != null;
+	}
+
+	public void setCount(K key, V value, double count) {
+		getCounter(key).setCount(value, count);
+	}
+
+	public double incrementCount(K key, V value, double count) {
+		return getCounter(key).incrementCount(value, count);
+	}
+
+	/**
+	 * Gets the count of the given (key, value) entry, or zero if that entry is
+	 * not present. Does not create any objects.
+	 */
+	public double getCount(K key, V value) {
+		OpenAddressCounter<V> counter = getCounterNoInsert(key);
+		return (counter == null ? 0.0 : counter.getCount(value));
+	}
+
+	public void incrementAll(OpenAddressCounterMap<K, V> other) {
+		for (int i = 0; i < other.keys.length; i++) {
+			if (other.keys[i] != null) {
+				getCounter(other.key(i)).incrementAll(other.counters[i]);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private K key(int slot) {
+		return (K)keys[slot];
+	}
+
+	/**
+	 * Returns the keys that have been inserted into this map.
+	 */
+	public List<K> keys() {
+		List<K> keyList = new ArrayList<K>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				keyList.add(key(i));
+			}
+		}
+		return keyList;
+	}
+
+	/**
+	 * The number of keys in this map (not the total count -- use totalCount() instead).
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double totalCount() {
+		double total = 0.0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				total += counters[i].totalCount();
+			}
+		}
+		return total;
+	}
+
+	public String toString(int maxValsPerKey) {
+		StringBuilder sb = new StringBuilder("[\n");
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				sb.append("  ");
+				sb.append(keys[i]);
+				sb.append(" -> ");
+				sb.append(counters[i].toString(maxValsPerKey));
+				sb.append("\n");
+			}
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return toString(20);
+	}
+}
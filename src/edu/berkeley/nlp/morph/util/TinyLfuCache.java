@@ -0,0 +1,154 @@
+package edu.berkeley.nlp.morph.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache for skewed access patterns, after W-TinyLFU (Einziger et al., 2017). New
+ * entries go into a small LRU window; when one is pushed out of the window it only enters
+ * the main LRU region if it has been requested more often than the entry the main region
+ * would evict to make room for it. Request frequencies are estimated with a count-min
+ * sketch of small saturating counters that are halved periodically, so the cache keeps
+ * the popular keys of the recent past and a burst of one-off keys can't flush them out.
+ *
+ * All operations take the cache's lock, so this is only worthwhile for values that are
+ * much more expensive to compute than a map lookup.
+ *
+ * @author gdurrett
+ */
+public class TinyLfuCache<K, V>
+{
+	private static final int SKETCH_DEPTH = 4;
+	private static final int MAX_FREQUENCY = 15;
+	private static final int[] SKETCH_SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+	private final int windowCapacity;
+	private final int mainCapacity;
+	private final LinkedHashMap<K, V> window;
+	private final LinkedHashMap<K, V> main;
+
+	private final byte[][] sketch;
+	private final int sketchMask;
+	private final int sampleSize;
+	private int numSamples;
+
+	private final Metrics.EventCounter hits;
+	private final Metrics.EventCounter misses;
+	private final Metrics.EventCounter rejections;
+
+	/**
+	 * @param capacity Maximum number of entries; about 1% of them are in the window
+	 * @param rejections Counts entries leaving the window that weren't admitted to the main region
+	 */
+	public TinyLfuCache(int capacity, Metrics.EventCounter hits, Metrics.EventCounter misses, Metrics.EventCounter rejections) {
+		assert capacity > 0;
+		this.windowCapacity = Math.max(1, capacity / 100);
+		this.mainCapacity = Math.max(1, capacity - windowCapacity);
+		this.window = new LinkedHashMap<K, V>(16, 0.75f, true);
+		this.main = new LinkedHashMap<K, V>(16, 0.75f, true);
+		int sketchWidth = 16;
+		while (sketchWidth < capacity * 2) {
+			sketchWidth *= 2;
+		}
+		this.sketch = new byte[SKETCH_DEPTH][sketchWidth];
+		this.sketchMask = sketchWidth - 1;
+		this.sampleSize = 10 * capacity;
+		this.numSamples = 0;
+		this.hits = hits;
+		this.misses = misses;
+		this.rejections = rejections;
+	}
+
+	private int sketchIndex(Object key, int row) {
+		int h = key.hashCode() * SKETCH_SEEDS[row];
+		return (h ^ (h >>> 16)) & sketchMask;
+	}
+
+	private void recordRequest(Object key) {
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			int idx = sketchIndex(key, row);
+			if (sketch[row][idx] < MAX_FREQUENCY) {
+				sketch[row][idx]++;
+			}
+		}
+		numSamples++;
+		if (numSamples >= sampleSize) {
+			// Age the counts so that popularity reflects recent requests
+			for (byte[] counts : sketch) {
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] >>= 1;
+				}
+			}
+			numSamples /= 2;
+		}
+	}
+
+	private int frequency(Object key) {
+		int freq = MAX_FREQUENCY;
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			freq = Math.min(freq, sketch[row][sketchIndex(key, row)]);
+		}
+		return freq;
+	}
+
+	/**
+	 * Records a request for key, whether or not it's cached.
+	 * @return The cached value, or null if there is none
+	 */
+	public synchronized V get(K key) {
+		recordRequest(key);
+		V value = window.get(key);
+		if (value == null) {
+			value = main.get(key);
+		}
+		if (value == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * Adds a value computed after get() missed. It always enters the window, which may
+	 * push the window's least recently used entry out and into competition for the main region.
+	 */
+	public synchronized void put(K key, V value) {
+		if (window.containsKey(key) || main.containsKey(key)) {
+			return;
+		}
+		window.put(key, value);
+		if (window.size() <= windowCapacity) {
+			return;
+		}
+		Iterator<Map.Entry<K, V>> windowItr = window.entrySet().iterator();
+		Map.Entry<K, V> candidate = windowItr.next();
+		windowItr.remove();
+		if (main.size() < mainCapacity) {
+			main.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+		Iterator<Map.Entry<K, V>> mainItr = main.entrySet().iterator();
+		Map.Entry<K, V> victim = mainItr.next();
+		if (frequency(candidate.getKey()) > frequency(victim.getKey())) {
+			mainItr.remove();
+			main.put(candidate.getKey(), candidate.getValue());
+		} else {
+			rejections.increment();
+		}
+	}
+
+	/**
+	 * Drops all values, e.g. because they were computed by a model that has changed; the
+	 * frequency estimates are kept, since which keys are popular doesn't depend on that.
+	 */
+	public synchronized void clear() {
+		window.clear();
+		main.clear();
+	}
+
+	public synchronized int size() {
+		return window.size() + main.size();
+	}
+}
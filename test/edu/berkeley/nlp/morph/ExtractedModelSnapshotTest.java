@@ -0,0 +1,141 @@
+package edu.berkeley.nlp.morph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
+
+/**
+ * Checks that analyses restored from a snapshot are identical to freshly computed ones,
+ * and that a snapshot is only used for the training data it was written from.
+ *
+ * @author gdurrett
+ *
+ */
+public class ExtractedModelSnapshotTest {
+
+  private static File newTempDir() throws IOException {
+    File dir = File.createTempFile("snapshots-", "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new RuntimeException("Could not create " + dir);
+    }
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static void assertSameModel(ExtractedModel expected, ExtractedModel actual) {
+    assertEquals(expected.analyzedInstances.size(), actual.analyzedInstances.size());
+    for (int i = 0; i < expected.analyzedInstances.size(); i++) {
+      AnalyzedParadigmInstance expectedInstance = expected.analyzedInstances.get(i);
+      AnalyzedParadigmInstance actualInstance = actual.analyzedInstances.get(i);
+      assertSame(expectedInstance.inst, actualInstance.inst);
+      assertEquals(expectedInstance.getFormAlignments(), actualInstance.getFormAlignments());
+      assertEquals(expectedInstance.getCachedChanges(), actualInstance.getCachedChanges());
+    }
+    assertEquals(expected.extractedMorphChanges, actual.extractedMorphChanges);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    File dir = newTempDir();
+    String oldCacheDir = Driver.extractedModelCacheDir;
+    try {
+      List<ParadigmInstance> trainInstances = TestParadigms.getTrainInstances();
+      ExtractedModel fresh = ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT);
+      Driver.extractedModelCacheDir = dir.getPath();
+      ExtractedModel written = ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT);
+      ExtractedModelSnapshot snapshot = new ExtractedModelSnapshot(dir.getPath(), trainInstances, AlignmentType.CONSISTENT);
+      assertTrue(snapshot.getFile().exists());
+      List<AnalyzedParadigmInstance> restoredInstances = snapshot.read(trainInstances);
+      assertNotNull(restoredInstances);
+      assertSameModel(fresh, written);
+      assertSameModel(fresh, ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT));
+    } finally {
+      Driver.extractedModelCacheDir = oldCacheDir;
+      deleteDir(dir);
+    }
+  }
+
+  @Test
+  public void testKeyedByData() throws IOException {
+    File dir = newTempDir();
+    try {
+      List<ParadigmInstance> trainInstances = TestParadigms.getTrainInstances();
+      ExtractedModelSnapshot snapshot = new ExtractedModelSnapshot(dir.getPath(), trainInstances, AlignmentType.CONSISTENT);
+      snapshot.write(ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT).analyzedInstances);
+      // Other tables or other alignment settings get their own snapshot
+      List<ParadigmInstance> otherInstances = trainInstances.subList(1, trainInstances.size());
+      assertFalse(snapshot.getFile().equals(new ExtractedModelSnapshot(dir.getPath(), otherInstances, AlignmentType.CONSISTENT).getFile()));
+      assertFalse(snapshot.getFile().equals(new ExtractedModelSnapshot(dir.getPath(), trainInstances, AlignmentType.BASIC).getFile()));
+      // and a snapshot read with tables other than the ones it was written from is ignored
+      assertNull(snapshot.read(otherInstances));
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  @Test
+  public void testCorruptSnapshotIsIgnored() throws IOException {
+    File dir = newTempDir();
+    String oldCacheDir = Driver.extractedModelCacheDir;
+    try {
+      List<ParadigmInstance> trainInstances = TestParadigms.getTrainInstances();
+      ExtractedModel fresh = ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT);
+      ExtractedModelSnapshot snapshot = new ExtractedModelSnapshot(dir.getPath(), trainInstances, AlignmentType.CONSISTENT);
+      snapshot.write(fresh.analyzedInstances);
+      long length = snapshot.getFile().length();
+      // Every truncation, including ones that cut into the header, is a cache miss
+      for (long truncatedLength = length - 1; truncatedLength >= 0; truncatedLength -= 7) {
+        snapshot.write(fresh.analyzedInstances);
+        setLength(snapshot.getFile(), truncatedLength);
+        assertNull("Truncated to " + truncatedLength, snapshot.read(trainInstances));
+      }
+      // The first op of the first alignment follows the header and two counts
+      snapshot.write(fresh.analyzedInstances);
+      writeByte(snapshot.getFile(), 8 + 20 + 4 + 4 + 4, 0x7f);
+      assertNull(snapshot.read(trainInstances));
+      // A valid op that makes the alignment too long for its forms
+      snapshot.write(fresh.analyzedInstances);
+      writeByte(snapshot.getFile(), 8 + 20 + 4 + 4 + 4, Operation.INSERT.ordinal());
+      assertNull(snapshot.read(trainInstances));
+      // and extraction recomputes the analyses and replaces the bad snapshot
+      Driver.extractedModelCacheDir = dir.getPath();
+      assertSameModel(fresh, ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT));
+      assertNotNull(snapshot.read(trainInstances));
+    } finally {
+      Driver.extractedModelCacheDir = oldCacheDir;
+      deleteDir(dir);
+    }
+  }
+
+  private static void setLength(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void writeByte(File file, long offset, int value) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(offset);
+      raf.write(value);
+    } finally {
+      raf.close();
+    }
+  }
+}
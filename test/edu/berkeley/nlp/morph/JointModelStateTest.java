@@ -0,0 +1,90 @@
+package edu.berkeley.nlp.morph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
+
+/**
+ * Checks that a JOINT model warm-started from a saved state restores the saved tables and
+ * predicts the same paradigms as one trained from scratch on the same data.
+ *
+ * @author gdurrett
+ *
+ */
+public class JointModelStateTest {
+
+  private static JointSpanMatchingPredictor newPredictor(ExtractedModel model, JointModelState priorState) {
+    return new JointSpanMatchingPredictor(model, new AnchoredSpanFeaturizer(Driver.ruleFeaturesNgramOrder, Driver.ruleFeaturesMaxDist),
+                                          new AnchoredSpanFeaturizer(Driver.nullFeaturesNgramOrder, Driver.nullFeaturesMaxDist), priorState);
+  }
+
+  private static JointSpanMatchingPredictor trainFromScratch(List<ParadigmInstance> trainInstances) {
+    JointSpanMatchingPredictor predictor = newPredictor(ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT), null);
+    predictor.train();
+    return predictor;
+  }
+
+  private static JointSpanMatchingPredictor trainFromState(List<ParadigmInstance> trainInstances, JointModelState priorState) {
+    JointSpanMatchingPredictor predictor = newPredictor(priorState.extractChanges(trainInstances, AlignmentType.CONSISTENT), priorState);
+    predictor.train();
+    return predictor;
+  }
+
+  private static void assertSamePredictions(Predictor expected, Predictor actual) {
+    for (ParadigmInstance instance : TestParadigms.getTestInstances()) {
+      ParadigmHypothesis expectedHypothesis = expected.predict(instance.baseForm(), instance.getAttrSetSorted(), null);
+      ParadigmHypothesis actualHypothesis = actual.predict(instance.baseForm(), instance.getAttrSetSorted(), null);
+      assertTrue("Predictions for " + instance.baseForm(), actualHypothesis.predictedInstance.doesExactlyMatchGold(expectedHypothesis.predictedInstance));
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    File file = File.createTempFile("model-", ".bin");
+    try {
+      List<ParadigmInstance> trainInstances = TestParadigms.getTrainInstances();
+      JointSpanMatchingPredictor coldPredictor = trainFromScratch(trainInstances);
+      coldPredictor.save(file.getPath());
+      JointModelState state = JointModelState.read(file.getPath());
+      assertNotNull(state);
+      assertTrue(state.weights.length > 0);
+      assertEquals(state.weights.length, state.features.size());
+      ExtractedModel restoredModel = state.extractChanges(trainInstances, AlignmentType.CONSISTENT);
+      assertEquals(ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT).extractedMorphChanges.keySet(),
+                   restoredModel.extractedMorphChanges.keySet());
+      for (ParadigmInstance instance : trainInstances) {
+        assertNotNull("Sequence for " + instance.baseForm(), state.getCachedSequence(instance));
+      }
+      assertTrue(state.getChangesToRecompute(restoredModel).isEmpty());
+      assertSamePredictions(coldPredictor, trainFromState(trainInstances, state));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testNewTables() throws IOException {
+    File file = File.createTempFile("model-", ".bin");
+    try {
+      List<ParadigmInstance> trainInstances = TestParadigms.getTrainInstances();
+      List<ParadigmInstance> firstInstances = new ArrayList<ParadigmInstance>(trainInstances.subList(0, 12));
+      trainFromScratch(firstInstances).save(file.getPath());
+      JointModelState state = JointModelState.read(file.getPath());
+      JointSpanMatchingPredictor warmPredictor = trainFromState(trainInstances, state);
+      // Only the tables the saved model was trained on are restored
+      for (ParadigmInstance instance : trainInstances) {
+        assertEquals("Sequence for " + instance.baseForm(), firstInstances.contains(instance), state.getCachedSequence(instance) != null);
+      }
+      assertSamePredictions(trainFromScratch(trainInstances), warmPredictor);
+    } finally {
+      file.delete();
+    }
+  }
+}
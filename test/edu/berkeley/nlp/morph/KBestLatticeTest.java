@@ -0,0 +1,124 @@
+package edu.berkeley.nlp.morph;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.morph.JointSpanMatchingPredictor.Derivation;
+import edu.berkeley.nlp.morph.JointSpanMatchingPredictor.Sequence;
+
+/**
+ * Checks lazy k-best decoding against brute-force enumeration of every compatible set of
+ * changes on small random lattices.
+ *
+ * @author gdurrett
+ *
+ */
+public class KBestLatticeTest {
+
+  @Test
+  public void testMatchesBruteForce() {
+    Random rand = new Random(0);
+    Attributes attrs = ParadigmInstanceReader.parseAttrs("type=infinitive");
+    for (int trial = 0; trial < 20; trial++) {
+      Form baseForm = new Form("abcdef".substring(0, 3 + trial % 4));
+      int length = baseForm.length();
+      // Each change and each preservation gets its own feature, so the weights are the scores
+      List<AnchoredMorphChange> changes = new ArrayList<AnchoredMorphChange>();
+      List<int[]> changeFeatures = new ArrayList<int[]>();
+      int numChanges = 4 + rand.nextInt(9);
+      for (int i = 0; i < numChanges; i++) {
+        int start = rand.nextInt(length + 1);
+        int end = start + rand.nextInt(Math.min(3, length + 1 - start));
+        MorphChange change = new MorphChange(new Form("x"), Collections.singletonMap(attrs, new Form("y" + i)));
+        changes.add(new AnchoredMorphChange(change, new AnchoredSpan(baseForm, start, end)));
+        changeFeatures.add(new int[] { i });
+      }
+      List<int[]> preservationFeatures = new ArrayList<int[]>();
+      for (int i = 0; i < length; i++) {
+        preservationFeatures.add(new int[] { numChanges + i });
+      }
+      preservationFeatures.add(new int[0]);
+      double[] weights = new double[numChanges + length];
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = rand.nextGaussian();
+      }
+      Sequence seq = new Sequence(baseForm, changes, changeFeatures, null, preservationFeatures);
+
+      List<Double> bruteForceScores = new ArrayList<Double>();
+      for (int subset = 0; subset < (1 << numChanges); subset++) {
+        List<AnchoredMorphChange> chosen = getIfCompatible(changes, subset);
+        if (chosen != null) {
+          bruteForceScores.add(score(chosen, changes, weights, length));
+        }
+      }
+      Collections.sort(bruteForceScores, Collections.reverseOrder());
+
+      int k = 20;
+      List<Derivation> kBest = seq.predictKBest(weights, k);
+      assertEquals(Math.min(k, bruteForceScores.size()), kBest.size());
+      for (int rank = 0; rank < kBest.size(); rank++) {
+        Derivation derivation = kBest.get(rank);
+        assertEquals("Score at rank " + rank, bruteForceScores.get(rank), derivation.score, 1e-9);
+        // The changes on the path have to account for its score
+        assertEquals(derivation.score, score(derivation.getChanges(), changes, weights, length), 1e-9);
+      }
+      double viterbiScore = score(seq.predict(weights), changes, weights, length);
+      assertEquals(bruteForceScores.get(0), viterbiScore, 1e-9);
+    }
+  }
+
+  /**
+   * @return The changes in the subset from left to right, or null if any two of them touch
+   */
+  private static List<AnchoredMorphChange> getIfCompatible(List<AnchoredMorphChange> changes, int subset) {
+    List<AnchoredMorphChange> chosen = new ArrayList<AnchoredMorphChange>();
+    for (int i = 0; i < changes.size(); i++) {
+      if ((subset & (1 << i)) != 0) {
+        chosen.add(changes.get(i));
+      }
+    }
+    AnchoredMorphChange[] sorted = chosen.toArray(new AnchoredMorphChange[chosen.size()]);
+    Arrays.sort(sorted, new Comparator<AnchoredMorphChange>() {
+      @Override
+      public int compare(AnchoredMorphChange first, AnchoredMorphChange second) {
+        return first.spanAppliedTo.start - second.spanAppliedTo.start;
+      }
+    });
+    for (int i = 1; i < sorted.length; i++) {
+      if (sorted[i].spanAppliedTo.start <= sorted[i-1].spanAppliedTo.end) {
+        return null;
+      }
+    }
+    return Arrays.asList(sorted);
+  }
+
+  /**
+   * A change over [start, end] takes the place of preserving every position it covers,
+   * but also scores the preservation at its end.
+   */
+  private static double score(List<AnchoredMorphChange> chosen, List<AnchoredMorphChange> changes, double[] weights, int length) {
+    double score = 0;
+    boolean[] covered = new boolean[length + 1];
+    for (AnchoredMorphChange change : chosen) {
+      int end = change.spanAppliedTo.end;
+      score += weights[changes.indexOf(change)] + (end < length ? weights[changes.size() + end] : 0);
+      for (int i = change.spanAppliedTo.start; i <= end; i++) {
+        covered[i] = true;
+      }
+    }
+    for (int i = 0; i < length; i++) {
+      if (!covered[i]) {
+        score += weights[changes.size() + i];
+      }
+    }
+    return score;
+  }
+}
@@ -0,0 +1,74 @@
+package edu.berkeley.nlp.morph;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.junit.Test;
+
+import edu.berkeley.nlp.morph.AnalyzedParadigmInstance.AlignmentType;
+
+/**
+ * Checks the oracle's branch-and-bound search against exhaustive enumeration of every set
+ * of non-touching changes.
+ *
+ * @author gdurrett
+ *
+ */
+public class OraclePredictorTest {
+
+  @Test
+  public void testMatchesExhaustiveSearch() {
+    List<ParadigmInstance> trainInstances = TestParadigms.getTrainInstances();
+    ExtractedModel model = ExtractedModel.extractChanges(trainInstances, AlignmentType.CONSISTENT);
+    OraclePredictor oracle = new OraclePredictor(model);
+    List<ParadigmInstance> goldInstances = new ArrayList<ParadigmInstance>(trainInstances);
+    goldInstances.addAll(TestParadigms.getTestInstances());
+    for (ParadigmInstance goldInstance : goldInstances) {
+      Form baseForm = goldInstance.baseForm();
+      SortedSet<Attributes> attrs = goldInstance.getAttrSetSorted();
+      List<AnchoredMorphChange> changes = new ArrayList<AnchoredMorphChange>();
+      for (MorphChange change : model.extractedMorphChanges.keySet()) {
+        for (AnchoredSpan match : oracle.changeFilterer.findMatchingSpans(baseForm, change)) {
+          changes.add(new AnchoredMorphChange(change, match));
+        }
+      }
+      Collections.sort(changes, new Comparator<AnchoredMorphChange>() {
+        @Override
+        public int compare(AnchoredMorphChange first, AnchoredMorphChange second) {
+          return first.spanAppliedTo.end - second.spanAppliedTo.end;
+        }
+      });
+      int exhaustiveBest = findBestExhaustively(goldInstance, changes, 0, -1, new ArrayList<AnchoredMorphChange>());
+      ParadigmHypothesis hypothesis = oracle.predict(baseForm, attrs, goldInstance);
+      assertEquals("Matches for " + baseForm, exhaustiveBest, hypothesis.predictedInstance.countMatchesGold(goldInstance, false));
+    }
+    // Every training paradigm can be reproduced from its own changes
+    for (ParadigmInstance trainInstance : trainInstances) {
+      ParadigmHypothesis hypothesis = oracle.predict(trainInstance.baseForm(), trainInstance.getAttrSetSorted(), trainInstance);
+      assertTrue(hypothesis.predictedInstance.doesExactlyMatchGold(trainInstance));
+    }
+  }
+
+  /**
+   * @return The most gold matches from any set of changes that extends chosen with changes
+   * at or after index next that start after lastEnd
+   */
+  private static int findBestExhaustively(ParadigmInstance goldInstance, List<AnchoredMorphChange> changes, int next, int lastEnd,
+                                          List<AnchoredMorphChange> chosen) {
+    ParadigmInstance predicted = new ParadigmInstance(goldInstance.baseForm(), goldInstance.getAttrSetSorted(), chosen);
+    int best = predicted.countMatchesGold(goldInstance, false);
+    for (int i = next; i < changes.size(); i++) {
+      if (changes.get(i).spanAppliedTo.start > lastEnd) {
+        chosen.add(changes.get(i));
+        best = Math.max(best, findBestExhaustively(goldInstance, changes, i + 1, changes.get(i).spanAppliedTo.end, chosen));
+        chosen.remove(chosen.size() - 1);
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,70 @@
+package edu.berkeley.nlp.morph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Small hand-written German verb paradigms for tests that need real extracted changes.
+ *
+ * @author gdurrett
+ *
+ */
+public class TestParadigms {
+
+  private static final String[] ATTRS = { "person=1:tense=present", "person=3:tense=present",
+                                          "tense=past:type=participle", "person=1:tense=past" };
+
+  private static final String[][] TRAIN = {
+    { "machen", "mache", "macht", "gemacht", "machte" },
+    { "sagen", "sage", "sagt", "gesagt", "sagte" },
+    { "lernen", "lerne", "lernt", "gelernt", "lernte" },
+    { "spielen", "spiele", "spielt", "gespielt", "spielte" },
+    { "sinken", "sinke", "sinkt", "gesunken", "sank" },
+    { "trinken", "trinke", "trinkt", "getrunken", "trank" },
+    { "finden", "finde", "findet", "gefunden", "fand" },
+    { "binden", "binde", "bindet", "gebunden", "band" },
+    { "singen", "singe", "singt", "gesungen", "sang" },
+    { "helfen", "helfe", "hilft", "geholfen", "half" },
+    { "geben", "gebe", "gibt", "gegeben", "gab" },
+    { "nehmen", "nehme", "nimmt", "genommen", "nahm" },
+    { "sprechen", "spreche", "spricht", "gesprochen", "sprach" },
+    { "lesen", "lese", "liest", "gelesen", "las" },
+    { "fahren", "fahre", "fährt", "gefahren", "fuhr" },
+    { "laufen", "laufe", "läuft", "gelaufen", "lief" },
+    { "warten", "warte", "wartet", "gewartet", "wartete" },
+    { "reden", "rede", "redet", "geredet", "redete" },
+  };
+
+  private static final String[][] TEST = {
+    { "kaufen", "kaufe", "kauft", "gekauft", "kaufte" },
+    { "winken", "winke", "winkt", "gewinkt", "winkte" },
+    { "schwinden", "schwinde", "schwindet", "geschwunden", "schwand" },
+    { "brechen", "breche", "bricht", "gebrochen", "brach" },
+    { "treffen", "treffe", "trifft", "getroffen", "traf" },
+    { "schlafen", "schlafe", "schläft", "geschlafen", "schlief" },
+    { "baden", "bade", "badet", "gebadet", "badete" },
+  };
+
+  public static List<ParadigmInstance> getTrainInstances() {
+    return makeInstances(TRAIN);
+  }
+
+  public static List<ParadigmInstance> getTestInstances() {
+    return makeInstances(TEST);
+  }
+
+  private static List<ParadigmInstance> makeInstances(String[][] paradigms) {
+    List<ParadigmInstance> instances = new ArrayList<ParadigmInstance>();
+    for (String[] paradigm : paradigms) {
+      SortedMap<Attributes,List<Form>> inflForms = new TreeMap<Attributes,List<Form>>();
+      for (int i = 0; i < ATTRS.length; i++) {
+        inflForms.put(ParadigmInstanceReader.parseAttrs(ATTRS[i]), Collections.singletonList(new Form(paradigm[i + 1])));
+      }
+      instances.add(new ParadigmInstance(new Form(paradigm[0]), inflForms));
+    }
+    return instances;
+  }
+}
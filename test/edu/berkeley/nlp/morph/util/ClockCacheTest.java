@@ -0,0 +1,103 @@
+package edu.berkeley.nlp.morph.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class ClockCacheTest {
+
+  private static ClockCache<String,String> newCache(int capacity, Metrics.EventCounter evictions) {
+    return new ClockCache<String,String>(capacity, new Metrics.EventCounter("hits", ""), new Metrics.EventCounter("misses", ""), evictions);
+  }
+
+  @Test
+  public void testSecondChance() {
+    Metrics.EventCounter evictions = new Metrics.EventCounter("evictions", "");
+    ClockCache<String,String> cache = newCache(3, evictions);
+    cache.putIfAbsent("a", "A");
+    cache.putIfAbsent("b", "B");
+    cache.putIfAbsent("c", "C");
+    // a is referenced, so the hand passes over it (clearing its bit) and evicts b
+    assertEquals("A", cache.get("a"));
+    cache.putIfAbsent("d", "D");
+    assertNull(cache.get("b"));
+    // The hand is now at c, which hasn't been used (misses don't set any bits)
+    cache.putIfAbsent("e", "E");
+    assertNull(cache.get("c"));
+    // a has had its bit cleared and not been used since, so it goes next
+    cache.putIfAbsent("f", "F");
+    assertNull(cache.get("a"));
+    assertCached(cache, "d", "e", "f");
+    assertEquals(3, evictions.get());
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testAllReferenced() {
+    Metrics.EventCounter evictions = new Metrics.EventCounter("evictions", "");
+    ClockCache<String,String> cache = newCache(3, evictions);
+    cache.putIfAbsent("a", "A");
+    cache.putIfAbsent("b", "B");
+    cache.putIfAbsent("c", "C");
+    assertCached(cache, "a", "b", "c");
+    // A full sweep clears every bit and comes back around to the oldest entry
+    cache.putIfAbsent("d", "D");
+    assertNull(cache.get("a"));
+    assertCached(cache, "b", "c", "d");
+    assertEquals(1, evictions.get());
+  }
+
+  @Test
+  public void testPutIfAbsentKeepsExisting() {
+    ClockCache<String,String> cache = newCache(2, new Metrics.EventCounter("evictions", ""));
+    assertEquals("A", cache.putIfAbsent("a", "A"));
+    assertEquals("A", cache.putIfAbsent("a", "other"));
+    assertEquals("A", cache.get("a"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    final ClockCache<String,String> cache = newCache(50, new Metrics.EventCounter("evictions", ""));
+    final List<String> errors = new ArrayList<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int seed = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            String key = "k" + ((i * 31 + seed * 7) % 200);
+            String value = cache.get(key);
+            if (value == null) {
+              value = cache.putIfAbsent(key, key.toUpperCase());
+            }
+            if (!value.equals(key.toUpperCase())) {
+              synchronized (errors) {
+                errors.add(key + " -> " + value);
+              }
+            }
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertTrue(cache.size() <= cache.capacity());
+  }
+
+  private static void assertCached(ClockCache<String,String> cache, String... keys) {
+    for (String key : keys) {
+      assertEquals(key.toUpperCase(), cache.get(key));
+    }
+  }
+}
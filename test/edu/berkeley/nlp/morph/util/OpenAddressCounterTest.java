@@ -0,0 +1,73 @@
+package edu.berkeley.nlp.morph.util;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class OpenAddressCounterTest {
+
+  @Test
+  public void testMatchesCounter() {
+    Counter<String> counter = new Counter<String>();
+    OpenAddressCounter<String> openCounter = new OpenAddressCounter<String>();
+    // Enough keys to force several resizes, with setCount() and incrementCount() both
+    // adding new keys
+    for (int i = 0; i < 1000; i++) {
+      String key = "key" + (i % 700);
+      if (i % 2 == 0) {
+        counter.setCount(key, i);
+        openCounter.setCount(key, i);
+      } else {
+        counter.incrementCount(key, i);
+        openCounter.incrementCount(key, i);
+      }
+    }
+    assertEquals(counter.size(), openCounter.size());
+    assertEquals(counter.totalCount(), openCounter.totalCount(), 1e-9);
+    for (String key : counter.keySet()) {
+      assertEquals("Count of " + key, counter.getCount(key), openCounter.getCount(key), 1e-9);
+      assertTrue(openCounter.keySet().contains(key));
+    }
+    assertEquals(0.0, openCounter.getCount("missing"), 0.0);
+    assertEquals(counter.argMax(), openCounter.argMax());
+  }
+
+  @Test
+  public void testTiesBrokenByKey() {
+    // Same keys added in two different orders, with different capacities so they hash to
+    // different slots
+    OpenAddressCounter<String> counter1 = new OpenAddressCounter<String>();
+    OpenAddressCounter<String> counter2 = new OpenAddressCounter<String>(1000);
+    for (int i = 0; i < 100; i++) {
+      counter1.incrementCount("key" + i, i % 3);
+      counter2.incrementCount("key" + (99 - i), (99 - i) % 3);
+    }
+    List<String> sortedKeys = counter1.getSortedKeys();
+    assertEquals(sortedKeys, counter2.getSortedKeys());
+    assertEquals(counter1.toString(), counter2.toString());
+    for (int i = 1; i < sortedKeys.size(); i++) {
+      double prevCount = counter1.getCount(sortedKeys.get(i-1));
+      double count = counter1.getCount(sortedKeys.get(i));
+      assertTrue(prevCount > count || (prevCount == count && sortedKeys.get(i-1).compareTo(sortedKeys.get(i)) < 0));
+    }
+    assertEquals("key11", counter1.argMax());
+    assertEquals("key11", counter2.argMax());
+  }
+
+  @Test
+  public void testCounterMap() {
+    OpenAddressCounterMap<String,String> counterMap = new OpenAddressCounterMap<String,String>();
+    for (int i = 0; i < 100; i++) {
+      counterMap.incrementCount("key" + (i % 30), "value" + (i % 7), 1.0);
+    }
+    assertEquals(30, counterMap.size());
+    assertEquals(100.0, counterMap.totalCount(), 1e-9);
+    assertEquals(1.0, counterMap.getCount("key0", "value0"), 1e-9);
+    assertEquals(0.0, counterMap.getCount("key0", "value1"), 0.0);
+    assertEquals(0.0, counterMap.getCount("missing", "value0"), 0.0);
+    assertEquals(30, counterMap.size());
+  }
+}
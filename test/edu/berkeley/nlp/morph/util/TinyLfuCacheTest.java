@@ -0,0 +1,92 @@
+package edu.berkeley.nlp.morph.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+public class TinyLfuCacheTest {
+
+  private static TinyLfuCache<String,String> newCache(int capacity, Metrics.EventCounter rejections) {
+    return new TinyLfuCache<String,String>(capacity, new Metrics.EventCounter("hits", ""), new Metrics.EventCounter("misses", ""), rejections);
+  }
+
+  private static void request(TinyLfuCache<String,String> cache, String key) {
+    if (cache.get(key) == null) {
+      cache.put(key, key.toUpperCase());
+    }
+  }
+
+  @Test
+  public void testFillsBeforeRejecting() {
+    Metrics.EventCounter rejections = new Metrics.EventCounter("rejections", "");
+    TinyLfuCache<String,String> cache = newCache(100, rejections);
+    for (int i = 0; i < 100; i++) {
+      request(cache, "k" + i);
+    }
+    assertEquals(100, cache.size());
+    assertEquals(0, rejections.get());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("K" + i, cache.get("k" + i));
+    }
+  }
+
+  @Test
+  public void testHotKeysSurviveScan() {
+    Metrics.EventCounter rejections = new Metrics.EventCounter("rejections", "");
+    TinyLfuCache<String,String> cache = newCache(100, rejections);
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 50; i++) {
+        request(cache, "hot" + i);
+      }
+    }
+    for (int i = 0; i < 49; i++) {
+      request(cache, "warm" + i);
+    }
+    // Under plain LRU this many one-off keys would push every hot key out
+    for (int i = 0; i < 300; i++) {
+      request(cache, "scan" + i);
+    }
+    assertTrue(cache.size() <= 100);
+    assertTrue(rejections.get() > 250);
+    // The sketch can overestimate a one-off key that shares a counter with a hot key in
+    // every row, so the odd hot key may be displaced, but nearly all of them must remain
+    int numHotCached = 0;
+    for (int i = 0; i < 50; i++) {
+      String value = cache.get("hot" + i);
+      if (value != null) {
+        assertEquals("HOT" + i, value);
+        numHotCached++;
+      }
+    }
+    assertTrue(numHotCached >= 45);
+  }
+
+  @Test
+  public void testFrequentKeyIsAdmitted() {
+    Metrics.EventCounter rejections = new Metrics.EventCounter("rejections", "");
+    TinyLfuCache<String,String> cache = newCache(100, rejections);
+    for (int i = 0; i < 100; i++) {
+      request(cache, "k" + i);
+    }
+    // Requested often enough while uncached, a new key wins against the main region's victim
+    for (int i = 0; i < 5; i++) {
+      assertNull(cache.get("new"));
+    }
+    cache.put("new", "NEW");
+    request(cache, "push");
+    assertEquals("NEW", cache.get("new"));
+    assertEquals(100, cache.size());
+  }
+
+  @Test
+  public void testClear() {
+    TinyLfuCache<String,String> cache = newCache(10, new Metrics.EventCounter("rejections", ""));
+    for (int i = 0; i < 10; i++) {
+      request(cache, "k" + i);
+    }
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("k0"));
+  }
+}